@@ -0,0 +1,70 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.PoiService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PoiService.fetchByBoundingBox over a sequence of viewports of one size (see Viewports). The cache setting selects
+ * between the index search on every call (the bounding-box cache disabled) and the application's configured cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={ "-Xms4g", "-Xmx4g" })
+public class BoundingBoxBenchmark {
+
+    private static final int VIEWPORTS = 1024;
+
+    @Param({ "100000", "1000000", "10000000" }) private int points;
+    @Param({ Datasets.UNIFORM, Datasets.CLUSTERED }) private String layout;
+
+    /**
+     * Viewport width in degrees, from street level to continent.
+     */
+    @Param({ "0.5", "2", "10", "45" }) private double viewport;
+
+    @Param({ "off", "on" }) private String cache;
+
+    private AnnotationConfigApplicationContext context;
+    private PoiService poiService;
+    private Viewports viewports;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        final File data = Datasets.file(points, layout);
+        context = "off".equals(cache) ? Services.start(data, "oldemo.cache.max-weight", "0") : Services.start(data);
+        poiService = context.getBean(PoiService.class);
+        viewports = new Viewports(data, viewport, VIEWPORTS);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop(){
+        context.close();
+    }
+
+    @Benchmark
+    public PointOfInterest[] fetchByBoundingBox(){
+        final double[] bounds = viewports.next();
+        return poiService.fetchByBoundingBox(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+}
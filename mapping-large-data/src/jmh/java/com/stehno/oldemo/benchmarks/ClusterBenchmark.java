@@ -0,0 +1,94 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.Centroids;
+import com.stehno.oldemo.service.KMeansClusterer;
+import com.stehno.oldemo.service.LivePoints;
+import com.stehno.oldemo.service.PoiService;
+import com.stehno.oldemo.service.PointFile;
+import com.stehno.oldemo.service.PointSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The clustering behind PoiService.fetchClusters: a full k-means run over the data set with the clustering settings of
+ * oldemo.properties (the service serves the result of such a run until it is refreshed), and a world-wide lookup in
+ * the cluster pyramid used by the v4 endpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=5)
+@Measurement(iterations=5, time=5)
+@Fork(value=1, jvmArgsAppend={ "-Xms4g", "-Xmx4g" })
+public class ClusterBenchmark {
+
+    @Param({ "100000", "1000000", "10000000" }) private int points;
+    @Param({ Datasets.UNIFORM, Datasets.CLUSTERED }) private String layout;
+
+    private AnnotationConfigApplicationContext context;
+    private PoiService poiService;
+    private PointSnapshot snapshot;
+    private KMeansClusterer clusterer;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        final File data = Datasets.file(points, layout);
+        context = Services.start(data);
+        poiService = context.getBean(PoiService.class);
+
+        final PointFile pointFile = PointFile.open(data);
+        snapshot = new LivePoints(pointFile.getStore(), pointFile.getIndex()).snapshot();
+
+        final Properties settings = PropertiesLoaderUtils.loadProperties(new ClassPathResource("oldemo.properties"));
+        final int parallelism = Integer.parseInt(settings.getProperty("oldemo.parallelism"));
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        clusterer = new KMeansClusterer(
+            pool,
+            Integer.parseInt(settings.getProperty("oldemo.clusters.count")),
+            Integer.parseInt(settings.getProperty("oldemo.clusters.iterations")),
+            Integer.parseInt(settings.getProperty("oldemo.clusters.mini-batch.threshold")),
+            Integer.parseInt(settings.getProperty("oldemo.clusters.mini-batch.size")),
+            new Random(42)
+        );
+    }
+
+    @TearDown(Level.Trial)
+    public void stop(){
+        pool.shutdownNow();
+        context.close();
+    }
+
+    @Benchmark
+    public Centroids kmeans(){
+        return clusterer.cluster(snapshot);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public PointOfInterest[] pyramid(){
+        return poiService.fetchClusters(-180, -85, 180, 85, 3);
+    }
+}
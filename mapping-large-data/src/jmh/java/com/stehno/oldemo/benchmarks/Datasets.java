@@ -0,0 +1,54 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.tools.DataGenerator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The data sets used by the benchmarks: binary data files generated by the DataGenerator with a fixed seed, so every
+ * run (and every version being compared) sees the same points. The files are generated on first use and kept in
+ * java.io.tmpdir/oldemo-jmh, or in the directory given by the oldemo.jmh.data system property.
+ */
+final class Datasets {
+
+    static final String UNIFORM = "uniform";
+    static final String CLUSTERED = "clustered";
+
+    private static final long SEED = 20130401L;
+
+    private Datasets(){}
+
+    /**
+     * @param points the number of points
+     * @param layout UNIFORM (spread over the whole map) or CLUSTERED (the five regions of the DataGenerator)
+     * @return the data file, generated if it does not yet exist
+     */
+    static synchronized File file( final int points, final String layout ) throws IOException {
+        final File dir = new File(System.getProperty("oldemo.jmh.data", new File(System.getProperty("java.io.tmpdir"), "oldemo-jmh").getPath()));
+        final File file = new File(dir, "points-" + points + "-" + layout + "-" + SEED + ".poi");
+
+        if( !file.exists() ){
+            if( !dir.isDirectory() && !dir.mkdirs() ){
+                throw new IOException("Unable to create data directory " + dir);
+            }
+
+            // written under a temporary name, so an interrupted run does not leave a partial file behind
+            final File partial = new File(dir, file.getName() + ".tmp");
+            DataGenerator.write(partial, points, regions(layout), SEED, Runtime.getRuntime().availableProcessors());
+            if( !partial.renameTo(file) ){
+                throw new IOException("Unable to rename " + partial + " to " + file);
+            }
+        }
+
+        return file;
+    }
+
+    private static int regions( final String layout ){
+        switch( layout ){
+            case UNIFORM: return 0;
+            case CLUSTERED: return 5;
+            default: throw new IllegalArgumentException("Unknown layout: " + layout);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.PoiService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PoiService.fetchGrid (a 64 x 64 density grid) over a sequence of viewports of one size (see Viewports), to be
+ * compared with BoundingBoxBenchmark, which returns the raw points of the same viewports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={ "-Xms4g", "-Xmx4g" })
+public class GridBenchmark {
+
+    private static final int VIEWPORTS = 1024;
+    private static final int CELLS = 64;
+
+    @Param({ "100000", "1000000", "10000000" }) private int points;
+    @Param({ Datasets.UNIFORM, Datasets.CLUSTERED }) private String layout;
+
+    /**
+     * Viewport width in degrees, from street level to continent.
+     */
+    @Param({ "0.5", "2", "10", "45" }) private double viewport;
+
+    private AnnotationConfigApplicationContext context;
+    private PoiService poiService;
+    private Viewports viewports;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        final File data = Datasets.file(points, layout);
+        context = Services.start(data);
+        poiService = context.getBean(PoiService.class);
+        viewports = new Viewports(data, viewport, VIEWPORTS);
+
+        // the node sums of the index are built on first use
+        poiService.fetchGrid(-180, -90, 180, 90, 1, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop(){
+        context.close();
+    }
+
+    @Benchmark
+    public PointOfInterest[] fetchGrid(){
+        final double[] bounds = viewports.next();
+        return poiService.fetchGrid(bounds[0], bounds[1], bounds[2], bounds[3], CELLS, CELLS);
+    }
+}
@@ -0,0 +1,59 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.service.PoiService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken to load a data set: PoiService.init, mapping the data file and building the live points and the cluster
+ * pyramid (the k-means clusters are not warmed). Each measurement is a single cold start of the service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2)
+@Measurement(iterations=5)
+@Fork(value=1, jvmArgsAppend={ "-Xms4g", "-Xmx4g" })
+public class LoadBenchmark {
+
+    @Param({ "100000", "1000000", "10000000" }) private int points;
+    @Param({ Datasets.UNIFORM, Datasets.CLUSTERED }) private String layout;
+
+    private File data;
+    private AnnotationConfigApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        data = Datasets.file(points, layout);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close(){
+        if( context != null ){
+            context.close();
+            context = null;
+        }
+    }
+
+    @Benchmark
+    public PoiService init(){
+        context = Services.start(data);
+        return context.getBean(PoiService.class);
+    }
+}
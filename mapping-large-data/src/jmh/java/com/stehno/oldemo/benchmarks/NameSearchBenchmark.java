@@ -0,0 +1,93 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.PoiService;
+import com.stehno.oldemo.service.PointFile;
+import com.stehno.oldemo.service.PointStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PoiService.fetchByName as used for type-ahead: the prefixes typed on the way to the names of randomly chosen points
+ * ("p", "po", ... "point-1234"), 10 results each, over the whole map or within 10 degree viewports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={ "-Xms4g", "-Xmx4g" })
+public class NameSearchBenchmark {
+
+    private static final int NAMES = 256;
+    private static final int LIMIT = 10;
+
+    @Param({ "100000", "1000000", "10000000" }) private int points;
+    @Param({ Datasets.UNIFORM, Datasets.CLUSTERED }) private String layout;
+
+    private AnnotationConfigApplicationContext context;
+    private PoiService poiService;
+    private Viewports viewports;
+    private String[] keystrokes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        final File data = Datasets.file(points, layout);
+        context = Services.start(data);
+        poiService = context.getBean(PoiService.class);
+        viewports = new Viewports(data, 10, NAMES);
+
+        final PointStore store = PointFile.open(data).getStore();
+        final Random random = new Random(23L);
+        final List<String> prefixes = new ArrayList<>();
+        for( int i=0; i<NAMES; i++ ){
+            final String name = store.name(random.nextInt(store.size()));
+            for( int length=1; length<=name.length(); length++ ){
+                prefixes.add(name.substring(0, length));
+            }
+        }
+        keystrokes = prefixes.toArray(new String[prefixes.size()]);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop(){
+        context.close();
+    }
+
+    @Benchmark
+    public PointOfInterest[] typeAhead(){
+        return poiService.fetchByName(nextKeystroke(), LIMIT);
+    }
+
+    @Benchmark
+    public PointOfInterest[] typeAheadInViewport(){
+        final double[] bounds = viewports.next();
+        return poiService.fetchByName(nextKeystroke(), bounds[0], bounds[1], bounds[2], bounds[3], LIMIT);
+    }
+
+    private String nextKeystroke(){
+        final String prefix = keystrokes[next];
+        next = (next + 1) % keystrokes.length;
+        return prefix;
+    }
+}
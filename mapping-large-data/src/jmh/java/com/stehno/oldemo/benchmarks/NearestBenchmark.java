@@ -0,0 +1,69 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.PoiService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PoiService.fetchNearest (the 50 nearest points) and fetchWithinRadius (everything within 5 km) around a sequence of
+ * locations taken from the data set (the centers of zero-width Viewports).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={ "-Xms4g", "-Xmx4g" })
+public class NearestBenchmark {
+
+    private static final int LOCATIONS = 1024;
+
+    @Param({ "100000", "1000000", "10000000" }) private int points;
+    @Param({ Datasets.UNIFORM, Datasets.CLUSTERED }) private String layout;
+
+    private AnnotationConfigApplicationContext context;
+    private PoiService poiService;
+    private Viewports locations;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        final File data = Datasets.file(points, layout);
+        context = Services.start(data);
+        poiService = context.getBean(PoiService.class);
+        locations = new Viewports(data, 0, LOCATIONS);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop(){
+        context.close();
+    }
+
+    @Benchmark
+    public PointOfInterest[] nearest(){
+        final double[] location = locations.next();
+        return poiService.fetchNearest(location[0], location[1], 50, Double.POSITIVE_INFINITY);
+    }
+
+    @Benchmark
+    public PointOfInterest[] radius(){
+        final double[] location = locations.next();
+        return poiService.fetchWithinRadius(location[0], location[1], 5000, 0);
+    }
+}
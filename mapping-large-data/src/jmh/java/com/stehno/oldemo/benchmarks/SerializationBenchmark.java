@@ -0,0 +1,88 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stehno.oldemo.dto.PoiBinaryFormat;
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.PoiService;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing fetchByBoundingBox results, as the response converters do: Jackson JSON (the default) and, for comparison,
+ * the binary POI format. The results of a few viewports of one size are fetched up front and written in turn; the
+ * output is counted and discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(value=1, jvmArgsAppend={ "-Xms4g", "-Xmx4g" })
+public class SerializationBenchmark {
+
+    private static final int RESULTS = 8;
+
+    @Param({ "100000", "1000000", "10000000" }) private int points;
+    @Param({ Datasets.UNIFORM, Datasets.CLUSTERED }) private String layout;
+    @Param({ "0.5", "2", "10", "45" }) private double viewport;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private PointOfInterest[][] results;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void fetch() throws IOException {
+        final File data = Datasets.file(points, layout);
+        final Viewports viewports = new Viewports(data, viewport, RESULTS);
+
+        final AnnotationConfigApplicationContext context = Services.start(data);
+        try {
+            final PoiService poiService = context.getBean(PoiService.class);
+
+            results = new PointOfInterest[RESULTS][];
+            for( int i=0; i<RESULTS; i++ ){
+                final double[] bounds = viewports.get(i);
+                results[i] = poiService.fetchByBoundingBox(bounds[0], bounds[1], bounds[2], bounds[3]);
+            }
+        } finally {
+            context.close();
+        }
+    }
+
+    @Benchmark
+    public long json() throws IOException {
+        final CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        objectMapper.writeValue(out, nextResult());
+        return out.getByteCount();
+    }
+
+    @Benchmark
+    public long binary() throws IOException {
+        final CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        PoiBinaryFormat.write(nextResult(), out);
+        return out.getByteCount();
+    }
+
+    private PointOfInterest[] nextResult(){
+        final PointOfInterest[] result = results[next];
+        next = (next + 1) % RESULTS;
+        return result;
+    }
+}
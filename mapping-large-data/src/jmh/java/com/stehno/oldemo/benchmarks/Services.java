@@ -0,0 +1,74 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.config.BoundedCacheManager;
+import com.stehno.oldemo.service.PoiMetrics;
+import com.stehno.oldemo.service.PoiService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Starts a PoiService the way the application does (configured from oldemo.properties and initialized by Spring),
+ * without the web layer.
+ */
+final class Services {
+
+    private Services(){}
+
+    /**
+     * @param data the data file to load
+     * @param settings pairs of property names and values, overriding oldemo.properties
+     * @return the started context, which should be closed when done with
+     */
+    static AnnotationConfigApplicationContext start( final File data, final String... settings ){
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("oldemo.data.file", data.getAbsolutePath());
+        properties.put("oldemo.clusters.warm", "none");
+        for( int i=0; i<settings.length; i+=2 ){
+            properties.put(settings[i], settings[i + 1]);
+        }
+
+        final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.register(ServiceConfig.class);
+        context.refresh();
+        return context;
+    }
+
+    @Configuration
+    @PropertySource("classpath:oldemo.properties")
+    static class ServiceConfig {
+
+        @Value("${oldemo.cache.max-weight:5000000}") private long cacheMaxWeight;
+        @Value("${oldemo.cache.ttl:600}") private long cacheTimeToLive;
+
+        @Bean
+        public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer(){
+            return new PropertySourcesPlaceholderConfigurer();
+        }
+
+        @Bean
+        public CacheManager cacheManager(){
+            return new BoundedCacheManager(cacheMaxWeight, cacheTimeToLive);
+        }
+
+        @Bean
+        public PoiMetrics poiMetrics(){
+            return new PoiMetrics();
+        }
+
+        @Bean
+        public PoiService poiService(){
+            return new PoiService();
+        }
+    }
+}
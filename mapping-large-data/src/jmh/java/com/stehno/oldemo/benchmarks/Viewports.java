@@ -0,0 +1,59 @@
+package com.stehno.oldemo.benchmarks;
+
+import com.stehno.oldemo.service.PointFile;
+import com.stehno.oldemo.service.PointStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A fixed sequence of map viewports ( left, bottom, right, top) of one size, each centered on a randomly chosen point
+ * of the data set, so that the viewports follow the density of the data the way a user browsing the map would.
+ */
+final class Viewports {
+
+    private static final long SEED = 17L;
+
+    private final double[][] bounds;
+    private int next;
+
+    /**
+     * @param data the data file
+     * @param width the width of the viewports in degrees; they are half as high
+     * @param count the number of viewports
+     */
+    Viewports( final File data, final double width, final int count ) throws IOException {
+        final PointStore store = PointFile.open(data).getStore();
+        final Random random = new Random(SEED);
+
+        bounds = new double[count][];
+        for( int i=0; i<count; i++ ){
+            final int row = random.nextInt(store.size());
+            final double lon = store.longitude(row);
+            final double lat = store.latitude(row);
+
+            bounds[i] = new double[]{
+                Math.max(lon - width / 2, -180), Math.max(lat - width / 4, -90),
+                Math.min(lon + width / 2, 180), Math.min(lat + width / 4, 90)
+            };
+        }
+    }
+
+    int size(){
+        return bounds.length;
+    }
+
+    double[] get( final int i ){
+        return bounds[i];
+    }
+
+    /**
+     * @return the next viewport, wrapping around at the end of the sequence
+     */
+    double[] next(){
+        final double[] viewport = bounds[next];
+        next = (next + 1) % bounds.length;
+        return viewport;
+    }
+}
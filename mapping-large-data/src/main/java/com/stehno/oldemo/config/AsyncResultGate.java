@@ -0,0 +1,58 @@
+package com.stehno.oldemo.config;
+
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back the result of a query run off the request thread until Spring has started the asynchronous processing
+ * of its request.
+ *
+ * A DeferredResult set before the request thread has left the handler dispatches the request straight away, so Spring
+ * (3.2.2, on Tomcat 7) no longer sees it as asynchronous and also renders the empty default view: the response body
+ * would start with "{}". The gate of a request is opened once its asynchronous processing has started.
+ */
+public class AsyncResultGate extends HandlerInterceptorAdapter {
+
+    private static final String ATTRIBUTE = AsyncResultGate.class.getName();
+
+    /**
+     * Creates the gate of the current request, which must be opened before its result is set.
+     *
+     * @return the gate
+     */
+    public static CountDownLatch create(){
+        final CountDownLatch gate = new CountDownLatch(1);
+        RequestContextHolder.currentRequestAttributes().setAttribute(ATTRIBUTE, gate, RequestAttributes.SCOPE_REQUEST);
+        return gate;
+    }
+
+    /**
+     * Waits for the gate to be opened.
+     *
+     * @param gate the gate of the request
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return false if the gate was not opened in time (or the wait was interrupted)
+     */
+    public static boolean await( final CountDownLatch gate, final long timeout ){
+        try {
+            return gate.await(timeout, TimeUnit.MILLISECONDS);
+        } catch( InterruptedException ie ){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted( final HttpServletRequest request, final HttpServletResponse response, final Object handler ){
+        final CountDownLatch gate = (CountDownLatch)request.getAttribute(ATTRIBUTE);
+        if( gate != null ){
+            gate.countDown();
+        }
+    }
+}
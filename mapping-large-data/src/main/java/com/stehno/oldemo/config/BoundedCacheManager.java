@@ -0,0 +1,184 @@
+package com.stehno.oldemo.config;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.support.SimpleValueWrapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache manager whose caches all share a single size-bounded Guava cache, so the total amount of cached data stays
+ * within one limit no matter how many distinct keys (or caches) are used.
+ *
+ * Entries are weighed by the number of elements of array values (one point of interest or row per unit) and evicted in
+ * approximately least-recently-used order once the maximum weight is reached, or once they are older than the
+ * time-to-live. Each cache keeps its own hit, miss and eviction counters.
+ */
+public class BoundedCacheManager implements CacheManager {
+
+    private static final Object NULL = new Object();
+
+    private final com.google.common.cache.Cache<CacheKey, Object> entries;
+    private final ConcurrentMap<String, BoundedCache> caches = new ConcurrentHashMap<>();
+
+    /**
+     * @param maximumWeight the maximum total weight of all cached values
+     * @param timeToLive the maximum age of a cached value, in seconds (0 for no limit)
+     */
+    public BoundedCacheManager( final long maximumWeight, final long timeToLive ){
+        final CacheBuilder<CacheKey, Object> builder = CacheBuilder.newBuilder()
+            .maximumWeight(maximumWeight)
+            .weigher(new Weigher<CacheKey, Object>() {
+                @Override
+                public int weigh( final CacheKey key, final Object value ){
+                    return weightOf(value);
+                }
+            })
+            .removalListener(new RemovalListener<CacheKey, Object>() {
+                @Override
+                public void onRemoval( final RemovalNotification<CacheKey, Object> notification ){
+                    if( notification.wasEvicted() ){
+                        final BoundedCache cache = caches.get(notification.getKey().cacheName);
+                        if( cache != null ) cache.evictions.incrementAndGet();
+                    }
+                }
+            });
+
+        if( timeToLive > 0 ){
+            builder.expireAfterWrite(timeToLive, TimeUnit.SECONDS);
+        }
+
+        entries = builder.build();
+    }
+
+    @Override
+    public BoundedCache getCache( final String name ){
+        BoundedCache cache = caches.get(name);
+        if( cache == null ){
+            final BoundedCache created = new BoundedCache(name);
+            cache = caches.putIfAbsent(name, created);
+            if( cache == null ) cache = created;
+        }
+        return cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames(){
+        return Collections.unmodifiableSet(caches.keySet());
+    }
+
+    /**
+     * @return the approximate number of entries across all caches
+     */
+    public long size(){
+        return entries.size();
+    }
+
+    private static int weightOf( final Object value ){
+        if( value instanceof Object[] ) return Math.max(1, ((Object[])value).length);
+        if( value instanceof int[] ) return Math.max(1, ((int[])value).length);
+        return 1;
+    }
+
+    /**
+     * A named view onto the shared entries.
+     */
+    public class BoundedCache implements Cache {
+
+        private final String name;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        BoundedCache( final String name ){
+            this.name = name;
+        }
+
+        @Override
+        public String getName(){
+            return name;
+        }
+
+        @Override
+        public Object getNativeCache(){
+            return entries;
+        }
+
+        @Override
+        public ValueWrapper get( final Object key ){
+            final Object value = entries.getIfPresent(new CacheKey(name, key));
+            if( value == null ){
+                misses.incrementAndGet();
+                return null;
+            }
+
+            hits.incrementAndGet();
+            return new SimpleValueWrapper(value == NULL ? null : value);
+        }
+
+        @Override
+        public void put( final Object key, final Object value ){
+            entries.put(new CacheKey(name, key), value != null ? value : NULL);
+        }
+
+        @Override
+        public void evict( final Object key ){
+            entries.invalidate(new CacheKey(name, key));
+        }
+
+        @Override
+        public void clear(){
+            final Collection<CacheKey> keys = new ArrayList<>();
+            for( final Iterator<CacheKey> it = entries.asMap().keySet().iterator(); it.hasNext(); ){
+                final CacheKey key = it.next();
+                if( key.cacheName.equals(name) ) keys.add(key);
+            }
+            entries.invalidateAll(keys);
+        }
+
+        public long getHitCount(){
+            return hits.get();
+        }
+
+        public long getMissCount(){
+            return misses.get();
+        }
+
+        public long getEvictionCount(){
+            return evictions.get();
+        }
+    }
+
+    private static class CacheKey {
+        final String cacheName;
+        final Object key;
+
+        CacheKey( final String cacheName, final Object key ){
+            this.cacheName = cacheName;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals( final Object other ){
+            if( !(other instanceof CacheKey) ) return false;
+            final CacheKey that = (CacheKey)other;
+            return cacheName.equals(that.cacheName) && (key == null ? that.key == null : key.equals(that.key));
+        }
+
+        @Override
+        public int hashCode(){
+            return cacheName.hashCode() * 31 + (key != null ? key.hashCode() : 0);
+        }
+    }
+}
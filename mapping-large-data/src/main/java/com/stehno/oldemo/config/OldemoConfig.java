@@ -2,14 +2,22 @@ package com.stehno.oldemo.config;
 
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
-import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableMBeanExport;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.web.servlet.View;
 import org.springframework.web.servlet.ViewResolver;
 import org.springframework.web.servlet.config.annotation.DefaultServletHandlerConfigurer;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 import org.springframework.web.servlet.view.ContentNegotiatingViewResolver;
 import org.springframework.web.servlet.view.InternalResourceViewResolver;
@@ -17,24 +25,57 @@ import org.springframework.web.servlet.view.JstlView;
 import org.springframework.web.servlet.view.json.MappingJackson2JsonView;
 
 import java.util.Arrays;
+import java.util.List;
 
 /**
- * Spring configuration.
+ * Spring configuration. Application settings are read from the oldemo.properties file on the classpath. The metrics
+ * (see PoiMetrics) are exported to the platform MBean server.
  */
 @Configuration
 @EnableWebMvc
 @EnableCaching
+@EnableMBeanExport
+@PropertySource("classpath:oldemo.properties")
 @ComponentScan({
     "com.stehno.oldemo.controller",
     "com.stehno.oldemo.service"
 })
 public class OldemoConfig extends WebMvcConfigurerAdapter {
 
+    @Value("${oldemo.cache.max-weight:5000000}") private long cacheMaxWeight;
+    @Value("${oldemo.cache.ttl:600}") private long cacheTimeToLive;
+
+    @Bean
+    public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer(){
+        return new PropertySourcesPlaceholderConfigurer();
+    }
+
     @Override
     public void configureDefaultServletHandling(DefaultServletHandlerConfigurer configurer) {
         configurer.enable();
     }
 
+    /**
+     * The handlers return ResponseEntity objects, which are written by the message converters rather than the views,
+     * so the binary POI format is registered here alongside the standard converters. JSON remains the default.
+     */
+    @Override
+    public void configureMessageConverters( final List<HttpMessageConverter<?>> converters ){
+        converters.add(new ByteArrayHttpMessageConverter());
+        converters.add(new StringHttpMessageConverter());
+        converters.add(new MappingJackson2HttpMessageConverter());
+        converters.add(new PoiBinaryMessageConverter());
+    }
+
+    /**
+     * The results of the queries run off the request threads wait for the asynchronous processing to start (see
+     * AsyncResultGate).
+     */
+    @Override
+    public void addInterceptors( final InterceptorRegistry registry ){
+        registry.addInterceptor(new AsyncResultGate());
+    }
+
     @Bean
     public ViewResolver viewResolver(){
         final InternalResourceViewResolver internalResourceViewResolver = new InternalResourceViewResolver();
@@ -50,8 +91,12 @@ public class OldemoConfig extends WebMvcConfigurerAdapter {
         return viewResolver;
     }
 
+    /**
+     * All caches share one bounded store, weighed in points of interest, so a flood of distinct requests cannot grow
+     * the heap without limit.
+     */
     @Bean
     public CacheManager cacheManager(){
-        return new ConcurrentMapCacheManager();
+        return new BoundedCacheManager(cacheMaxWeight, cacheTimeToLive);
     }
 }
@@ -0,0 +1,76 @@
+package com.stehno.oldemo.config;
+
+import com.stehno.oldemo.dto.PoiBinaryFormat;
+import com.stehno.oldemo.dto.PointOfInterest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts arrays of points of interest to and from the compact binary format (see PoiBinaryFormat), selected when
+ * the request Accept header asks for application/vnd.oldemo.poi.
+ */
+public class PoiBinaryMessageConverter extends AbstractHttpMessageConverter<PointOfInterest[]> {
+
+    public static final MediaType MEDIA_TYPE = MediaType.parseMediaType(PoiBinaryFormat.MEDIA_TYPE);
+
+    private static final Logger log = LogManager.getLogger(PoiBinaryMessageConverter.class);
+
+    public PoiBinaryMessageConverter(){
+        super(MEDIA_TYPE);
+    }
+
+    @Override
+    protected boolean supports( final Class<?> clazz ){
+        return PointOfInterest[].class.equals(clazz);
+    }
+
+    @Override
+    protected PointOfInterest[] readInternal( final Class<? extends PointOfInterest[]> clazz, final HttpInputMessage inputMessage ) throws IOException {
+        return PoiBinaryFormat.read(new BufferedInputStream(inputMessage.getBody()));
+    }
+
+    @Override
+    protected void writeInternal( final PointOfInterest[] pointsOfInterest, final HttpOutputMessage outputMessage ) throws IOException {
+        final long started = System.nanoTime();
+
+        final CountingOutputStream counter = new CountingOutputStream(outputMessage.getBody());
+        final OutputStream out = new BufferedOutputStream(counter, 8192);
+        PoiBinaryFormat.write(pointsOfInterest, out);
+        out.flush();
+
+        if( log.isDebugEnabled() ){
+            log.debug("Encoded {} points of interest in {} bytes ({} us)", pointsOfInterest.length, counter.count, (System.nanoTime() - started) / 1000);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream( final OutputStream out ){
+            super(out);
+        }
+
+        @Override
+        public void write( final int b ) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
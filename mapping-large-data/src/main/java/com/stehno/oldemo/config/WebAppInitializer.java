@@ -26,6 +26,7 @@ public class WebAppInitializer implements WebApplicationInitializer {
 
         final ServletRegistration.Dynamic servlet = servletContext.addServlet( "spring", new DispatcherServlet( root ) );
         servlet.setLoadOnStartup( 0 );
+        servlet.setAsyncSupported( true );
         servlet.addMapping( "/" );
     }
 }
\ No newline at end of file
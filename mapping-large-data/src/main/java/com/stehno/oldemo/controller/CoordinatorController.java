@@ -0,0 +1,445 @@
+package com.stehno.oldemo.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stehno.oldemo.dto.PoiBinaryFormat;
+import com.stehno.oldemo.dto.PoiDelta;
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.ClusterMerger;
+import com.stehno.oldemo.service.DensityGrid;
+import com.stehno.oldemo.service.IntList;
+import com.stehno.oldemo.service.PoiMetrics;
+import com.stehno.oldemo.service.PoiMetrics.Endpoint;
+import com.stehno.oldemo.service.Polygon;
+import com.stehno.oldemo.service.Regions;
+import com.stehno.oldemo.service.ShardClient;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Coordinator version of the PoiController fetch endpoints, active with the "coordinator" Spring profile. Each query is
+ * sent to the shards whose longitude range overlaps it (see ShardClient) and their results are merged, so the map
+ * pages work against a coordinator unchanged. Nearest-point and radius queries, and name searches without bounds, are
+ * sent to every shard; polygon queries go to the shards overlapping the bounding box of their areas.
+ *
+ * If some of the shards fail or time out, the results of the others are returned with an X-Missing-Shards header
+ * listing the missing shards; if none of them respond the status is 503 (Service Unavailable).
+ */
+@Controller
+@Profile("coordinator")
+@RequestMapping(value="/poi", consumes=MediaType.APPLICATION_JSON_VALUE, produces={ MediaType.APPLICATION_JSON_VALUE, PoiBinaryFormat.MEDIA_TYPE })
+public class CoordinatorController {
+
+    private static final Logger log = LogManager.getLogger(CoordinatorController.class);
+    private static final String MISSING_SHARDS = "X-Missing-Shards";
+
+    @Autowired private ShardClient shardClient;
+    @Autowired private PoiMetrics metrics;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${oldemo.zoom.threshold:8}") private int zoomThreshold;
+    @Value("${oldemo.clusters.count:200}") private int clusterCount;
+    @Value("${oldemo.clusters.iterations:5}") private int clusteringIterations;
+    @Value("${oldemo.nearest.max-count:1000}") private int nearestMaxCount;
+    @Value("${oldemo.names.max-limit:1000}") private int namesMaxLimit;
+    @Value("${oldemo.grid.max-cells:16384}") private int gridMaxCells;
+    @Value("${oldemo.grid.budget:5000}") private int gridBudget;
+
+    /**
+     * Retrieves all of the points of interest within the given bounds from the overlapping shards.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @return a response entity containing an array of all PointOfInterest objects inside the given bounds
+     */
+    @RequestMapping(value="/v2/fetch/{bounds:.+}", method=RequestMethod.GET)
+    public ResponseEntity<PointOfInterest[]> fetchWithin( @PathVariable final String bounds ){
+        final long start = System.nanoTime();
+        final double[] box = box(bounds);
+        final ShardClient.Gathered gathered = shardClient.gather(box[0], box[2], "/v2/fetch/" + path(box));
+
+        return respond(Endpoint.V2, start, bounds, gathered, gathered.concatenated());
+    }
+
+    /**
+     * Below the zoom threshold, merges the k-means clusters of all of the shards into at most oldemo.clusters.count
+     * clusters, weighted by their counts. Otherwise, retrieves the points within the given bounds.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param zoom the zoom level
+     * @return
+     */
+    @RequestMapping(value="/v3/fetch/{bounds}/{zoom}", method=RequestMethod.GET)
+    public ResponseEntity<PointOfInterest[]> fetchWithin( @PathVariable final String bounds, @PathVariable final int zoom ){
+        final long start = System.nanoTime();
+        final double[] box = box(bounds);
+
+        if( zoom < zoomThreshold ){
+            // the clusters cover all of the data regardless of bounds, so every shard is asked
+            final ShardClient.Gathered gathered = shardClient.gather(-180, 180, "/v3/fetch/" + path(box) + "/" + zoom);
+            return respond(Endpoint.V3, start, bounds, gathered, ClusterMerger.reduce(gathered.getResults(), clusterCount, clusteringIterations));
+        }
+
+        final ShardClient.Gathered gathered = shardClient.gather(box[0], box[2], "/v3/fetch/" + path(box) + "/" + zoom);
+        return respond(Endpoint.V3, start, bounds, gathered, gathered.concatenated());
+    }
+
+    /**
+     * Below the zoom threshold, merges the pre-computed clusters of the overlapping shards which share a cell of the
+     * zoom level grid, weighted by their counts. Otherwise, retrieves the points within the given bounds.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param zoom the zoom level
+     * @return a response entity containing an array of the clusters or points of interest inside the given bounds
+     */
+    @RequestMapping(value="/v4/fetch/{bounds}/{zoom}", method=RequestMethod.GET)
+    public ResponseEntity<PointOfInterest[]> fetchClustered( @PathVariable final String bounds, @PathVariable final int zoom ){
+        final long start = System.nanoTime();
+        final double[] box = box(bounds);
+        final ShardClient.Gathered gathered = shardClient.gather(box[0], box[2], "/v4/fetch/" + path(box) + "/" + zoom);
+
+        return respond(Endpoint.V4, start, bounds, gathered, zoom < zoomThreshold ? ClusterMerger.byCell(gathered.getResults(), zoom) : gathered.concatenated());
+    }
+
+    /**
+     * Retrieves the points of interest nearest to the given location: the nearest points of every shard, of which the
+     * overall nearest are kept. This endpoint accepts any request content type.
+     *
+     * @param longitude the longitude of the location
+     * @param latitude the latitude of the location
+     * @param count the number of points to retrieve, at most oldemo.nearest.max-count
+     * @param meters the maximum distance of the points in meters (optional)
+     * @return a response entity containing the nearest points, nearest first, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/nearest/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public ResponseEntity<PointOfInterest[]> fetchNearest( @RequestParam("longitude") final double longitude, @RequestParam("latitude") final double latitude,
+                                                           @RequestParam(value="count", defaultValue="10") final int count,
+                                                           @RequestParam(value="meters", required=false) final Double meters ){
+        final long start = System.nanoTime();
+        if( !isLocation(longitude, latitude) || count < 1 || count > nearestMaxCount || (meters != null && !(meters >= 0)) ){
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        // the nearest points may be in any shard, so every shard is asked
+        final String query = location(longitude, latitude) + "&count=" + count + (meters != null ? "&meters=" + meters : "");
+        final ShardClient.Gathered gathered = shardClient.gather(-180, 180, "/nearest/fetch?" + query);
+
+        return respond(Endpoint.NEAREST, start, query, gathered, gathered.nearest(longitude, latitude, count));
+    }
+
+    /**
+     * Retrieves the points of interest within the given great-circle distance of a location from every shard. This
+     * endpoint accepts any request content type.
+     *
+     * @param longitude the longitude of the location
+     * @param latitude the latitude of the location
+     * @param meters the distance in meters
+     * @param limit the maximum number of points to return, the nearest ones being kept (0 for no limit)
+     * @return a response entity containing the points within the distance, nearest first, or a 400 status if the
+     * parameters are invalid
+     */
+    @RequestMapping(value="/radius/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public ResponseEntity<PointOfInterest[]> fetchWithinRadius( @RequestParam("longitude") final double longitude, @RequestParam("latitude") final double latitude,
+                                                                @RequestParam("meters") final double meters,
+                                                                @RequestParam(value="limit", defaultValue="0") final int limit ){
+        final long start = System.nanoTime();
+        if( !isLocation(longitude, latitude) || !(meters >= 0) || limit < 0 ){
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        final String query = location(longitude, latitude) + "&meters=" + meters + "&limit=" + limit;
+        final ShardClient.Gathered gathered = shardClient.gather(-180, 180, "/radius/fetch?" + query);
+
+        return respond(Endpoint.RADIUS, start, query, gathered, gathered.nearest(longitude, latitude, limit));
+    }
+
+    /**
+     * Retrieves the points of interest whose names start with the given prefix from the shards overlapping the bounds
+     * (or all of them), merged in name order. This endpoint accepts any request content type.
+     *
+     * @param prefix the prefix of the names
+     * @param bounds ( left, bottom, right, top) to only retrieve the points inside them (optional)
+     * @param limit the maximum number of points to retrieve, at most oldemo.names.max-limit
+     * @return a response entity containing the matching points, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/names/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public ResponseEntity<PointOfInterest[]> fetchByName( @RequestParam("prefix") final String prefix,
+                                                          @RequestParam(value="bounds", required=false) final String bounds,
+                                                          @RequestParam(value="limit", defaultValue="10") final int limit ) throws UnsupportedEncodingException {
+        final long start = System.nanoTime();
+        if( limit < 1 || limit > namesMaxLimit ){
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        String query = "prefix=" + URLEncoder.encode(prefix, "UTF-8") + "&limit=" + limit;
+        final ShardClient.Gathered gathered;
+        if( bounds != null ){
+            final double[] box = box(bounds);
+            query += "&bounds=" + path(box);
+            gathered = shardClient.gather(box[0], box[2], "/names/fetch?" + query);
+        } else {
+            gathered = shardClient.gather(-180, 180, "/names/fetch?" + query);
+        }
+
+        return respond(Endpoint.NAMES, start, query, gathered, gathered.byName(limit));
+    }
+
+    /**
+     * Aggregates the points of interest within the given bounds on a grid (see PoiController): each overlapping shard
+     * aggregates its own points on the same grid and their cells are merged, weighted by their counts. This endpoint
+     * accepts any request content type.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param columns the number of cells along the longitude range
+     * @param rows the number of cells along the latitude range
+     * @return a response entity containing the cell clusters, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/grid/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public ResponseEntity<PointOfInterest[]> fetchGrid( @RequestParam("bounds") final String bounds,
+                                                        @RequestParam(value="columns", defaultValue="64") final int columns,
+                                                        @RequestParam(value="rows", defaultValue="64") final int rows ){
+        final long start = System.nanoTime();
+        final double[] box = box(bounds);
+        if( !isGrid(box, columns, rows) ){
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        final String query = "bounds=" + path(box) + "&columns=" + columns + "&rows=" + rows;
+        final ShardClient.Gathered gathered = shardClient.gather(box[0], box[2], "/grid/fetch?" + query);
+
+        return respond(Endpoint.GRID, start, query, gathered, ClusterMerger.byGrid(gathered.getResults(), grid(box, columns, rows)));
+    }
+
+    /**
+     * Retrieves the points of interest within the given bounds, or their aggregated grid if there are more of them than
+     * the budget (see PoiController). The merged grid of the shards is fetched first, which also counts the points.
+     * This endpoint accepts any request content type.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param budget the maximum number of points to return (oldemo.grid.budget by default)
+     * @param columns the number of cells along the longitude range
+     * @param rows the number of cells along the latitude range
+     * @return a response entity containing the points or cell clusters, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/auto/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public ResponseEntity<PointOfInterest[]> fetchWithinBudget( @RequestParam("bounds") final String bounds,
+                                                                @RequestParam(value="budget", required=false) final Integer budget,
+                                                                @RequestParam(value="columns", defaultValue="64") final int columns,
+                                                                @RequestParam(value="rows", defaultValue="64") final int rows ){
+        final long start = System.nanoTime();
+        final double[] box = box(bounds);
+        if( !isGrid(box, columns, rows) || (budget != null && budget < 0) ){
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        final String query = "bounds=" + path(box) + "&columns=" + columns + "&rows=" + rows;
+        final ShardClient.Gathered cells = shardClient.gather(box[0], box[2], "/grid/fetch?" + query);
+        final DensityGrid grid = grid(box, columns, rows);
+        final PointOfInterest[] merged = ClusterMerger.byGrid(cells.getResults(), grid);
+
+        if( grid.total() > (budget != null ? budget : gridBudget) || cells.getMissing().size() == cells.getQueried() ){
+            return respond(Endpoint.AUTO, start, query, cells, merged);
+        }
+
+        final ShardClient.Gathered points = shardClient.gather(box[0], box[2], "/v2/fetch/" + path(box));
+        return respond(Endpoint.AUTO, start, query, points, points.concatenated());
+    }
+
+    /**
+     * Retrieves the change in the points of interest within a map view moved from the previous bounds to the current
+     * ones (see PoiController): the strips making up each difference (see Regions.difference) are fetched from the
+     * overlapping shards and the points are checked against both boxes. This endpoint accepts any request content type.
+     *
+     * @param previous ( left, bottom, right, top) of the previous view
+     * @param current ( left, bottom, right, top) of the current view
+     * @param departed whether or not to include the ids of the points that left the view
+     * @return a response entity containing the PoiDelta
+     */
+    @RequestMapping(value="/delta/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE, produces=MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<PoiDelta> fetchDelta( @RequestParam("previous") final String previous, @RequestParam("current") final String current,
+                                                @RequestParam(value="departed", defaultValue="false") final boolean departed ){
+        final long start = System.nanoTime();
+        final double[] previousBox = box(previous);
+        final double[] currentBox = box(current);
+
+        final ShardClient.Gathered entered = shardClient.gatherWithin(Regions.difference(currentBox, previousBox));
+        final ShardClient.Gathered left = departed ? shardClient.gatherWithin(Regions.difference(previousBox, currentBox)) : null;
+
+        final HttpHeaders headers = new HttpHeaders();
+        final Set<Integer> missing = new TreeSet<>(entered.getMissing());
+        if( left != null ) missing.addAll(left.getMissing());
+        if( !missing.isEmpty() ){
+            headers.set(MISSING_SHARDS, StringUtils.join(missing, ','));
+
+            if( entered.getMissing().size() == entered.getQueried() ){
+                log.warn("[{}]: No shards responded for ({}) -> ({})", Endpoint.DELTA, previous, current);
+                return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+            }
+        }
+
+        final List<PointOfInterest> enteredPoints = new ArrayList<>();
+        for( final PointOfInterest poi : entered.concatenated() ){
+            if( Regions.inside(currentBox, poi.getLongitude(), poi.getLatitude()) && !Regions.inside(previousBox, poi.getLongitude(), poi.getLatitude()) ){
+                enteredPoints.add(poi);
+            }
+        }
+
+        int[] departedIds = null;
+        if( left != null ){
+            final IntList ids = new IntList();
+            for( final PointOfInterest poi : left.concatenated() ){
+                if( Regions.inside(previousBox, poi.getLongitude(), poi.getLatitude()) && !Regions.inside(currentBox, poi.getLongitude(), poi.getLatitude()) ){
+                    ids.add(poi.getId());
+                }
+            }
+            departedIds = ids.toArray();
+        }
+
+        final PoiDelta delta = new PoiDelta(enteredPoints.toArray(new PointOfInterest[enteredPoints.size()]), departedIds);
+
+        metrics.request(Endpoint.DELTA, start, enteredPoints.size() + (departedIds != null ? departedIds.length : 0));
+        log.debug("[{}]: Responding with {} entered points of interest for ({}) -> ({})", Endpoint.DELTA, enteredPoints.size(), previous, current);
+
+        return new ResponseEntity<>(delta, headers, HttpStatus.OK);
+    }
+
+    /**
+     * Retrieves all of the points of interest inside the GeoJSON Polygon or MultiPolygon (or Feature holding one)
+     * posted as the request body, from the shards overlapping its bounding box. This endpoint accepts any request
+     * content type.
+     *
+     * @param geoJson the GeoJSON area
+     * @return a response entity containing the points inside the area, or a 400 status if the area is not valid
+     */
+    @RequestMapping(value="/polygon/fetch", method=RequestMethod.POST, consumes=MediaType.ALL_VALUE)
+    public ResponseEntity<PointOfInterest[]> fetchWithinPolygon( @RequestBody final String geoJson ){
+        final long start = System.nanoTime();
+        final Polygon polygon;
+        try {
+            polygon = Polygon.fromGeoJson(objectMapper.readTree(geoJson));
+        } catch( IOException | IllegalArgumentException e ){
+            log.warn("[{}]: Rejected area: {}", Endpoint.POLYGON, e.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        final ShardClient.Gathered gathered = shardClient.post(polygon.left(), polygon.right(), "/polygon/fetch", geoJson);
+        return respond(Endpoint.POLYGON, start, polygon.edges() + " edges", gathered, gathered.concatenated());
+    }
+
+    /**
+     * Counts the points of interest inside each of the posted polygons (see PoiController) on the shards overlapping
+     * their bounding boxes and adds up the counts. This endpoint accepts any request content type.
+     *
+     * @param geoJson the GeoJSON areas
+     * @return a response entity containing the number of points inside each area, in order, or a 400 status if the
+     * areas are not valid
+     */
+    @RequestMapping(value="/polygon/counts", method=RequestMethod.POST, consumes=MediaType.ALL_VALUE, produces=MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<int[]> countWithinPolygons( @RequestBody final String geoJson ){
+        final long start = System.nanoTime();
+        final List<Polygon> polygons;
+        try {
+            polygons = Polygon.listFromGeoJson(objectMapper.readTree(geoJson));
+        } catch( IOException | IllegalArgumentException e ){
+            log.warn("[{}]: Rejected areas: {}", Endpoint.POLYGON, e.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        if( polygons.isEmpty() ){
+            return new ResponseEntity<>(new int[0], HttpStatus.OK);
+        }
+
+        double left = Double.POSITIVE_INFINITY, right = Double.NEGATIVE_INFINITY;
+        for( final Polygon polygon : polygons ){
+            left = Math.min(left, polygon.left());
+            right = Math.max(right, polygon.right());
+        }
+
+        final ShardClient.Summed summed = shardClient.sum(left, right, "/polygon/counts", geoJson);
+
+        final HttpHeaders headers = new HttpHeaders();
+        if( !summed.getMissing().isEmpty() ){
+            headers.set(MISSING_SHARDS, StringUtils.join(summed.getMissing(), ','));
+        }
+        if( summed.getCounts() == null ){
+            log.warn("[{}]: No shards responded for the counts of {} areas", Endpoint.POLYGON, polygons.size());
+            return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        metrics.request(Endpoint.POLYGON, start, polygons.size());
+        log.debug("[{}]: Responding with the counts of {} areas from {} of {} shards", Endpoint.POLYGON, polygons.size(),
+            summed.getQueried() - summed.getMissing().size(), summed.getQueried());
+
+        return new ResponseEntity<>(summed.getCounts(), headers, HttpStatus.OK);
+    }
+
+    private ResponseEntity<PointOfInterest[]> respond( final Endpoint endpoint, final long start, final String query, final ShardClient.Gathered gathered, final PointOfInterest[] pointsOfInterest ){
+        final HttpHeaders headers = new HttpHeaders();
+        if( !gathered.getMissing().isEmpty() ){
+            headers.set(MISSING_SHARDS, StringUtils.join(gathered.getMissing(), ','));
+
+            if( gathered.getMissing().size() == gathered.getQueried() ){
+                log.warn("[{}]: No shards responded for ({})", endpoint, query);
+                return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+            }
+        }
+
+        metrics.request(endpoint, start, pointsOfInterest.length);
+        log.debug("[{}]: Responding with {} points of interest for ({}) from {} of {} shards", endpoint, pointsOfInterest.length, query,
+            gathered.getQueried() - gathered.getMissing().size(), gathered.getQueried());
+
+        return new ResponseEntity<>(pointsOfInterest, headers, HttpStatus.OK);
+    }
+
+    private boolean isGrid( final double[] box, final int columns, final int rows ){
+        return box[0] < box[2] && box[1] < box[3] && columns >= 1 && rows >= 1 && (long)columns * rows <= gridMaxCells;
+    }
+
+    private static DensityGrid grid( final double[] box, final int columns, final int rows ){
+        return new DensityGrid(box[0], box[1], box[2], box[3], columns, rows);
+    }
+
+    private static boolean isLocation( final double longitude, final double latitude ){
+        return Math.abs(longitude) <= 180 && Math.abs(latitude) <= 90;
+    }
+
+    private static String location( final double longitude, final double latitude ){
+        return "longitude=" + longitude + "&latitude=" + latitude;
+    }
+
+    private static String path( final double[] box ){
+        return box[0] + "," + box[1] + "," + box[2] + "," + box[3];
+    }
+
+    private static double[] box( final String bounds ){
+        final double[] box = new double[4];
+
+        final String[] sides = bounds.split(",");
+        for( int i=0; i<4; i++ ){
+            box[i] = Double.parseDouble( sides[i].trim() );
+        }
+
+        return box;
+    }
+}
@@ -0,0 +1,38 @@
+package com.stehno.oldemo.controller;
+
+import com.stehno.oldemo.service.PoiMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the request and engine metrics (see PoiMetrics), which are also available over JMX.
+ */
+@Controller
+@RequestMapping(value="/poi/metrics", consumes=MediaType.ALL_VALUE, produces=MediaType.APPLICATION_JSON_VALUE)
+public class MetricsController {
+
+    @Autowired private PoiMetrics metrics;
+
+    /**
+     * Retrieves the current metrics: the distributions of the request latencies, result counts and engine timings
+     * (count, mean, percentiles and maximum) and the cache hit and miss counts.
+     *
+     * @return a response entity containing the "metrics" and "caches" objects, keyed by name
+     */
+    @RequestMapping(method=RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> fetch(){
+        final Map<String, Object> body = new LinkedHashMap<>();
+        body.put("metrics", metrics.getMetrics());
+        body.put("caches", metrics.getCaches());
+
+        return new ResponseEntity<>(body, HttpStatus.OK);
+    }
+}
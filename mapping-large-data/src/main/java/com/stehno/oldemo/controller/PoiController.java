@@ -1,29 +1,89 @@
 package com.stehno.oldemo.controller;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stehno.oldemo.config.AsyncResultGate;
+import com.stehno.oldemo.dto.PoiBinaryFormat;
+import com.stehno.oldemo.dto.PoiChange;
+import com.stehno.oldemo.dto.PoiDelta;
 import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.PoiMetrics;
+import com.stehno.oldemo.service.PoiMetrics.Endpoint;
 import com.stehno.oldemo.service.PoiService;
+import com.stehno.oldemo.service.PointSink;
+import com.stehno.oldemo.service.Polygon;
+import com.stehno.oldemo.service.QueryExecutor;
+import com.stehno.oldemo.service.QueryExecutor.Lane;
+import com.stehno.oldemo.service.Tile;
+import com.stehno.oldemo.service.TileService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Simple controller for serving up a data set for "points of interest".
+ *
+ * The array responses are JSON by default, or the compact binary format (see PoiBinaryFormat) when the request
+ * Accept header asks for application/vnd.oldemo.poi.
+ *
+ * The latency and result count of each request are recorded in the PoiMetrics; the per-request log lines are at debug
+ * level.
+ *
+ * The queries are answered asynchronously, run by the QueryExecutor in the cheap lane or, for the full fetch, k-means
+ * clusters and polygons, the expensive one, so that the container threads are not held while they run. A query turned
+ * away by a full lane is answered with a 503 (Service Unavailable) and a Retry-After header. The streaming endpoints,
+ * which write to the response as they go, and the writes run on the request thread.
  */
 @Controller
-@RequestMapping(value="/poi", consumes=MediaType.APPLICATION_JSON_VALUE, produces= MediaType.APPLICATION_JSON_VALUE)
+@Profile("!coordinator")
+@RequestMapping(value="/poi", consumes=MediaType.APPLICATION_JSON_VALUE, produces={ MediaType.APPLICATION_JSON_VALUE, PoiBinaryFormat.MEDIA_TYPE })
 public class PoiController {
 
     private static final Logger log = LogManager.getLogger(PoiController.class);
-    private static final int ZOOM_THRESHOLD = 8;
 
     @Autowired private PoiService poiService;
+    @Autowired private TileService tileService;
+    @Autowired private PoiMetrics metrics;
+    @Autowired private QueryExecutor queryExecutor;
+
+    @Value("${oldemo.zoom.threshold:8}") private int zoomThreshold;
+    @Value("${oldemo.tiles.max-age:300}") private int tileMaxAge;
+    @Value("${oldemo.nearest.max-count:1000}") private int nearestMaxCount;
+    @Value("${oldemo.names.max-limit:1000}") private int namesMaxLimit;
+    @Value("${oldemo.grid.max-cells:16384}") private int gridMaxCells;
+    @Value("${oldemo.grid.budget:5000}") private int gridBudget;
+    @Value("${oldemo.async.timeout:30000}") private long asyncTimeout;
+    @Value("${oldemo.async.retry-after:1}") private int retryAfter;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
     /**
      * Retrieves all of the data in the database each time it's called.
@@ -31,12 +91,19 @@ public class PoiController {
      * @return a response entity containing an array of all PointOfInterest objects
      */
     @RequestMapping(value="/v1/fetch", method=RequestMethod.GET)
-    public ResponseEntity<PointOfInterest[]> fetch(){
-        final PointOfInterest[] pointsOfInterest = poiService.fetchAll();
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetch(){
+        final long start = System.nanoTime();
+        return submit(Lane.EXPENSIVE, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                final PointOfInterest[] pointsOfInterest = poiService.fetchAll();
 
-        log.info("[v1]: Responding with {} points of interest.", pointsOfInterest.length);
+                metrics.request(Endpoint.V1, start, pointsOfInterest.length);
+                log.debug("[v1]: Responding with {} points of interest.", pointsOfInterest.length);
 
-        return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK );
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK );
+            }
+        });
     }
 
     /**
@@ -45,13 +112,20 @@ public class PoiController {
      * @param bounds ( left, bottom, right, top)
      * @return a response entity containing an array of all PointOfInterest objects inside the given bounds
      */
-    @RequestMapping(value="/v2/fetch/{bounds}", method=RequestMethod.GET)
-    public ResponseEntity<PointOfInterest[]> fetchWithin( @PathVariable final String bounds ){
-        final PointOfInterest[] pointsOfInterest = fetchBounded(bounds);
+    @RequestMapping(value="/v2/fetch/{bounds:.+}", method=RequestMethod.GET)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchWithin( @PathVariable final String bounds ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                final PointOfInterest[] pointsOfInterest = fetchBounded(bounds);
 
-        log.info("[v2]: Responding with {} points of interest for bounds ({})", pointsOfInterest.length, bounds);
+                metrics.request(Endpoint.V2, start, pointsOfInterest.length);
+                log.debug("[v2]: Responding with {} points of interest for bounds ({})", pointsOfInterest.length, bounds);
 
-        return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK );
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK );
+            }
+        });
     }
 
     /**
@@ -67,18 +141,596 @@ public class PoiController {
      * @return
      */
     @RequestMapping(value="/v3/fetch/{bounds}/{zoom}", method=RequestMethod.GET)
-    public ResponseEntity<PointOfInterest[]> fetchWithin( @PathVariable final String bounds, @PathVariable final int zoom ){
-        final PointOfInterest[] pointsOfInterest;
-        if( zoom < ZOOM_THRESHOLD ){
-            pointsOfInterest = poiService.fetchClusters();
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchWithin( @PathVariable final String bounds, @PathVariable final int zoom ){
+        final long start = System.nanoTime();
+        return submit(zoom < zoomThreshold ? Lane.EXPENSIVE : Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                final PointOfInterest[] pointsOfInterest;
+                if( zoom < zoomThreshold ){
+                    pointsOfInterest = poiService.fetchClusters();
 
-        } else {
-            pointsOfInterest = fetchBounded(bounds);
+                } else {
+                    pointsOfInterest = fetchBounded(bounds);
+                }
+
+                metrics.request(Endpoint.V3, start, pointsOfInterest.length);
+                log.debug("[v3]: Responding with {} points of interest for bounds ({}) @ zoom {}", pointsOfInterest.length, bounds, zoom);
+
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK );
+            }
+        });
+    }
+
+    /**
+     *  Retrieves the points of interest based on the given zoom and bounding box.
+     *
+     *  If the zoom is less than the configured threshold, it will return the pre-computed clusters for that zoom level
+     *  which are inside the given bounds.
+     *
+     *  If the zoom is greater than the configured threshold, it will return a view of the data within the given bounds.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param zoom the zoom level
+     * @return a response entity containing an array of the clusters or points of interest inside the given bounds
+     */
+    @RequestMapping(value="/v4/fetch/{bounds}/{zoom}", method=RequestMethod.GET)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchClustered( @PathVariable final String bounds, @PathVariable final int zoom ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                final PointOfInterest[] pointsOfInterest;
+                if( zoom < zoomThreshold ){
+                    final double[] box = box(bounds);
+                    pointsOfInterest = poiService.fetchClusters( box[0], box[1], box[2], box[3], zoom );
+
+                } else {
+                    pointsOfInterest = fetchBounded(bounds);
+                }
+
+                metrics.request(Endpoint.V4, start, pointsOfInterest.length);
+                log.debug("[v4]: Responding with {} points of interest for bounds ({}) @ zoom {}", pointsOfInterest.length, bounds, zoom);
+
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK );
+            }
+        });
+    }
+
+    /**
+     * Retrieves a single slippy-map tile: the clusters of the tile below the zoom threshold, or the points of interest
+     * inside it otherwise. Tiles are served from a server-side cache with an ETag and Cache-Control headers so that they
+     * may also be cached by the browser or any HTTP cache in between. This endpoint accepts any request content type.
+     *
+     * @param zoom the zoom level
+     * @param x the tile column
+     * @param y the tile row
+     * @param ifNoneMatch the entity tag of a previously fetched copy of the tile, if any
+     * @return a response entity containing the JSON array of the tile contents
+     */
+    @RequestMapping(value="/tiles/{zoom}/{x}/{y}", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE, produces=MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<byte[]>> fetchTile( @PathVariable final int zoom, @PathVariable final int x, @PathVariable final int y,
+                                                             @RequestHeader(value="If-None-Match", required=false) final String ifNoneMatch ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<byte[]>>() {
+            @Override
+            public ResponseEntity<byte[]> call(){
+                if( !TileService.isValid(zoom, x, y) ){
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final Tile tile = tileService.fetch(zoom, x, y);
+
+                final HttpHeaders headers = new HttpHeaders();
+                headers.setContentType(MediaType.APPLICATION_JSON);
+                headers.setETag(tile.getETag());
+                headers.setCacheControl("public, max-age=" + tileMaxAge);
+
+                metrics.request(Endpoint.TILES, start, -1);
+
+                if( tile.getETag().equals(ifNoneMatch) ){
+                    return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+                }
+
+                log.debug("[tiles]: Responding with {} bytes for tile {}/{}/{}", tile.getContent().length, zoom, x, y);
+
+                return new ResponseEntity<>(tile.getContent(), headers, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Streams all of the points of interest, writing each one to the response as it is read rather than building the
+     * full result in memory. The response is an object holding the "points" array and the "cursor" to pass back in
+     * order to fetch the next page (null when there are no more points).
+     *
+     * @param cursor the cursor returned with the previous page (0 for the first page)
+     * @param limit the maximum number of points to return (0 for no limit)
+     * @param response the servlet response being written
+     * @throws IOException if there is a problem writing the response
+     */
+    @RequestMapping(value="/stream/fetch", method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_VALUE)
+    public void streamAll( @RequestParam(value="cursor", defaultValue="0") final int cursor,
+                           @RequestParam(value="limit", defaultValue="0") final int limit, final HttpServletResponse response ) throws IOException {
+        final long start = System.nanoTime();
+        try ( final JsonGenerator json = startStream(response) ){
+            final int next = poiService.streamAll(cursor, limit, new JsonPointSink(json));
+            endStream(json, next);
+        }
+        metrics.request(Endpoint.STREAM, start, -1);
+    }
+
+    /**
+     * Streams the points of interest within the given bounds, writing each one to the response as it is found in the
+     * spatial index. The response has the same form as the /stream/fetch response.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param cursor the cursor returned with the previous page (0 for the first page)
+     * @param limit the maximum number of points to return (0 for no limit)
+     * @param response the servlet response being written
+     * @throws IOException if there is a problem writing the response
+     */
+    @RequestMapping(value="/stream/fetch/{bounds:.+}", method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_VALUE)
+    public void streamWithin( @PathVariable final String bounds, @RequestParam(value="cursor", defaultValue="0") final int cursor,
+                              @RequestParam(value="limit", defaultValue="0") final int limit, final HttpServletResponse response ) throws IOException {
+        final long start = System.nanoTime();
+        final double[] box = box(bounds);
+
+        try ( final JsonGenerator json = startStream(response) ){
+            final int next = poiService.streamByBoundingBox(box[0], box[1], box[2], box[3], cursor, limit, new JsonPointSink(json));
+            endStream(json, next);
+        }
+        metrics.request(Endpoint.STREAM, start, -1);
+    }
+
+    /**
+     * Retrieves the points of interest nearest to the given location by great-circle distance, nearest first. This
+     * endpoint accepts any request content type.
+     *
+     * @param longitude the longitude of the location
+     * @param latitude the latitude of the location
+     * @param count the number of points to retrieve, at most oldemo.nearest.max-count
+     * @param meters the maximum distance of the points in meters (optional)
+     * @return a response entity containing the nearest points, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/nearest/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchNearest( @RequestParam("longitude") final double longitude, @RequestParam("latitude") final double latitude,
+                                                                           @RequestParam(value="count", defaultValue="10") final int count,
+                                                                           @RequestParam(value="meters", required=false) final Double meters ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                if( !isLocation(longitude, latitude) || count < 1 || count > nearestMaxCount || (meters != null && !(meters >= 0)) ){
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final PointOfInterest[] pointsOfInterest = poiService.fetchNearest(longitude, latitude, count, meters != null ? meters : Double.POSITIVE_INFINITY);
+
+                metrics.request(Endpoint.NEAREST, start, pointsOfInterest.length);
+                log.debug("[nearest]: Responding with {} points of interest near ({}, {})", pointsOfInterest.length, longitude, latitude);
+
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the points of interest within the given great-circle distance of a location, nearest first. This
+     * endpoint accepts any request content type.
+     *
+     * @param longitude the longitude of the location
+     * @param latitude the latitude of the location
+     * @param meters the distance in meters
+     * @param limit the maximum number of points to return, the nearest ones being kept (0 for no limit)
+     * @return a response entity containing the points within the distance, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/radius/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchWithinRadius( @RequestParam("longitude") final double longitude, @RequestParam("latitude") final double latitude,
+                                                                                @RequestParam("meters") final double meters,
+                                                                                @RequestParam(value="limit", defaultValue="0") final int limit ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                if( !isLocation(longitude, latitude) || !(meters >= 0) || limit < 0 ){
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final PointOfInterest[] pointsOfInterest = poiService.fetchWithinRadius(longitude, latitude, meters, limit);
+
+                metrics.request(Endpoint.RADIUS, start, pointsOfInterest.length);
+                log.debug("[radius]: Responding with {} points of interest within {} m of ({}, {})", pointsOfInterest.length, meters, longitude, latitude);
+
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the points of interest whose names start with the given prefix, ignoring the case of ASCII letters,
+     * in name order; meant for type-ahead, with one request per keystroke. This endpoint accepts any request content
+     * type.
+     *
+     * @param prefix the prefix of the names
+     * @param bounds ( left, bottom, right, top) to only retrieve the points inside them (optional)
+     * @param limit the maximum number of points to retrieve, at most oldemo.names.max-limit
+     * @return a response entity containing the matching points, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/names/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchByName( @RequestParam("prefix") final String prefix,
+                                                                          @RequestParam(value="bounds", required=false) final String bounds,
+                                                                          @RequestParam(value="limit", defaultValue="10") final int limit ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                if( limit < 1 || limit > namesMaxLimit ){
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final PointOfInterest[] pointsOfInterest;
+                if( bounds != null ){
+                    final double[] box = box(bounds);
+                    pointsOfInterest = poiService.fetchByName(prefix, box[0], box[1], box[2], box[3], limit);
+                } else {
+                    pointsOfInterest = poiService.fetchByName(prefix, limit);
+                }
+
+                metrics.request(Endpoint.NAMES, start, pointsOfInterest.length);
+                log.debug("[names]: Responding with {} points of interest for prefix '{}' in bounds ({})", pointsOfInterest.length, prefix, bounds);
+
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the points of interest inside the GeoJSON Polygon or MultiPolygon (or Feature holding one) posted as the
+     * request body. This endpoint accepts any request content type, such as application/geo+json.
+     *
+     * @param geoJson the GeoJSON area
+     * @return a response entity containing the points inside the area, or a 400 status if the area is not valid
+     */
+    @RequestMapping(value="/polygon/fetch", method=RequestMethod.POST, consumes=MediaType.ALL_VALUE)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchWithinPolygon( @RequestBody final String geoJson ){
+        final long start = System.nanoTime();
+        return submit(Lane.EXPENSIVE, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                final Polygon polygon;
+                try {
+                    polygon = Polygon.fromGeoJson(objectMapper.readTree(geoJson));
+                } catch( IOException | IllegalArgumentException e ){
+                    log.warn("[polygon]: Rejected area: {}", e.getMessage());
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final PointOfInterest[] pointsOfInterest = poiService.fetchWithinPolygon(polygon);
+
+                metrics.request(Endpoint.POLYGON, start, pointsOfInterest.length);
+                log.debug("[polygon]: Responding with {} points of interest for an area of {} edges", pointsOfInterest.length, polygon.edges());
+
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Counts the points of interest inside each of the polygons of the GeoJSON FeatureCollection or GeometryCollection
+     * (or JSON array of polygons) posted as the request body, in a single pass over the points. This endpoint accepts
+     * any request content type.
+     *
+     * @param geoJson the GeoJSON areas
+     * @return a response entity containing the number of points inside each area, in order, or a 400 status if the
+     * areas are not valid
+     */
+    @RequestMapping(value="/polygon/counts", method=RequestMethod.POST, consumes=MediaType.ALL_VALUE, produces=MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<int[]>> countWithinPolygons( @RequestBody final String geoJson ){
+        final long start = System.nanoTime();
+        return submit(Lane.EXPENSIVE, new Callable<ResponseEntity<int[]>>() {
+            @Override
+            public ResponseEntity<int[]> call(){
+                final List<Polygon> polygons;
+                try {
+                    polygons = Polygon.listFromGeoJson(objectMapper.readTree(geoJson));
+                } catch( IOException | IllegalArgumentException e ){
+                    log.warn("[polygon]: Rejected areas: {}", e.getMessage());
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final int[] counts = poiService.countWithinPolygons(polygons);
+
+                metrics.request(Endpoint.POLYGON, start, counts.length);
+                log.debug("[polygon]: Responding with the counts of {} areas", counts.length);
+
+                return new ResponseEntity<>(counts, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Aggregates the points of interest within the given bounds on a grid of columns x rows equal cells: one cluster per
+     * non-empty cell, at the centroid of its points and with their number as its count. This endpoint accepts any
+     * request content type.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param columns the number of cells along the longitude range
+     * @param rows the number of cells along the latitude range
+     * @return a response entity containing the cell clusters, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/grid/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchGrid( @RequestParam("bounds") final String bounds,
+                                                                        @RequestParam(value="columns", defaultValue="64") final int columns,
+                                                                        @RequestParam(value="rows", defaultValue="64") final int rows ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                final double[] box = box(bounds);
+                if( !isGrid(box, columns, rows) ){
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final PointOfInterest[] cells = poiService.fetchGrid(box[0], box[1], box[2], box[3], columns, rows);
+
+                metrics.request(Endpoint.GRID, start, cells.length);
+                log.debug("[grid]: Responding with {} cells for bounds ({}) on a {}x{} grid", cells.length, bounds, columns, rows);
+
+                return new ResponseEntity<>(cells, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the points of interest within the given bounds, unless there are more of them than the budget, in
+     * which case their aggregated grid is returned instead (see /grid/fetch); the cell clusters are told apart from
+     * points by their count. This endpoint accepts any request content type.
+     *
+     * @param bounds ( left, bottom, right, top)
+     * @param budget the maximum number of points to return (oldemo.grid.budget by default)
+     * @param columns the number of cells along the longitude range
+     * @param rows the number of cells along the latitude range
+     * @return a response entity containing the points or cell clusters, or a 400 status if the parameters are invalid
+     */
+    @RequestMapping(value="/auto/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE)
+    public DeferredResult<ResponseEntity<PointOfInterest[]>> fetchWithinBudget( @RequestParam("bounds") final String bounds,
+                                                                                @RequestParam(value="budget", required=false) final Integer budget,
+                                                                                @RequestParam(value="columns", defaultValue="64") final int columns,
+                                                                                @RequestParam(value="rows", defaultValue="64") final int rows ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PointOfInterest[]>>() {
+            @Override
+            public ResponseEntity<PointOfInterest[]> call(){
+                final double[] box = box(bounds);
+                if( !isGrid(box, columns, rows) || (budget != null && budget < 0) ){
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+
+                final PointOfInterest[] pointsOfInterest = poiService.fetchWithinBudget(box[0], box[1], box[2], box[3], columns, rows, budget != null ? budget : gridBudget);
+
+                metrics.request(Endpoint.AUTO, start, pointsOfInterest.length);
+                log.debug("[auto]: Responding with {} points of interest for bounds ({})", pointsOfInterest.length, bounds);
+
+                return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the change in the points of interest within a map view panned (or zoomed) from the previous bounds to
+     * the current ones: the "entered" points, inside the current bounds but not the previous ones, and with departed
+     * set, the "departed" ids of the points inside the previous bounds but not the current ones. A client holding the
+     * points of the previous view can add the one and drop the other, so a small pan only moves a small payload. This
+     * endpoint accepts any request content type.
+     *
+     * @param previous ( left, bottom, right, top) of the previous view
+     * @param current ( left, bottom, right, top) of the current view
+     * @param departed whether or not to include the ids of the points that left the view
+     * @return a response entity containing the PoiDelta
+     */
+    @RequestMapping(value="/delta/fetch", method=RequestMethod.GET, consumes=MediaType.ALL_VALUE, produces=MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<PoiDelta>> fetchDelta( @RequestParam("previous") final String previous, @RequestParam("current") final String current,
+                                                                @RequestParam(value="departed", defaultValue="false") final boolean departed ){
+        final long start = System.nanoTime();
+        return submit(Lane.CHEAP, new Callable<ResponseEntity<PoiDelta>>() {
+            @Override
+            public ResponseEntity<PoiDelta> call(){
+                final PoiDelta delta = poiService.fetchDelta(box(previous), box(current), departed);
+
+                final int count = delta.getEntered().length + (departed ? delta.getDeparted().length : 0);
+                metrics.request(Endpoint.DELTA, start, count);
+                log.debug("[delta]: Responding with {} entered and {} departed points of interest for bounds ({}) -> ({})",
+                    delta.getEntered().length, departed ? delta.getDeparted().length : "-", previous, current);
+
+                return new ResponseEntity<>(delta, HttpStatus.OK);
+            }
+        });
+    }
+
+    /**
+     * Adds the given points of interest in a single batch. Any ids given are ignored; new ids are assigned.
+     *
+     * @param pointsOfInterest the points to be added
+     * @return a response entity containing the added points with their assigned ids
+     */
+    @RequestMapping(value="/points", method=RequestMethod.POST)
+    public ResponseEntity<PointOfInterest[]> add( @RequestBody final PointOfInterest[] pointsOfInterest ){
+        final long start = System.nanoTime();
+        final List<PoiChange> changes = new ArrayList<>(pointsOfInterest.length);
+        for( final PointOfInterest poi : pointsOfInterest ){
+            changes.add(new PoiChange(PoiChange.Type.ADD, null, poi));
+        }
+
+        final int[] ids;
+        try {
+            ids = poiService.apply(changes);
+        } catch( IllegalArgumentException iae ){
+            log.warn("[points]: Rejected batch of {} points: {}", pointsOfInterest.length, iae.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        for( int i=0; i<ids.length; i++ ){
+            pointsOfInterest[i].setId(ids[i]);
+        }
+
+        metrics.request(Endpoint.POINTS, start, pointsOfInterest.length);
+        log.debug("[points]: Added {} points of interest.", pointsOfInterest.length);
+
+        return new ResponseEntity<>(pointsOfInterest, HttpStatus.CREATED);
+    }
+
+    /**
+     * Replaces the point of interest with the given id.
+     *
+     * @param id the id of the point
+     * @param poi the new content of the point
+     * @return a response entity containing the updated point, or a 404 status if there is no such point
+     */
+    @RequestMapping(value="/points/{id}", method=RequestMethod.PUT)
+    public ResponseEntity<PointOfInterest> update( @PathVariable final int id, @RequestBody final PointOfInterest poi ){
+        final HttpStatus status = applyOne(new PoiChange(PoiChange.Type.UPDATE, id, poi));
+        if( status != HttpStatus.OK ){
+            return new ResponseEntity<>(status);
+        }
+
+        poi.setId(id);
+        return new ResponseEntity<>(poi, HttpStatus.OK);
+    }
+
+    /**
+     * Deletes the point of interest with the given id. This endpoint accepts any request content type.
+     *
+     * @param id the id of the point
+     * @return a response entity with a 204 status, or a 404 status if there is no such point
+     */
+    @RequestMapping(value="/points/{id}", method=RequestMethod.DELETE, consumes=MediaType.ALL_VALUE)
+    public ResponseEntity<Void> delete( @PathVariable final int id ){
+        final HttpStatus status = applyOne(new PoiChange(PoiChange.Type.DELETE, id, null));
+        return new ResponseEntity<>(status == HttpStatus.OK ? HttpStatus.NO_CONTENT : status);
+    }
+
+    /**
+     * Applies a batch of mixed changes (see PoiChange) atomically: readers see either none or all of them.
+     *
+     * @param changes the changes to apply, in order
+     * @return a response entity containing the id of the point affected by each change, or -1 where an updated or
+     * deleted point did not exist
+     */
+    @RequestMapping(value="/points/batch", method=RequestMethod.POST, produces=MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<int[]> batch( @RequestBody final PoiChange[] changes ){
+        final long start = System.nanoTime();
+        final int[] ids;
+        try {
+            ids = poiService.apply(Arrays.asList(changes));
+        } catch( IllegalArgumentException iae ){
+            log.warn("[points]: Rejected batch of {} changes: {}", changes.length, iae.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        metrics.request(Endpoint.POINTS, start, changes.length);
+        log.debug("[points]: Applied batch of {} changes.", changes.length);
+
+        return new ResponseEntity<>(ids, HttpStatus.OK);
+    }
+
+    /**
+     * Applies a single update or delete.
+     *
+     * @return OK if it was applied, NOT_FOUND if there is no such point or BAD_REQUEST if the change is invalid
+     */
+    private HttpStatus applyOne( final PoiChange change ){
+        final long start = System.nanoTime();
+        try {
+            if( poiService.apply(Collections.singletonList(change))[0] < 0 ){
+                return HttpStatus.NOT_FOUND;
+            }
+        } catch( IllegalArgumentException iae ){
+            log.warn("[points]: Rejected {} of {}: {}", change.getType(), change.getId(), iae.getMessage());
+            return HttpStatus.BAD_REQUEST;
         }
 
-        log.info("[v3]: Responding with {} points of interest for bounds ({}) @ zoom {}", pointsOfInterest.length, bounds, zoom);
+        metrics.request(Endpoint.POINTS, start, 1);
+        log.debug("[points]: Applied {} of {}.", change.getType(), change.getId());
+        return HttpStatus.OK;
+    }
+
+    /**
+     * Answers a query turned away by a full lane of the QueryExecutor with a 503 (Service Unavailable) and a
+     * Retry-After header.
+     *
+     * @param ree the rejection
+     * @return a response entity with the 503 status
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Void> shed( final RejectedExecutionException ree ){
+        log.debug("Shedding request: the queue is full");
+        return unavailable();
+    }
+
+    /**
+     * Runs the query in the given lane of the QueryExecutor, off the request thread. If it is not answered within
+     * oldemo.async.timeout the response is a 503 (Service Unavailable) with a Retry-After header instead. The result is
+     * only set once the asynchronous processing of the request has started (see AsyncResultGate).
+     *
+     * @throws RejectedExecutionException if the lane is full
+     */
+    private <T> DeferredResult<ResponseEntity<T>> submit( final Lane lane, final Callable<ResponseEntity<T>> query ){
+        final DeferredResult<ResponseEntity<T>> result = new DeferredResult<>(asyncTimeout, unavailable());
+        final CountDownLatch gate = AsyncResultGate.create();
+
+        queryExecutor.execute(lane, new Runnable() {
+            @Override
+            public void run(){
+                // a query which timed out while queued is no longer wanted
+                if( result.isSetOrExpired() ) return;
+
+                ResponseEntity<T> response = null;
+                Exception failure = null;
+                try {
+                    response = query.call();
+                } catch( Exception e ){
+                    failure = e;
+                }
+
+                // a fast query may finish before the request thread has left the handler
+                if( !AsyncResultGate.await(gate, asyncTimeout) ) return;
 
-        return new ResponseEntity<>(pointsOfInterest, HttpStatus.OK );
+                if( failure != null ){
+                    result.setErrorResult(failure);
+                } else {
+                    result.setResult(response);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    private <T> ResponseEntity<T> unavailable(){
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set("Retry-After", String.valueOf(retryAfter));
+        return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    private JsonGenerator startStream( final HttpServletResponse response ) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+
+        final JsonGenerator json = jsonFactory.createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        json.writeStartObject();
+        json.writeArrayFieldStart("points");
+        return json;
+    }
+
+    private static void endStream( final JsonGenerator json, final int next ) throws IOException {
+        json.writeEndArray();
+        if( next >= 0 ){
+            json.writeNumberField("cursor", next);
+        } else {
+            json.writeNullField("cursor");
+        }
+        json.writeEndObject();
     }
 
     private PointOfInterest[] fetchBounded( final String bounds ){
@@ -86,6 +738,14 @@ public class PoiController {
         return poiService.fetchByBoundingBox( box[0], box[1], box[2], box[3] );
     }
 
+    private static boolean isLocation( final double longitude, final double latitude ){
+        return Math.abs(longitude) <= 180 && Math.abs(latitude) <= 90;
+    }
+
+    private boolean isGrid( final double[] box, final int columns, final int rows ){
+        return box[0] < box[2] && box[1] < box[3] && columns >= 1 && rows >= 1 && (long)columns * rows <= gridMaxCells;
+    }
+
     private double[] box( final String bounds ){
         final double[] box = new double[4];
 
@@ -96,4 +756,26 @@ public class PoiController {
 
         return box;
     }
+
+    /**
+     * Writes each point of interest straight to the JSON stream.
+     */
+    private static class JsonPointSink implements PointSink {
+
+        private final JsonGenerator json;
+
+        JsonPointSink( final JsonGenerator json ){
+            this.json = json;
+        }
+
+        @Override
+        public void accept( final PointOfInterest poi ) throws IOException {
+            json.writeStartObject();
+            json.writeNumberField("id", poi.getId());
+            json.writeStringField("name", poi.getName());
+            json.writeNumberField("latitude", poi.getLatitude());
+            json.writeNumberField("longitude", poi.getLongitude());
+            json.writeEndObject();
+        }
+    }
 }
@@ -0,0 +1,185 @@
+package com.stehno.oldemo.dto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary encoding of an array of points of interest (media type application/vnd.oldemo.poi).
+ *
+ * Coordinates are quantized to 1e-6 degrees (about 11 cm) and stored as zig-zag varint deltas from the previous point,
+ * which are small since results come out of the spatial index in spatially coherent order. The values are written
+ * column by column so that a downstream gzip sees similar bytes together:
+ *
+ * <pre>
+ * byte       format version (1)
+ * byte       flags (bit 0: cluster counts present, bit 1: ids present)
+ * varint     number of points (n)
+ * n x svarint  longitude deltas
+ * n x svarint  latitude deltas
+ * n x svarint  id deltas (only if flagged)
+ * n x varint   cluster counts (only if flagged)
+ * n x (varint length, UTF-8 bytes)  names
+ * </pre>
+ *
+ * The map pages decode this format with poi-binary.js.
+ */
+public final class PoiBinaryFormat {
+
+    public static final String MEDIA_TYPE = "application/vnd.oldemo.poi";
+    public static final int VERSION = 1;
+
+    private static final int FLAG_COUNTS = 1;
+    private static final int FLAG_IDS = 2;
+    private static final double SCALE = 1e6;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private PoiBinaryFormat(){}
+
+    /**
+     * Writes the given points of interest to the stream. The stream should be buffered.
+     *
+     * @param pointsOfInterest the points to be written
+     * @param out the target stream
+     * @throws IOException if there is a problem writing
+     */
+    public static void write( final PointOfInterest[] pointsOfInterest, final OutputStream out ) throws IOException {
+        boolean counts = false, ids = false;
+        for( final PointOfInterest poi : pointsOfInterest ){
+            counts |= poi.getCount() != null;
+            ids |= poi.getId() != null;
+        }
+
+        out.write(VERSION);
+        out.write((counts ? FLAG_COUNTS : 0) | (ids ? FLAG_IDS : 0));
+        writeVarint(out, pointsOfInterest.length);
+
+        long previous = 0;
+        for( final PointOfInterest poi : pointsOfInterest ){
+            final long value = Math.round(poi.getLongitude() * SCALE);
+            writeSignedVarint(out, value - previous);
+            previous = value;
+        }
+
+        previous = 0;
+        for( final PointOfInterest poi : pointsOfInterest ){
+            final long value = Math.round(poi.getLatitude() * SCALE);
+            writeSignedVarint(out, value - previous);
+            previous = value;
+        }
+
+        if( ids ){
+            previous = 0;
+            for( final PointOfInterest poi : pointsOfInterest ){
+                final long value = poi.getId() != null ? poi.getId() : -1;
+                writeSignedVarint(out, value - previous);
+                previous = value;
+            }
+        }
+
+        if( counts ){
+            for( final PointOfInterest poi : pointsOfInterest ){
+                writeVarint(out, poi.getCount() != null ? poi.getCount() : 0);
+            }
+        }
+
+        for( final PointOfInterest poi : pointsOfInterest ){
+            final byte[] name = poi.getName() != null ? poi.getName().getBytes(UTF8) : new byte[0];
+            writeVarint(out, name.length);
+            out.write(name);
+        }
+    }
+
+    /**
+     * Reads an array of points of interest from the stream. The stream should be buffered.
+     *
+     * @param in the source stream
+     * @return the points of interest read
+     * @throws IOException if there is a problem reading or the data is not in a supported format
+     */
+    public static PointOfInterest[] read( final InputStream in ) throws IOException {
+        final int version = readByte(in);
+        if( version != VERSION ){
+            throw new IOException("Unsupported binary POI format version (" + version + ")");
+        }
+
+        final int flags = readByte(in);
+        final boolean counts = (flags & FLAG_COUNTS) != 0;
+        final PointOfInterest[] pointsOfInterest = new PointOfInterest[(int)readVarint(in)];
+
+        long value = 0;
+        for( int i=0; i<pointsOfInterest.length; i++ ){
+            value += readSignedVarint(in);
+            pointsOfInterest[i] = new PointOfInterest();
+            pointsOfInterest[i].setLongitude(value / SCALE);
+        }
+
+        value = 0;
+        for( final PointOfInterest poi : pointsOfInterest ){
+            value += readSignedVarint(in);
+            poi.setLatitude(value / SCALE);
+        }
+
+        if( (flags & FLAG_IDS) != 0 ){
+            value = 0;
+            for( final PointOfInterest poi : pointsOfInterest ){
+                value += readSignedVarint(in);
+                poi.setId((int)value);
+            }
+        }
+
+        if( counts ){
+            for( final PointOfInterest poi : pointsOfInterest ){
+                poi.setCount((int)readVarint(in));
+            }
+        }
+
+        for( final PointOfInterest poi : pointsOfInterest ){
+            final byte[] name = new byte[(int)readVarint(in)];
+            int read = 0;
+            while( read < name.length ){
+                final int n = in.read(name, read, name.length - read);
+                if( n < 0 ) throw new EOFException();
+                read += n;
+            }
+            poi.setName(new String(name, UTF8));
+        }
+
+        return pointsOfInterest;
+    }
+
+    private static void writeSignedVarint( final OutputStream out, final long value ) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarint( final OutputStream out, long value ) throws IOException {
+        while( (value & ~0x7FL) != 0 ){
+            out.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static long readSignedVarint( final InputStream in ) throws IOException {
+        final long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarint( final InputStream in ) throws IOException {
+        long value = 0;
+        for( int shift = 0; shift < 64; shift += 7 ){
+            final int b = readByte(in);
+            value |= (long)(b & 0x7F) << shift;
+            if( (b & 0x80) == 0 ) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readByte( final InputStream in ) throws IOException {
+        final int b = in.read();
+        if( b < 0 ) throw new EOFException();
+        return b;
+    }
+}
@@ -0,0 +1,51 @@
+package com.stehno.oldemo.dto;
+
+import java.io.Serializable;
+
+/**
+ * A single change in a batch of point of interest writes: an ADD of a new point (which is assigned a new id), an
+ * UPDATE replacing the point with the given id, or a DELETE of the point with the given id.
+ */
+public class PoiChange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Type { ADD, UPDATE, DELETE }
+
+    private Type type;
+    private Integer id;
+    private PointOfInterest point;
+
+    public PoiChange() {
+    }
+
+    public PoiChange(Type type, Integer id, PointOfInterest point) {
+        this.type = type;
+        this.id = id;
+        this.point = point;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public PointOfInterest getPoint() {
+        return point;
+    }
+
+    public void setPoint(PointOfInterest point) {
+        this.point = point;
+    }
+}
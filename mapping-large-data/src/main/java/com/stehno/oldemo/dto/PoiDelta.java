@@ -0,0 +1,42 @@
+package com.stehno.oldemo.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.Serializable;
+
+/**
+ * The change in the points of interest within a map view when it moves from one bounding box to another: the points
+ * that entered the view and, if requested, the ids of the points that left it (null and omitted from JSON otherwise).
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PoiDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private PointOfInterest[] entered;
+    private int[] departed;
+
+    public PoiDelta() {
+    }
+
+    public PoiDelta(PointOfInterest[] entered, int[] departed) {
+        this.entered = entered;
+        this.departed = departed;
+    }
+
+    public PointOfInterest[] getEntered() {
+        return entered;
+    }
+
+    public void setEntered(PointOfInterest[] entered) {
+        this.entered = entered;
+    }
+
+    public int[] getDeparted() {
+        return departed;
+    }
+
+    public void setDeparted(int[] departed) {
+        this.departed = departed;
+    }
+}
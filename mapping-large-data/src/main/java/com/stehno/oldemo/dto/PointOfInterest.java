@@ -1,17 +1,32 @@
 package com.stehno.oldemo.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.io.Serializable;
 
 /**
- * A simple object representation of a geo-located point of interest.
+ * A simple object representation of a geo-located point of interest. The id is the stable identifier used to update
+ * or delete the point; it is null for a cluster. When the point represents a cluster, the count holds the number of
+ * points in the cluster; it is null (and omitted from JSON) for a single point.
  */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class PointOfInterest implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private Integer id;
     private String name;
     private double latitude;
     private double longitude;
+    private Integer count;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
 
     public String getName() {
         return name;
@@ -36,4 +51,12 @@ public class PointOfInterest implements Serializable {
     public void setLongitude(double longitude) {
         this.longitude = longitude;
     }
+
+    public Integer getCount() {
+        return count;
+    }
+
+    public void setCount(Integer count) {
+        this.count = count;
+    }
 }
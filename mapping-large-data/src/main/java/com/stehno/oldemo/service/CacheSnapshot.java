@@ -0,0 +1,39 @@
+package com.stehno.oldemo.service;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The hit, miss and eviction counts of a cache at one point in time.
+ */
+public class CacheSnapshot {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    @ConstructorProperties({ "hits", "misses", "evictions" })
+    public CacheSnapshot( final long hits, final long misses, final long evictions ){
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public long getHits(){
+        return hits;
+    }
+
+    public long getMisses(){
+        return misses;
+    }
+
+    public long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * @return the fraction of the lookups which were hits (0 if there were none)
+     */
+    public double getHitRate(){
+        return hits + misses > 0 ? (double)hits / (hits + misses) : 0;
+    }
+}
@@ -0,0 +1,93 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+
+/**
+ * The result of a clustering run: the centroid coordinates and point count of each cluster, held in primitive arrays.
+ */
+public class Centroids {
+
+    private final double[] longitudes;
+    private final double[] latitudes;
+    private final int[] counts;
+
+    public Centroids( final double[] longitudes, final double[] latitudes, final int[] counts ){
+        this.longitudes = longitudes;
+        this.latitudes = latitudes;
+        this.counts = counts;
+    }
+
+    /**
+     * @return the number of clusters
+     */
+    public int size(){
+        return counts.length;
+    }
+
+    public double longitude( final int cluster ){
+        return longitudes[cluster];
+    }
+
+    public double latitude( final int cluster ){
+        return latitudes[cluster];
+    }
+
+    public int count( final int cluster ){
+        return counts[cluster];
+    }
+
+    /**
+     * Folds added and removed points into the clusters with an online (sequential k-means) update: each point moves
+     * the running mean of its nearest centroid towards (or away from) it. This is only an approximation of a full
+     * clustering run, meant for small changes between runs.
+     *
+     * @param added the locations of the points added
+     * @param removed the locations of the points removed
+     * @return the updated clusters, as a new instance
+     */
+    public Centroids update( final Coordinates added, final Coordinates removed ){
+        final double[] lons = longitudes.clone();
+        final double[] lats = latitudes.clone();
+        final int[] sizes = counts.clone();
+        if( sizes.length == 0 ) return this;
+
+        for( int i=0; i<added.size(); i++ ){
+            final int c = KMeansClusterer.nearest(added.longitude(i), added.latitude(i), lons, lats);
+            sizes[c]++;
+            lons[c] += (added.longitude(i) - lons[c]) / sizes[c];
+            lats[c] += (added.latitude(i) - lats[c]) / sizes[c];
+        }
+
+        for( int i=0; i<removed.size(); i++ ){
+            final int c = KMeansClusterer.nearest(removed.longitude(i), removed.latitude(i), lons, lats);
+            if( sizes[c] > 1 ){
+                sizes[c]--;
+                lons[c] += (lons[c] - removed.longitude(i)) / sizes[c];
+                lats[c] += (lats[c] - removed.latitude(i)) / sizes[c];
+            } else {
+                // an emptied cluster keeps its position, as in a full run
+                sizes[c] = 0;
+            }
+        }
+
+        return new Centroids(lons, lats, sizes);
+    }
+
+    /**
+     * Converts the clusters into points of interest named for their point counts.
+     *
+     * @return a new array of points of interest, one per cluster
+     */
+    public PointOfInterest[] toPointsOfInterest(){
+        final PointOfInterest[] results = new PointOfInterest[counts.length];
+        for( int i=0; i<counts.length; i++ ){
+            final PointOfInterest poi = new PointOfInterest();
+            poi.setName("Cluster of " + (counts[i] != 0 ? counts[i] : 1));
+            poi.setLongitude(longitudes[i]);
+            poi.setLatitude(latitudes[i]);
+            poi.setCount(counts[i]);
+            results[i] = poi;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,159 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the clusters computed separately by several shards. Every merge is weighted by the cluster counts, so a merged
+ * cluster sits at the centroid of all of the points it stands for.
+ */
+public final class ClusterMerger {
+
+    private ClusterMerger(){}
+
+    /**
+     * Merges cluster pyramid results (see ClusterPyramid): the clusters of different shards in the same cell of the
+     * zoom level grid are combined into one.
+     *
+     * @param parts the clusters returned by each shard
+     * @param zoom the zoom level of the clusters
+     * @return the merged clusters
+     */
+    public static PointOfInterest[] byCell( final List<PointOfInterest[]> parts, final int zoom ){
+        final int cells = ClusterPyramid.cellsPerAxis(zoom);
+        final Map<Long, double[]> merged = new HashMap<>();
+
+        for( final PointOfInterest[] part : parts ){
+            for( final PointOfInterest cluster : part ){
+                if( weight(cluster) == 0 ) continue;
+
+                final long cell = (long)Mercator.cell(Mercator.y(cluster.getLatitude()), cells) * cells + Mercator.cell(Mercator.x(cluster.getLongitude()), cells);
+                double[] totals = merged.get(cell);
+                if( totals == null ){
+                    totals = new double[3];
+                    merged.put(cell, totals);
+                }
+
+                final int count = weight(cluster);
+                totals[0] += cluster.getLongitude() * count;
+                totals[1] += cluster.getLatitude() * count;
+                totals[2] += count;
+            }
+        }
+
+        final PointOfInterest[] results = new PointOfInterest[merged.size()];
+        int i = 0;
+        for( final double[] totals : merged.values() ){
+            results[i++] = cluster(totals[0] / totals[2], totals[1] / totals[2], (int)totals[2]);
+        }
+        return results;
+    }
+
+    /**
+     * Merges density grid results (see DensityGrid): the cell clusters of different shards falling in the same cell of
+     * the given (empty) grid are combined into one.
+     *
+     * @param parts the cell clusters returned by each shard
+     * @param grid the grid the shards aggregated on
+     * @return the merged cell clusters
+     */
+    public static PointOfInterest[] byGrid( final List<PointOfInterest[]> parts, final DensityGrid grid ){
+        for( final PointOfInterest[] part : parts ){
+            for( final PointOfInterest cluster : part ){
+                final int cell = grid.cell(cluster.getLongitude(), cluster.getLatitude());
+                if( cell < 0 ) continue;
+
+                final int count = weight(cluster);
+                grid.add(cell, count, cluster.getLongitude() * count, cluster.getLatitude() * count);
+            }
+        }
+        return grid.toPointsOfInterest();
+    }
+
+    /**
+     * Reduces the k-means clusters of all shards to at most k clusters, with a k-means run over the cluster centroids
+     * in which each centroid is weighted by its count. The seeds are the heaviest clusters.
+     *
+     * @param parts the clusters returned by each shard
+     * @param k the number of clusters wanted
+     * @param iterations the number of iterations
+     * @return the merged clusters
+     */
+    public static PointOfInterest[] reduce( final List<PointOfInterest[]> parts, final int k, final int iterations ){
+        final List<PointOfInterest> clusters = new ArrayList<>();
+        for( final PointOfInterest[] part : parts ){
+            Collections.addAll(clusters, part);
+        }
+
+        if( clusters.size() <= k ){
+            return clusters.toArray(new PointOfInterest[clusters.size()]);
+        }
+
+        Collections.sort(clusters, new Comparator<PointOfInterest>() {
+            @Override
+            public int compare( final PointOfInterest a, final PointOfInterest b ){
+                return Integer.compare(weight(b), weight(a));
+            }
+        });
+
+        final double[] lons = new double[k];
+        final double[] lats = new double[k];
+        for( int c=0; c<k; c++ ){
+            lons[c] = clusters.get(c).getLongitude();
+            lats[c] = clusters.get(c).getLatitude();
+        }
+
+        final double[] sumLons = new double[k];
+        final double[] sumLats = new double[k];
+        final long[] counts = new long[k];
+
+        for( int i=0; i<=iterations; i++ ){
+            Arrays.fill(sumLons, 0);
+            Arrays.fill(sumLats, 0);
+            Arrays.fill(counts, 0);
+
+            for( final PointOfInterest cluster : clusters ){
+                final int c = KMeansClusterer.nearest(cluster.getLongitude(), cluster.getLatitude(), lons, lats);
+                final int count = weight(cluster);
+                sumLons[c] += cluster.getLongitude() * count;
+                sumLats[c] += cluster.getLatitude() * count;
+                counts[c] += count;
+            }
+
+            for( int c=0; c<k; c++ ){
+                if( counts[c] != 0 ){
+                    lons[c] = sumLons[c] / counts[c];
+                    lats[c] = sumLats[c] / counts[c];
+                }
+            }
+        }
+
+        final List<PointOfInterest> results = new ArrayList<>(k);
+        for( int c=0; c<k; c++ ){
+            if( counts[c] != 0 ){
+                results.add(cluster(lons[c], lats[c], (int)counts[c]));
+            }
+        }
+        return results.toArray(new PointOfInterest[results.size()]);
+    }
+
+    private static int weight( final PointOfInterest cluster ){
+        return cluster.getCount() != null ? cluster.getCount() : 1;
+    }
+
+    private static PointOfInterest cluster( final double longitude, final double latitude, final int count ){
+        final PointOfInterest poi = new PointOfInterest();
+        poi.setName("Cluster of " + count);
+        poi.setLongitude(longitude);
+        poi.setLatitude(latitude);
+        poi.setCount(count);
+        return poi;
+    }
+}
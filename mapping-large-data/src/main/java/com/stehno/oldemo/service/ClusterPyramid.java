@@ -0,0 +1,252 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-computed clusters for every zoom level below the clustering threshold.
+ *
+ * Each level is a grid over the mercator-projected world with 64 pixel cells at that zoom (4 * 2^zoom cells per
+ * axis). The finest level is built in a single pass over the points, accumulating the count and coordinate sums of
+ * each cell; every coarser level is then aggregated from the 2x2 cells below it. A cluster is the centroid of the
+ * points in a non-empty cell, so a bounds query at a given zoom is a direct lookup of the cells in view.
+ *
+ * The pyramid is built from the base store of a snapshot; the points written since then are folded into each lookup
+ * (the deleted base rows subtracted from their cells and the overlay rows added), as for the DensityGrid, so that the
+ * clusters follow the writes between compactions. A snapshot of another generation (one compacted after the pyramid
+ * was built, while its replacement is being built) cannot be folded in, and the pyramid is then served as built.
+ */
+public class ClusterPyramid {
+
+    private static final int CELL_SHIFT = 2;
+
+    private final int generation;
+    private final int[][] counts;
+    private final double[][] longitudes;
+    private final double[][] latitudes;
+
+    /**
+     * Builds the pyramid for zoom levels 0 through levels-1.
+     *
+     * @param snapshot the snapshot whose base store is clustered
+     * @param levels the number of zoom levels, at least one
+     */
+    public ClusterPyramid( final PointSnapshot snapshot, final int levels ){
+        if( levels < 1 ){
+            throw new IllegalArgumentException("A cluster pyramid needs at least one zoom level, not " + levels);
+        }
+
+        final PointStore store = snapshot.getStore();
+        generation = snapshot.generation();
+
+        counts = new int[levels][];
+        longitudes = new double[levels][];
+        latitudes = new double[levels][];
+
+        final int finest = levels - 1;
+        final int cells = cellsPerAxis(finest);
+        counts[finest] = new int[cells * cells];
+        longitudes[finest] = new double[cells * cells];
+        latitudes[finest] = new double[cells * cells];
+
+        for( int row=0; row<store.size(); row++ ){
+            final double lon = store.longitude(row);
+            final double lat = store.latitude(row);
+            final int cell = Mercator.cell(Mercator.y(lat), cells) * cells + Mercator.cell(Mercator.x(lon), cells);
+
+            counts[finest][cell]++;
+            longitudes[finest][cell] += lon;
+            latitudes[finest][cell] += lat;
+        }
+
+        for( int level = finest - 1; level >= 0; level-- ){
+            aggregate(level);
+        }
+
+        // convert the coordinate sums into centroids
+        for( int level=0; level<levels; level++ ){
+            for( int cell=0; cell<counts[level].length; cell++ ){
+                if( counts[level][cell] != 0 ){
+                    longitudes[level][cell] /= counts[level][cell];
+                    latitudes[level][cell] /= counts[level][cell];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of zoom levels in the pyramid
+     */
+    public int levels(){
+        return counts.length;
+    }
+
+    /**
+     * @return the compaction generation of the base store the pyramid was built from
+     */
+    public int generation(){
+        return generation;
+    }
+
+    /**
+     * Retrieves the clusters for the given zoom level whose centroids are strictly inside the given bounds. Zoom
+     * levels outside of the pyramid are clamped to the nearest level.
+     *
+     * @param snapshot the snapshot whose writes are folded into the clusters
+     * @param zoom the zoom level
+     * @param left
+     * @param bottom
+     * @param right
+     * @param top
+     * @return the clusters in view, as points of interest carrying their point count
+     */
+    public PointOfInterest[] clusters( final PointSnapshot snapshot, final int zoom, final double left, final double bottom, final double right, final double top ){
+        final int level = Math.max(0, Math.min(zoom, counts.length - 1));
+        final int cells = cellsPerAxis(level);
+
+        return collect(
+            snapshot, level,
+            Mercator.cell(Mercator.x(left), cells), Mercator.cell(Mercator.y(top), cells),
+            Mercator.cell(Mercator.x(right), cells), Mercator.cell(Mercator.y(bottom), cells),
+            left, bottom, right, top
+        );
+    }
+
+    /**
+     * Retrieves the clusters of the given slippy-map tile. The cells of a level are aligned with the tiles of the
+     * same zoom, so every cluster belongs to exactly one tile.
+     *
+     * @param snapshot the snapshot whose writes are folded into the clusters
+     * @param zoom the tile zoom level, which must be one of the pyramid levels
+     * @param tileX the tile column
+     * @param tileY the tile row
+     * @return the clusters of the tile
+     */
+    public PointOfInterest[] tile( final PointSnapshot snapshot, final int zoom, final int tileX, final int tileY ){
+        final int perTile = 1 << CELL_SHIFT;
+
+        return collect(
+            snapshot, zoom, tileX * perTile, tileY * perTile, (tileX + 1) * perTile - 1, (tileY + 1) * perTile - 1,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY
+        );
+    }
+
+    /**
+     * Collects the clusters of the cells in the given range whose centroids are strictly inside the bounds.
+     */
+    private PointOfInterest[] collect( final PointSnapshot snapshot, final int level, final int minX, final int minY, final int maxX, final int maxY,
+                                       final double left, final double bottom, final double right, final double top ){
+        final int cells = cellsPerAxis(level);
+        final Map<Integer, Change> changes = changes(snapshot, level, minX, minY, maxX, maxY);
+
+        final List<PointOfInterest> results = new ArrayList<>();
+        for( int y = minY; y <= maxY; y++ ){
+            for( int x = minX; x <= maxX; x++ ){
+                final int cell = y * cells + x;
+                final Change change = changes.isEmpty() ? null : changes.get(cell);
+
+                int count = counts[level][cell];
+                double lon = longitudes[level][cell];
+                double lat = latitudes[level][cell];
+                if( change != null ){
+                    // back to coordinate sums, adjusted and averaged again
+                    final int total = count + change.count;
+                    if( total > 0 ){
+                        lon = (lon * count + change.longitudes) / total;
+                        lat = (lat * count + change.latitudes) / total;
+                    }
+                    count = total;
+                }
+
+                if( count > 0 && lat < top && lat > bottom && lon < right && lon > left ){
+                    final PointOfInterest poi = new PointOfInterest();
+                    poi.setName("Cluster of " + count);
+                    poi.setLongitude(lon);
+                    poi.setLatitude(lat);
+                    poi.setCount(count);
+                    results.add(poi);
+                }
+            }
+        }
+
+        return results.toArray(new PointOfInterest[results.size()]);
+    }
+
+    /**
+     * The changes of the snapshot to the cells of the given range: its deleted base rows and its overlay rows.
+     */
+    private Map<Integer, Change> changes( final PointSnapshot snapshot, final int level, final int minX, final int minY, final int maxX, final int maxY ){
+        final Map<Integer, Change> changes = new HashMap<>();
+        if( snapshot.generation() != generation ) return changes;
+
+        final int cells = cellsPerAxis(level);
+
+        for( int i=0; i<snapshot.deletedBaseCount(); i++ ){
+            final int row = snapshot.deletedBaseRow(i);
+            if( !snapshot.isLive(row) ){
+                change(changes, cells, minX, minY, maxX, maxY, -1, snapshot.longitude(row), snapshot.latitude(row));
+            }
+        }
+
+        for( int row = snapshot.baseSize(); row < snapshot.rows(); row++ ){
+            if( snapshot.isLive(row) ){
+                change(changes, cells, minX, minY, maxX, maxY, 1, snapshot.longitude(row), snapshot.latitude(row));
+            }
+        }
+
+        return changes;
+    }
+
+    private static void change( final Map<Integer, Change> changes, final int cells, final int minX, final int minY, final int maxX, final int maxY,
+                                final int count, final double lon, final double lat ){
+        final int x = Mercator.cell(Mercator.x(lon), cells);
+        final int y = Mercator.cell(Mercator.y(lat), cells);
+        if( x < minX || x > maxX || y < minY || y > maxY ) return;
+
+        Change change = changes.get(y * cells + x);
+        if( change == null ){
+            change = new Change();
+            changes.put(y * cells + x, change);
+        }
+        change.count += count;
+        change.longitudes += count * lon;
+        change.latitudes += count * lat;
+    }
+
+    private void aggregate( final int level ){
+        final int cells = cellsPerAxis(level);
+        final int finer = cells << 1;
+
+        counts[level] = new int[cells * cells];
+        longitudes[level] = new double[cells * cells];
+        latitudes[level] = new double[cells * cells];
+
+        for( int y=0; y<finer; y++ ){
+            for( int x=0; x<finer; x++ ){
+                final int source = y * finer + x;
+                final int target = (y >> 1) * cells + (x >> 1);
+
+                counts[level][target] += counts[level + 1][source];
+                longitudes[level][target] += longitudes[level + 1][source];
+                latitudes[level][target] += latitudes[level + 1][source];
+            }
+        }
+    }
+
+    static int cellsPerAxis( final int level ){
+        return 1 << (level + CELL_SHIFT);
+    }
+
+    /**
+     * The number of points added to a cell (negative if removed) and the sums of their coordinates.
+     */
+    private static class Change {
+        int count;
+        double longitudes;
+        double latitudes;
+    }
+}
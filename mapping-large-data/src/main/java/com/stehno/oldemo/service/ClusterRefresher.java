@@ -0,0 +1,214 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the k-means clusters of the live points and keeps them up to date without making readers wait
+ * (refresh-ahead).
+ *
+ * The clusters are computed by the first request (or warm-up); concurrent requests share that run. From then on each
+ * applied batch of changes is counted and, if it is small, folded straight into the centroids with an online update
+ * (see Centroids.update). Once enough points have changed, or anything has changed and the clusters are older than the
+ * age limit, a full clustering run is started on the background executor. Readers keep getting the previous clusters
+ * until it completes, and the changes applied while it runs are then replayed onto the new result.
+ */
+public class ClusterRefresher {
+
+    private static final Logger log = LogManager.getLogger(ClusterRefresher.class);
+
+    private final LivePoints live;
+    private final KMeansClusterer clusterer;
+    private final Executor executor;
+    private final int changeThreshold;
+    private final long maxAgeMillis;
+    private final int incrementalLimit;
+    private final Metric duration;
+
+    private final Object lock = new Object();
+    private final SingleFlight<String, Clusters> initial = new SingleFlight<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicInteger changed = new AtomicInteger();
+    private volatile Clusters current;
+    private List<Delta> replay;
+
+    /**
+     * @param live the points to be clustered
+     * @param clusterer the clusterer used for full runs
+     * @param executor the executor running the background refreshes
+     * @param changeThreshold the number of changed points which triggers a refresh
+     * @param maxAgeSeconds the age (in seconds) after which any change triggers a refresh
+     * @param incrementalLimit the largest batch (in changed points) which is folded into the current clusters
+     * @param duration the metric recording the duration of the full runs
+     */
+    public ClusterRefresher( final LivePoints live, final KMeansClusterer clusterer, final Executor executor, final int changeThreshold,
+                             final long maxAgeSeconds, final int incrementalLimit, final Metric duration ){
+        this.live = live;
+        this.clusterer = clusterer;
+        this.executor = executor;
+        this.changeThreshold = changeThreshold;
+        this.maxAgeMillis = maxAgeSeconds * 1000;
+        this.incrementalLimit = incrementalLimit;
+        this.duration = duration;
+    }
+
+    /**
+     * Retrieves the current clusters, computing them if this is the first call.
+     *
+     * @return the clusters, as points of interest
+     */
+    public PointOfInterest[] get(){
+        Clusters clusters = current;
+        if( clusters == null ){
+            clusters = initial.execute("initial", new Callable<Clusters>() {
+                @Override
+                public Clusters call(){
+                    return current != null ? current : compute();
+                }
+            });
+        } else {
+            refreshIfStale();
+        }
+        return clusters.points;
+    }
+
+    /**
+     * Records an applied batch of changes. Batches must be passed in the order they were applied.
+     *
+     * @param applied the applied batch
+     */
+    public void changed( final LivePoints.Applied applied ){
+        final Delta delta = new Delta(applied.getVersion(), applied.getAdded(), applied.getRemoved());
+        if( delta.size() == 0 ) return;
+
+        synchronized( lock ){
+            if( replay != null ){
+                replay.add(delta);
+            }
+
+            final Clusters clusters = current;
+            if( clusters != null && delta.version > clusters.version && delta.size() <= incrementalLimit ){
+                current = clusters.update(delta);
+            }
+        }
+
+        changed.addAndGet(delta.size() <= incrementalLimit ? delta.size() : changeThreshold);
+        refreshIfStale();
+    }
+
+    /**
+     * @return the number of points changed since the current clusters were computed
+     */
+    public int pendingChanges(){
+        return changed.get();
+    }
+
+    private void refreshIfStale(){
+        final Clusters clusters = current;
+        if( clusters == null ) return;
+
+        final int pending = changed.get();
+        final boolean stale = pending >= changeThreshold || (pending > 0 && System.currentTimeMillis() - clusters.computedAt >= maxAgeMillis);
+        if( stale && refreshing.compareAndSet(false, true) ){
+            executor.execute(new Runnable() {
+                @Override
+                public void run(){
+                    try {
+                        compute();
+                    } catch( RuntimeException re ){
+                        log.error("Unable to refresh clusters: {}", re.getMessage(), re);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    private Clusters compute(){
+        final PointSnapshot snapshot;
+        synchronized( lock ){
+            // collect the changes from here on, since the snapshot may not include them
+            replay = new ArrayList<>();
+            snapshot = live.snapshot();
+            changed.set(0);
+        }
+
+        final long start = System.nanoTime();
+
+        final Centroids centroids;
+        try {
+            centroids = clusterer.cluster(snapshot);
+        } catch( RuntimeException re ){
+            synchronized( lock ){
+                replay = null;
+            }
+            throw re;
+        }
+
+        duration.recordSince(start);
+        log.info("Clustered {} points of interest in {} ms", snapshot.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        synchronized( lock ){
+            Clusters clusters = new Clusters(centroids, snapshot.version(), System.currentTimeMillis());
+            for( final Delta delta : replay ){
+                if( delta.version > clusters.version ){
+                    clusters = clusters.update(delta);
+                }
+            }
+
+            replay = null;
+            current = clusters;
+            return clusters;
+        }
+    }
+
+    /**
+     * A batch of changes.
+     */
+    private static class Delta {
+        final int version;
+        final Coordinates added;
+        final Coordinates removed;
+
+        Delta( final int version, final Coordinates added, final Coordinates removed ){
+            this.version = version;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        int size(){
+            return added.size() + removed.size();
+        }
+    }
+
+    /**
+     * The clusters as of a version of the points, with their points of interest created once.
+     */
+    private static class Clusters {
+        final Centroids centroids;
+        final PointOfInterest[] points;
+        final int version;
+        final long computedAt;
+
+        Clusters( final Centroids centroids, final int version, final long computedAt ){
+            this.centroids = centroids;
+            this.points = centroids.toPointsOfInterest();
+            this.version = version;
+            this.computedAt = computedAt;
+        }
+
+        Clusters update( final Delta delta ){
+            return new Clusters(centroids.update(delta.added, delta.removed), delta.version, computedAt);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.stehno.oldemo.service;
+
+import java.util.Arrays;
+
+/**
+ * A minimal growable list of longitude/latitude pairs held in primitive arrays.
+ */
+public final class Coordinates {
+
+    private double[] longitudes;
+    private double[] latitudes;
+    private int size;
+
+    public Coordinates(){
+        this(8);
+    }
+
+    public Coordinates( final int capacity ){
+        longitudes = new double[Math.max(capacity, 1)];
+        latitudes = new double[Math.max(capacity, 1)];
+    }
+
+    public void add( final double longitude, final double latitude ){
+        if( size == longitudes.length ){
+            longitudes = Arrays.copyOf(longitudes, size << 1);
+            latitudes = Arrays.copyOf(latitudes, size << 1);
+        }
+        longitudes[size] = longitude;
+        latitudes[size] = latitude;
+        size++;
+    }
+
+    public double longitude( final int index ){
+        return longitudes[index];
+    }
+
+    public double latitude( final int index ){
+        return latitudes[index];
+    }
+
+    public int size(){
+        return size;
+    }
+}
@@ -0,0 +1,152 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The number of points and their centroid in each cell of a regular grid over a bounding box, as an aggregated
+ * alternative to the raw points when a view holds too many of them to be drawn.
+ *
+ * Points are counted if they are strictly inside the bounds, as for the bounding-box queries. Cells are equal divisions
+ * of the longitude and latitude ranges; a point on the line between two cells falls in the upper one.
+ */
+public final class DensityGrid {
+
+    private final double left;
+    private final double bottom;
+    private final double right;
+    private final double top;
+    private final int columns;
+    private final int rows;
+    private final double columnScale;
+    private final double rowScale;
+    private final int[] counts;
+    private final double[] sumLons;
+    private final double[] sumLats;
+
+    /**
+     * @param left the minimum longitude (exclusive)
+     * @param bottom the minimum latitude (exclusive)
+     * @param right the maximum longitude (exclusive)
+     * @param top the maximum latitude (exclusive)
+     * @param columns the number of cells along the longitude range
+     * @param rows the number of cells along the latitude range
+     */
+    public DensityGrid( final double left, final double bottom, final double right, final double top, final int columns, final int rows ){
+        if( columns < 1 || rows < 1 ){
+            throw new IllegalArgumentException("A grid needs at least one column and one row");
+        }
+
+        this.left = left;
+        this.bottom = bottom;
+        this.right = right;
+        this.top = top;
+        this.columns = columns;
+        this.rows = rows;
+        this.columnScale = columns / (right - left);
+        this.rowScale = rows / (top - bottom);
+
+        counts = new int[columns * rows];
+        sumLons = new double[counts.length];
+        sumLats = new double[counts.length];
+    }
+
+    public double left(){
+        return left;
+    }
+
+    public double bottom(){
+        return bottom;
+    }
+
+    public double right(){
+        return right;
+    }
+
+    public double top(){
+        return top;
+    }
+
+    /**
+     * @return whether or not the point is strictly inside the bounds of the grid
+     */
+    public boolean contains( final double lon, final double lat ){
+        return lon > left && lon < right && lat > bottom && lat < top;
+    }
+
+    /**
+     * @return the column of the cell holding the longitude, which must be inside the bounds
+     */
+    public int column( final double lon ){
+        return Math.min((int)((lon - left) * columnScale), columns - 1);
+    }
+
+    /**
+     * @return the row of the cell holding the latitude, which must be inside the bounds
+     */
+    public int row( final double lat ){
+        return Math.min((int)((lat - bottom) * rowScale), rows - 1);
+    }
+
+    /**
+     * @return the cell holding the point, or -1 if it is not strictly inside the bounds
+     */
+    public int cell( final double lon, final double lat ){
+        return contains(lon, lat) ? row(lat) * columns + column(lon) : -1;
+    }
+
+    /**
+     * Adds a number of points (negative to remove them) to a cell.
+     *
+     * @param cell the cell (see cell())
+     * @param count the number of points
+     * @param sumLon the sum of their longitudes
+     * @param sumLat the sum of their latitudes
+     */
+    public void add( final int cell, final int count, final double sumLon, final double sumLat ){
+        counts[cell] += count;
+        sumLons[cell] += sumLon;
+        sumLats[cell] += sumLat;
+    }
+
+    /**
+     * Adds a single point, if it is inside the bounds.
+     */
+    public void add( final double lon, final double lat ){
+        final int cell = cell(lon, lat);
+        if( cell >= 0 ){
+            add(cell, 1, lon, lat);
+        }
+    }
+
+    /**
+     * @return the number of points in all of the cells
+     */
+    public long total(){
+        long total = 0;
+        for( final int count : counts ){
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return a cluster (a PointOfInterest with a count) at the centroid of each non-empty cell
+     */
+    public PointOfInterest[] toPointsOfInterest(){
+        final List<PointOfInterest> cells = new ArrayList<>();
+        for( int cell=0; cell<counts.length; cell++ ){
+            if( counts[cell] <= 0 ) continue;
+
+            final PointOfInterest poi = new PointOfInterest();
+            poi.setName("Cluster of " + counts[cell]);
+            poi.setLongitude(sumLons[cell] / counts[cell]);
+            poi.setLatitude(sumLats[cell] / counts[cell]);
+            poi.setCount(counts[cell]);
+            cells.add(poi);
+        }
+        return cells.toArray(new PointOfInterest[cells.size()]);
+    }
+}
@@ -0,0 +1,58 @@
+package com.stehno.oldemo.service;
+
+/**
+ * Great-circle distances on a spherical earth, in meters: between two points (haversine formula) and from a point to
+ * the nearest point of a longitude/latitude box, which bounds the distance to anything inside the box.
+ */
+public final class GreatCircle {
+
+    /**
+     * The mean radius of the earth in meters.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    private GreatCircle(){}
+
+    public static double distance( final double lon1, final double lat1, final double lon2, final double lat2 ){
+        return distance(Math.toRadians(lat1), Math.toRadians(lat2), Math.toRadians(lon2 - lon1));
+    }
+
+    /**
+     * Finds the distance from a point to the nearest point of a box, taking the shorter way around the antimeridian.
+     * The nearest point lies on the meridian of the point if it is within the longitudes of the box, and otherwise on
+     * the nearer of the two sides, at the latitude closest to the great circle through the point perpendicular to it.
+     *
+     * @return the distance in meters, 0 if the point is inside the box, or infinity if the box is empty
+     */
+    public static double distanceToBox( final double lon, final double lat, final double minLon, final double minLat, final double maxLon, final double maxLat ){
+        if( !(minLon <= maxLon && minLat <= maxLat) ) return Double.POSITIVE_INFINITY;
+
+        final double deltaLon;
+        if( lon >= minLon && lon <= maxLon ){
+            deltaLon = 0;
+        } else {
+            deltaLon = Math.toRadians(Math.min(eastOf(lon, minLon), eastOf(maxLon, lon)));
+        }
+
+        final double phi = Math.toRadians(lat);
+        final double nearest = Math.atan2(Math.sin(phi), Math.cos(phi) * Math.cos(deltaLon));
+        final double clamped = Math.max(Math.toRadians(minLat), Math.min(Math.toRadians(maxLat), nearest));
+
+        return distance(phi, clamped, deltaLon);
+    }
+
+    /**
+     * @return the degrees to travel east from one longitude to reach the other, in [0, 360)
+     */
+    private static double eastOf( final double from, final double to ){
+        final double degrees = (to - from) % 360.0;
+        return degrees < 0 ? degrees + 360.0 : degrees;
+    }
+
+    private static double distance( final double phi1, final double phi2, final double deltaLon ){
+        final double sinLat = Math.sin((phi2 - phi1) / 2);
+        final double sinLon = Math.sin(deltaLon / 2);
+        final double h = sinLat * sinLat + Math.cos(phi1) * Math.cos(phi2) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+}
@@ -0,0 +1,39 @@
+package com.stehno.oldemo.service;
+
+import java.util.Arrays;
+
+/**
+ * A minimal growable list of primitive int values, used to collect index query results without boxing.
+ */
+public final class IntList {
+
+    private int[] values;
+    private int size;
+
+    public IntList(){
+        this(64);
+    }
+
+    public IntList( final int capacity ){
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    public void add( final int value ){
+        if( size == values.length ){
+            values = Arrays.copyOf(values, values.length << 1);
+        }
+        values[size++] = value;
+    }
+
+    public int get( final int index ){
+        return values[index];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int[] toArray(){
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,291 @@
+package com.stehno.oldemo.service;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * K-means clustering of the live points of a PointSnapshot, working directly on the primitive coordinate columns.
+ *
+ * The initial centroids are chosen with k-means++ seeding over a random sample of the points. Each full (Lloyd)
+ * iteration then splits the points across the fork/join pool: every task assigns its range of points to the nearest
+ * centroid and accumulates per-cluster coordinate sums and counts, which are merged as the tasks join. No objects are
+ * created per point.
+ *
+ * For very large data sets a mini-batch mode is available (Sculley, "Web-Scale K-Means Clustering"): each iteration
+ * assigns only a random batch of points, in parallel, and moves every centroid towards its assigned points with a
+ * per-centroid learning rate. A final parallel pass assigns all points to compute the cluster counts.
+ */
+public class KMeansClusterer {
+
+    private static final int SPLIT_THRESHOLD = 1 << 15;
+    private static final int SEED_SAMPLE_PER_CLUSTER = 50;
+
+    private final ForkJoinPool pool;
+    private final int clusterCount;
+    private final int iterations;
+    private final int miniBatchThreshold;
+    private final int miniBatchSize;
+    private final Random random;
+
+    /**
+     * @param pool the pool used to run the parallel steps
+     * @param clusterCount the number of clusters (k)
+     * @param iterations the number of iterations (full or mini-batch)
+     * @param miniBatchThreshold the number of points above which mini-batch mode is used, 0 to always use full iterations
+     * @param miniBatchSize the number of points sampled per mini-batch iteration
+     * @param random the random source for seeding and sampling
+     */
+    public KMeansClusterer( final ForkJoinPool pool, final int clusterCount, final int iterations, final int miniBatchThreshold, final int miniBatchSize, final Random random ){
+        this.pool = pool;
+        this.clusterCount = clusterCount;
+        this.iterations = iterations;
+        this.miniBatchThreshold = miniBatchThreshold;
+        this.miniBatchSize = miniBatchSize;
+        this.random = random;
+    }
+
+    /**
+     * Clusters all of the live points in the snapshot.
+     *
+     * @param store the points to be clustered
+     * @return the resulting clusters, empty if there are no points
+     */
+    public Centroids cluster( final PointSnapshot store ){
+        final int count = store.size();
+        final int k = Math.min(clusterCount, count);
+        if( k == 0 ) return new Centroids(new double[0], new double[0], new int[0]);
+
+        final double[] lons = new double[k];
+        final double[] lats = new double[k];
+        seed(store, lons, lats);
+
+        final boolean miniBatch = miniBatchThreshold > 0 && count > miniBatchThreshold;
+
+        // the points assigned to each centroid over all of the mini-batches, so that its learning rate keeps decaying
+        final int[] seen = miniBatch ? new int[k] : null;
+
+        for( int i=0; i<iterations; i++ ){
+            if( miniBatch ){
+                miniBatchStep(store, lons, lats, seen);
+
+            } else {
+                final Partial totals = pool.invoke(new AssignTask(store, lons, lats, 0, store.rows()));
+                for( int c=0; c<k; c++ ){
+                    // an empty cluster keeps its previous centroid
+                    if( totals.counts[c] != 0 ){
+                        lons[c] = totals.lons[c] / totals.counts[c];
+                        lats[c] = totals.lats[c] / totals.counts[c];
+                    }
+                }
+            }
+        }
+
+        final Partial totals = pool.invoke(new AssignTask(store, lons, lats, 0, store.rows()));
+        return new Centroids(lons, lats, totals.counts);
+    }
+
+    /**
+     * k-means++ seeding over a random sample of the points.
+     */
+    private void seed( final PointSnapshot store, final double[] lons, final double[] lats ){
+        final int count = store.size();
+        final int k = lons.length;
+        final int samples = Math.min(count, Math.max(k * SEED_SAMPLE_PER_CLUSTER, 10000));
+
+        final double[] sampleLons = new double[samples];
+        final double[] sampleLats = new double[samples];
+        int next = 0;
+        for( int i=0; i<samples; i++ ){
+            final int row;
+            if( samples == count ){
+                while( !store.isLive(next) ) next++;
+                row = next++;
+            } else {
+                row = randomRow(store);
+            }
+            sampleLons[i] = store.longitude(row);
+            sampleLats[i] = store.latitude(row);
+        }
+
+        final int first = random.nextInt(samples);
+        lons[0] = sampleLons[first];
+        lats[0] = sampleLats[first];
+
+        final double[] distances = new double[samples];
+        for( int i=0; i<samples; i++ ){
+            distances[i] = distance(sampleLons[i], sampleLats[i], lons[0], lats[0]);
+        }
+
+        for( int c=1; c<k; c++ ){
+            double total = 0;
+            for( int i=0; i<samples; i++ ){
+                total += distances[i];
+            }
+
+            int chosen = random.nextInt(samples);
+            if( total > 0 ){
+                double target = random.nextDouble() * total;
+                for( int i=0; i<samples; i++ ){
+                    target -= distances[i];
+                    if( target <= 0 ){
+                        chosen = i;
+                        break;
+                    }
+                }
+            }
+
+            lons[c] = sampleLons[chosen];
+            lats[c] = sampleLats[chosen];
+
+            for( int i=0; i<samples; i++ ){
+                distances[i] = Math.min(distances[i], distance(sampleLons[i], sampleLats[i], lons[c], lats[c]));
+            }
+        }
+    }
+
+    private void miniBatchStep( final PointSnapshot store, final double[] lons, final double[] lats, final int[] seen ){
+        final int[] batch = new int[Math.min(miniBatchSize, store.size())];
+        for( int i=0; i<batch.length; i++ ){
+            batch[i] = randomRow(store);
+        }
+
+        final int[] assigned = new int[batch.length];
+        pool.invoke(new BatchAssignTask(store, lons, lats, batch, assigned, 0, batch.length));
+
+        for( int i=0; i<batch.length; i++ ){
+            final int c = assigned[i];
+            final double rate = 1.0 / ++seen[c];
+            lons[c] += rate * (store.longitude(batch[i]) - lons[c]);
+            lats[c] += rate * (store.latitude(batch[i]) - lats[c]);
+        }
+    }
+
+    /**
+     * @return a random live row; the snapshot must have at least one live point
+     */
+    private int randomRow( final PointSnapshot store ){
+        int row;
+        do {
+            row = random.nextInt(store.rows());
+        } while( !store.isLive(row) );
+        return row;
+    }
+
+    static int nearest( final double lon, final double lat, final double[] lons, final double[] lats ){
+        int best = 0;
+        double bestDistance = Double.MAX_VALUE;
+        for( int c=0; c<lons.length; c++ ){
+            final double d = distance(lon, lat, lons[c], lats[c]);
+            if( d < bestDistance ){
+                bestDistance = d;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static double distance( final double lon1, final double lat1, final double lon2, final double lat2 ){
+        final double dx = lon1 - lon2;
+        final double dy = lat1 - lat2;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Per-cluster coordinate sums and counts for a range of points.
+     */
+    private static class Partial {
+        final double[] lons;
+        final double[] lats;
+        final int[] counts;
+
+        Partial( final int k ){
+            lons = new double[k];
+            lats = new double[k];
+            counts = new int[k];
+        }
+
+        Partial merge( final Partial other ){
+            for( int c=0; c<counts.length; c++ ){
+                lons[c] += other.lons[c];
+                lats[c] += other.lats[c];
+                counts[c] += other.counts[c];
+            }
+            return this;
+        }
+    }
+
+    private static class AssignTask extends RecursiveTask<Partial> {
+
+        private final PointSnapshot store;
+        private final double[] lons, lats;
+        private final int from, to;
+
+        AssignTask( final PointSnapshot store, final double[] lons, final double[] lats, final int from, final int to ){
+            this.store = store;
+            this.lons = lons;
+            this.lats = lats;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Partial compute(){
+            if( to - from > SPLIT_THRESHOLD ){
+                final int middle = (from + to) >>> 1;
+                final AssignTask left = new AssignTask(store, lons, lats, from, middle);
+                left.fork();
+                final Partial right = new AssignTask(store, lons, lats, middle, to).compute();
+                return right.merge(left.join());
+            }
+
+            final Partial partial = new Partial(lons.length);
+            for( int row = from; row < to; row++ ){
+                if( !store.isLive(row) ) continue;
+
+                final double lon = store.longitude(row);
+                final double lat = store.latitude(row);
+                final int c = nearest(lon, lat, lons, lats);
+                partial.lons[c] += lon;
+                partial.lats[c] += lat;
+                partial.counts[c]++;
+            }
+            return partial;
+        }
+    }
+
+    private static class BatchAssignTask extends RecursiveTask<Void> {
+
+        private final PointSnapshot store;
+        private final double[] lons, lats;
+        private final int[] batch, assigned;
+        private final int from, to;
+
+        BatchAssignTask( final PointSnapshot store, final double[] lons, final double[] lats, final int[] batch, final int[] assigned, final int from, final int to ){
+            this.store = store;
+            this.lons = lons;
+            this.lats = lats;
+            this.batch = batch;
+            this.assigned = assigned;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Void compute(){
+            if( to - from > SPLIT_THRESHOLD ){
+                final int middle = (from + to) >>> 1;
+                invokeAll(
+                    new BatchAssignTask(store, lons, lats, batch, assigned, from, middle),
+                    new BatchAssignTask(store, lons, lats, batch, assigned, middle, to)
+                );
+                return null;
+            }
+
+            for( int i = from; i < to; i++ ){
+                assigned[i] = nearest(store.longitude(batch[i]), store.latitude(batch[i]), lons, lats);
+            }
+            return null;
+        }
+    }
+}
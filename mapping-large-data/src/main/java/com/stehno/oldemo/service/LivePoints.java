@@ -0,0 +1,416 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PoiChange;
+import com.stehno.oldemo.dto.PointOfInterest;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The mutable set of points of interest: a loaded (or compacted) base store plus the writes applied since, published
+ * to readers as immutable PointSnapshot instances through an atomic reference.
+ *
+ * Writes are applied in batches by one writer at a time. A batch appends its added and updated points to the overlay,
+ * stamps the rows it deletes or replaces with the new version and then publishes a new snapshot, so the cost of a
+ * write does not depend on the size of the data and readers are never blocked. Every point has a stable id: the base
+ * rows of the initial data use their row numbers and new points are numbered from there on.
+ *
+ * Once the overlay grows large, compact() merges it into a new base store, spatial index and name index (which is
+ * built here for each base store). The merge runs outside of the write lock against a snapshot; the writes applied
+ * meanwhile are carried over before the result is published.
+ */
+public class LivePoints {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final AtomicReference<PointSnapshot> current;
+    private final Object writeLock = new Object();
+    private final Object compactLock = new Object();
+
+    // writer state, guarded by the write lock
+    private int version;
+    private int generation;
+    private int nextId;
+    private final int idStride;
+    private int size;
+    private PointStore store;
+    private PointIndex index;
+    private NameIndex names;
+    private int[] ids;
+    private long[] rowsById;
+    private int[] deleted;
+    private int[] deletedRows = new int[16];
+    private int deletedCount;
+    private PointSnapshot.Overlay overlay = new PointSnapshot.Overlay(64);
+    private int added;
+    private final Map<Integer, Integer> slotsById = new HashMap<>();
+
+    /**
+     * @param store the initial points, whose ids are their row numbers
+     * @param index the spatial index of the store
+     */
+    public LivePoints( final PointStore store, final PointIndex index ){
+        this(store, index, null, store.size(), 1);
+    }
+
+    /**
+     * @param store the initial points
+     * @param index the spatial index of the store
+     * @param ids the id of each row of the store, or null if the ids are the row numbers
+     * @param firstId the id of the first added point
+     * @param idStride the difference between the ids of consecutive added points, so that several instances (such as
+     *                 shards) can assign ids without overlapping
+     */
+    public LivePoints( final PointStore store, final PointIndex index, final int[] ids, final int firstId, final int idStride ){
+        this.store = store;
+        this.index = index;
+        this.names = new NameIndex(store);
+        this.ids = ids;
+        this.rowsById = ids != null ? rowsById(ids, null) : null;
+        this.size = store.size();
+        this.nextId = firstId;
+        this.idStride = idStride;
+        this.current = new AtomicReference<>(publishable());
+    }
+
+    /**
+     * @return the current snapshot, which should be used for the whole of a read
+     */
+    public PointSnapshot snapshot(){
+        return current.get();
+    }
+
+    /**
+     * @return the number of overlay rows (written since the last compaction), including deleted ones
+     */
+    public int pending(){
+        return current.get().addedSize();
+    }
+
+    /**
+     * Applies a batch of changes atomically: readers see either none or all of them. The batch is validated before any
+     * change is applied.
+     *
+     * @param changes the changes to apply, in order
+     * @return the result of the batch
+     * @throws IllegalArgumentException if a change is incomplete or has invalid coordinates
+     */
+    public Applied apply( final List<PoiChange> changes ){
+        for( final PoiChange change : changes ){
+            validate(change);
+        }
+
+        synchronized( writeLock ){
+            final int stamp = version + 1;
+            final Applied applied = new Applied(stamp, changes.size());
+
+            for( int i=0; i<changes.size(); i++ ){
+                final PoiChange change = changes.get(i);
+                switch( change.getType() ){
+                    case ADD:
+                        applied.ids[i] = append(nextId, change.getPoint());
+                        nextId += idStride;
+                        applied.added.add(change.getPoint().getLongitude(), change.getPoint().getLatitude());
+                        size++;
+                        break;
+
+                    case UPDATE:
+                        if( remove(change.getId(), stamp, applied) ){
+                            applied.ids[i] = append(change.getId(), change.getPoint());
+                            applied.added.add(change.getPoint().getLongitude(), change.getPoint().getLatitude());
+                        } else {
+                            applied.ids[i] = -1;
+                        }
+                        break;
+
+                    case DELETE:
+                        if( remove(change.getId(), stamp, applied) ){
+                            applied.ids[i] = change.getId();
+                            size--;
+                        } else {
+                            applied.ids[i] = -1;
+                        }
+                        break;
+                }
+            }
+
+            version = stamp;
+            current.set(publishable());
+            return applied;
+        }
+    }
+
+    /**
+     * Merges the overlay into a new base store and spatial index, dropping the deleted rows. Reads and writes continue
+     * while the new base is built.
+     *
+     * @return the published snapshot of the compacted data
+     */
+    public PointSnapshot compact(){
+        synchronized( compactLock ){
+            final PointSnapshot from = current.get();
+            final int rows = from.rows();
+
+            // new row of each live row of the snapshot, -1 for the dropped rows
+            final int[] moved = new int[rows];
+            int count = 0;
+            long nameBytes = 0;
+            for( int row=0; row<rows; row++ ){
+                if( from.isLive(row) ){
+                    moved[row] = count++;
+                    nameBytes += row < from.baseSize() ? from.getStore().nameLength(row) : encode(from.name(row)).length;
+                } else {
+                    moved[row] = -1;
+                }
+            }
+
+            if( nameBytes > Integer.MAX_VALUE ){
+                throw new IllegalStateException("Point names exceed the 2GB name storage limit");
+            }
+
+            final int[] compactedIds = new int[count];
+            final double[] longitudes = new double[count];
+            final double[] latitudes = new double[count];
+            final int[] nameOffsets = new int[count + 1];
+            final byte[] names = new byte[(int)nameBytes];
+
+            int offset = 0;
+            for( int row=0; row<rows; row++ ){
+                final int target = moved[row];
+                if( target < 0 ) continue;
+
+                compactedIds[target] = from.id(row);
+                longitudes[target] = from.longitude(row);
+                latitudes[target] = from.latitude(row);
+                nameOffsets[target] = offset;
+
+                if( row < from.baseSize() ){
+                    offset += from.getStore().copyName(row, names, offset);
+                } else {
+                    final byte[] encoded = encode(from.name(row));
+                    System.arraycopy(encoded, 0, names, offset, encoded.length);
+                    offset += encoded.length;
+                }
+            }
+            nameOffsets[count] = offset;
+
+            final PointStore compactedStore = new PointStore(
+                DoubleBuffer.wrap(longitudes), DoubleBuffer.wrap(latitudes), IntBuffer.wrap(nameOffsets), ByteBuffer.wrap(names)
+            );
+            final PointIndex compactedIndex = new PointIndex(compactedStore);
+            final NameIndex compactedNames = new NameIndex(compactedStore);
+
+            synchronized( writeLock ){
+                // carry over the deletions of the compacted rows made since the snapshot
+                int[] compactedDeleted = null;
+                int[] compactedDeletedRows = new int[16];
+                int compactedDeletedCount = 0;
+                for( int row=0; row<rows; row++ ){
+                    final int stamp = row < store.size() ? (deleted != null ? deleted[row] : 0) : overlay.deleted[row - store.size()];
+                    if( stamp != 0 && moved[row] >= 0 ){
+                        if( compactedDeleted == null ) compactedDeleted = new int[count];
+                        compactedDeleted[moved[row]] = stamp;
+
+                        if( compactedDeletedCount == compactedDeletedRows.length ){
+                            compactedDeletedRows = Arrays.copyOf(compactedDeletedRows, compactedDeletedCount << 1);
+                        }
+                        compactedDeletedRows[compactedDeletedCount++] = moved[row];
+                    }
+                }
+
+                // and the points added since the snapshot, which stay in the overlay
+                final PointSnapshot.Overlay remaining = new PointSnapshot.Overlay(Math.max(64, Integer.highestOneBit(Math.max(added - from.addedSize(), 1)) << 1));
+                int remainingCount = 0;
+                slotsById.clear();
+                for( int slot = from.addedSize(); slot < added; slot++ ){
+                    if( overlay.deleted[slot] != 0 ) continue;
+
+                    remaining.ids[remainingCount] = overlay.ids[slot];
+                    remaining.longitudes[remainingCount] = overlay.longitudes[slot];
+                    remaining.latitudes[remainingCount] = overlay.latitudes[slot];
+                    remaining.names[remainingCount] = overlay.names[slot];
+                    slotsById.put(overlay.ids[slot], remainingCount);
+                    remainingCount++;
+                }
+
+                store = compactedStore;
+                index = compactedIndex;
+                this.names = compactedNames;
+                ids = compactedIds;
+                deleted = compactedDeleted;
+                deletedRows = compactedDeletedRows;
+                deletedCount = compactedDeletedCount;
+                overlay = remaining;
+                added = remainingCount;
+                generation++;
+
+                rowsById = rowsById(compactedIds, compactedDeleted);
+
+                final PointSnapshot compacted = publishable();
+                current.set(compacted);
+                return compacted;
+            }
+        }
+    }
+
+    private PointSnapshot publishable(){
+        return new PointSnapshot(version, generation, store, index, names, ids, deleted, deletedRows, deletedCount, overlay, added, size);
+    }
+
+    private int append( final int id, final PointOfInterest poi ){
+        if( added == overlay.capacity() ){
+            overlay = overlay.grow();
+        }
+
+        overlay.ids[added] = id;
+        overlay.longitudes[added] = poi.getLongitude();
+        overlay.latitudes[added] = poi.getLatitude();
+        overlay.names[added] = poi.getName() != null ? poi.getName() : "";
+        overlay.deleted[added] = 0;
+        slotsById.put(id, added);
+        added++;
+        return id;
+    }
+
+    /**
+     * Stamps the current row of the point with the given id as deleted.
+     *
+     * @return false if there is no such live point
+     */
+    private boolean remove( final int id, final int stamp, final Applied applied ){
+        final Integer slot = slotsById.remove(id);
+        if( slot != null ){
+            overlay.deleted[slot] = stamp;
+            applied.removed.add(overlay.longitudes[slot], overlay.latitudes[slot]);
+            return true;
+        }
+
+        final int row = baseRow(id);
+        if( row < 0 || (deleted != null && deleted[row] != 0) ){
+            return false;
+        }
+
+        if( deleted == null ){
+            deleted = new int[store.size()];
+        }
+        deleted[row] = stamp;
+
+        // like the overlay, the list is only appended to (or replaced by a larger copy)
+        if( deletedCount == deletedRows.length ){
+            deletedRows = Arrays.copyOf(deletedRows, deletedCount << 1);
+        }
+        deletedRows[deletedCount++] = row;
+        applied.removed.add(store.longitude(row), store.latitude(row));
+        return true;
+    }
+
+    /**
+     * Finds the base row of the given id, which may be a deleted row.
+     *
+     * @return the row, or -1 if there is none
+     */
+    private int baseRow( final int id ){
+        if( rowsById == null ){
+            return id >= 0 && id < store.size() ? id : -1;
+        }
+
+        int position = Arrays.binarySearch(rowsById, (long)id << 32);
+        if( position < 0 ) position = -position - 1;
+        return position < rowsById.length && (int)(rowsById[position] >>> 32) == id ? (int)rowsById[position] : -1;
+    }
+
+    /**
+     * Builds the id to base row lookup: the (id, row) pairs of the live rows packed into sorted longs, which takes 8
+     * bytes per row whatever the range of the ids.
+     */
+    private static long[] rowsById( final int[] ids, final int[] deleted ){
+        final IntList live = new IntList(ids.length);
+        for( int row=0; row<ids.length; row++ ){
+            if( deleted == null || deleted[row] == 0 ) live.add(row);
+        }
+
+        final long[] pairs = new long[live.size()];
+        for( int i=0; i<pairs.length; i++ ){
+            final int row = live.get(i);
+            pairs[i] = ((long)ids[row] << 32) | row;
+        }
+        Arrays.sort(pairs);
+        return pairs;
+    }
+
+    private static void validate( final PoiChange change ){
+        if( change == null || change.getType() == null ){
+            throw new IllegalArgumentException("A change must have a type");
+        }
+
+        if( change.getType() != PoiChange.Type.ADD && change.getId() == null ){
+            throw new IllegalArgumentException("An " + change.getType() + " change must have an id");
+        }
+
+        if( change.getType() != PoiChange.Type.DELETE ){
+            final PointOfInterest poi = change.getPoint();
+            if( poi == null ){
+                throw new IllegalArgumentException("An " + change.getType() + " change must have a point");
+            }
+            if( !(Math.abs(poi.getLongitude()) <= 180) || !(Math.abs(poi.getLatitude()) <= 90) ){
+                throw new IllegalArgumentException("Invalid coordinates (" + poi.getLongitude() + ", " + poi.getLatitude() + ")");
+            }
+        }
+    }
+
+    private static byte[] encode( final String name ){
+        return name.getBytes(UTF8);
+    }
+
+    /**
+     * The outcome of an applied batch.
+     */
+    public static class Applied {
+
+        private final int version;
+        private final int[] ids;
+        private final Coordinates added = new Coordinates();
+        private final Coordinates removed = new Coordinates();
+
+        Applied( final int version, final int changes ){
+            this.version = version;
+            this.ids = new int[changes];
+        }
+
+        /**
+         * @return the version published by the batch
+         */
+        public int getVersion(){
+            return version;
+        }
+
+        /**
+         * @return the id of the point affected by each change, in order, or -1 where an updated or deleted point did
+         * not exist
+         */
+        public int[] getIds(){
+            return ids;
+        }
+
+        /**
+         * @return the locations of the added points and the new locations of the updated points
+         */
+        public Coordinates getAdded(){
+            return added;
+        }
+
+        /**
+         * @return the locations of the deleted points and the old locations of the updated points
+         */
+        public Coordinates getRemoved(){
+            return removed;
+        }
+    }
+}
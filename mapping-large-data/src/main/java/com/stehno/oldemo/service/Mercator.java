@@ -0,0 +1,40 @@
+package com.stehno.oldemo.service;
+
+/**
+ * Spherical (web) mercator projection helpers, mapping longitude and latitude onto the unit square used by slippy-map
+ * tiles: x runs from 0 at 180W to 1 at 180E, y from 0 at the northern edge to 1 at the southern edge.
+ */
+public final class Mercator {
+
+    public static final double MAX_LATITUDE = 85.0511287798;
+
+    private Mercator(){}
+
+    public static double x( final double longitude ){
+        return clamp((longitude + 180.0) / 360.0);
+    }
+
+    public static double y( final double latitude ){
+        final double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return clamp(0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI));
+    }
+
+    public static double longitude( final double x ){
+        return x * 360.0 - 180.0;
+    }
+
+    public static double latitude( final double y ){
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+
+    /**
+     * Finds the cell containing the given unit coordinate in a grid of the given number of cells per axis.
+     */
+    public static int cell( final double unit, final int cells ){
+        return Math.min((int)(unit * cells), cells - 1);
+    }
+
+    private static double clamp( final double value ){
+        return Math.max(0.0, Math.min(1.0, value));
+    }
+}
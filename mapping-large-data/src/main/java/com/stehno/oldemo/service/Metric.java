@@ -0,0 +1,82 @@
+package com.stehno.oldemo.service;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of recorded values - durations or counts - held in an HdrHistogram with two significant digits.
+ *
+ * Values are recorded into a Recorder over a fixed range, which is wait-free and does not allocate, so recording can
+ * stay on for every request. Values above the range are recorded as its highest value. Readers fold what was recorded
+ * since the last read into the running totals.
+ */
+public class Metric {
+
+    private static final int DIGITS = 2;
+
+    private final TimeUnit unit;
+    private final long highest;
+    private final Recorder recorder;
+    private final Histogram totals;
+    private Histogram interval;
+
+    /**
+     * @param unit the unit of the recorded durations, or null if the values are counts
+     * @param highest the highest value to be told apart
+     */
+    public Metric( final TimeUnit unit, final long highest ){
+        this.unit = unit;
+        this.highest = highest;
+        this.recorder = new Recorder(highest, DIGITS);
+        this.totals = new Histogram(highest, DIGITS);
+    }
+
+    /**
+     * Creates a metric of durations of up to an hour.
+     */
+    public static Metric timer( final TimeUnit unit ){
+        return new Metric(unit, unit.convert(1, TimeUnit.HOURS));
+    }
+
+    /**
+     * Creates a metric of counts of up to Integer.MAX_VALUE.
+     */
+    public static Metric counts(){
+        return new Metric(null, Integer.MAX_VALUE);
+    }
+
+    public void record( final long value ){
+        recorder.recordValue(Math.max(0, Math.min(value, highest)));
+    }
+
+    /**
+     * Records the time elapsed since the given System.nanoTime() value, in the unit of the metric.
+     */
+    public void recordSince( final long startNanos ){
+        record(unit.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * @return the distribution of all of the values recorded so far (or since the last reset)
+     */
+    public synchronized MetricSnapshot snapshot(){
+        collect();
+        return new MetricSnapshot(
+            unit != null ? unit.name().toLowerCase() : "count", totals.getTotalCount(), totals.getTotalCount() > 0 ? totals.getMean() : 0,
+            totals.getValueAtPercentile(50), totals.getValueAtPercentile(90), totals.getValueAtPercentile(99),
+            totals.getValueAtPercentile(99.9), totals.getMaxValue()
+        );
+    }
+
+    public synchronized void reset(){
+        collect();
+        totals.reset();
+    }
+
+    private void collect(){
+        interval = recorder.getIntervalHistogram(interval);
+        totals.add(interval);
+    }
+}
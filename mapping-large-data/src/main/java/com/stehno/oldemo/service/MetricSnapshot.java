@@ -0,0 +1,65 @@
+package com.stehno.oldemo.service;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The distribution of the values of a Metric at one point in time.
+ */
+public class MetricSnapshot {
+
+    private final String unit;
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    @ConstructorProperties({ "unit", "count", "mean", "p50", "p90", "p99", "p999", "max" })
+    public MetricSnapshot( final String unit, final long count, final double mean, final long p50, final long p90, final long p99, final long p999, final long max ){
+        this.unit = unit;
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /**
+     * @return the unit of the values: a time unit (such as "microseconds") or "count"
+     */
+    public String getUnit(){
+        return unit;
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    public double getMean(){
+        return mean;
+    }
+
+    public long getP50(){
+        return p50;
+    }
+
+    public long getP90(){
+        return p90;
+    }
+
+    public long getP99(){
+        return p99;
+    }
+
+    public long getP999(){
+        return p999;
+    }
+
+    public long getMax(){
+        return max;
+    }
+}
@@ -0,0 +1,213 @@
+package com.stehno.oldemo.service;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Prefix index over the names of a PointStore: the rows sorted by case-folded name, so that the names starting with a
+ * prefix form one run of positions, found by two binary searches.
+ *
+ * The names are compared as their UTF-8 bytes (which sorts them in code point order) with ASCII letters folded to
+ * lower case, straight from the name column of the store, so the index itself is only the sorted array of rows: 4
+ * bytes per point. Letters outside of ASCII are not folded. The rows are sorted with a multikey (three-way radix)
+ * quicksort, which only looks at each name as far as needed to tell it apart; names often share long prefixes.
+ */
+public class NameIndex {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final IntBuffer nameOffsets;
+    private final ByteBuffer names;
+    private final int[] order;
+
+    /**
+     * Builds the index over the names of the given store.
+     *
+     * @param store the points to be indexed
+     */
+    public NameIndex( final PointStore store ){
+        this.nameOffsets = store.nameOffsets();
+        this.names = store.names();
+
+        order = new int[store.size()];
+        for( int row=0; row<order.length; row++ ){
+            order[row] = row;
+        }
+        sort(order, 0, order.length - 1, 0);
+    }
+
+    /**
+     * @return the number of indexed names
+     */
+    public int size(){
+        return order.length;
+    }
+
+    /**
+     * @return the row at the given position, in name order
+     */
+    public int row( final int position ){
+        return order[position];
+    }
+
+    /**
+     * @param prefix the case-folded prefix (see fold())
+     * @return the first position whose name is not less than the prefix
+     */
+    public int first( final byte[] prefix ){
+        int lo = 0, hi = order.length;
+        while( lo < hi ){
+            final int mid = (lo + hi) >>> 1;
+            if( comparePrefix(order[mid], prefix) < 0 ) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @param prefix the case-folded prefix (see fold())
+     * @return the position after the last name starting with the prefix
+     */
+    public int end( final byte[] prefix ){
+        int lo = 0, hi = order.length;
+        while( lo < hi ){
+            final int mid = (lo + hi) >>> 1;
+            if( comparePrefix(order[mid], prefix) <= 0 ) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return whether or not the name of the row starts with the case-folded prefix
+     */
+    public boolean startsWith( final int row, final byte[] prefix ){
+        return comparePrefix(row, prefix) == 0;
+    }
+
+    /**
+     * @return whether or not the case-folded name starts with the case-folded prefix
+     */
+    public static boolean startsWith( final byte[] name, final byte[] prefix ){
+        if( name.length < prefix.length ) return false;
+
+        for( int i=0; i<prefix.length; i++ ){
+            if( name[i] != prefix[i] ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the given rows of the store by name.
+     */
+    void sort( final int[] rows ){
+        sort(rows, 0, rows.length - 1, 0);
+    }
+
+    /**
+     * @return the UTF-8 bytes of the name with ASCII letters in lower case, as compared by the index
+     */
+    public static byte[] fold( final String name ){
+        final byte[] bytes = name.getBytes(UTF8);
+        for( int i=0; i<bytes.length; i++ ){
+            bytes[i] = (byte)fold(bytes[i] & 0xff);
+        }
+        return bytes;
+    }
+
+    /**
+     * Compares two case-folded names in index order.
+     */
+    public static int compare( final byte[] a, final byte[] b ){
+        final int length = Math.min(a.length, b.length);
+        for( int i=0; i<length; i++ ){
+            final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if( diff != 0 ) return diff;
+        }
+        return a.length - b.length;
+    }
+
+    private static int fold( final int b ){
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * @return the case-folded byte of the name of the row at the given depth, or -1 past its end
+     */
+    private int key( final int row, final int depth ){
+        final int start = nameOffsets.get(row);
+        return start + depth < nameOffsets.get(row + 1) ? fold(names.get(start + depth) & 0xff) : -1;
+    }
+
+    /**
+     * @return less than, equal to or greater than zero as the name of the row sorts before, starts with or sorts after
+     * the prefix
+     */
+    private int comparePrefix( final int row, final byte[] prefix ){
+        final int start = nameOffsets.get(row);
+        final int length = nameOffsets.get(row + 1) - start;
+
+        for( int i=0; i<prefix.length; i++ ){
+            if( i == length ) return -1;
+
+            final int diff = fold(names.get(start + i) & 0xff) - (prefix[i] & 0xff);
+            if( diff != 0 ) return diff;
+        }
+        return 0;
+    }
+
+    /**
+     * Multikey quicksort of rows[lo..hi], whose names are known to be equal up to the given depth.
+     */
+    private void sort( final int[] rows, int lo, int hi, int depth ){
+        while( hi - lo > 16 ){
+            final int pivot = key(rows[lo + ThreadLocalRandom.current().nextInt(hi - lo + 1)], depth);
+
+            int lt = lo, gt = hi, i = lo;
+            while( i <= gt ){
+                final int k = key(rows[i], depth);
+                if( k < pivot ){
+                    swap(rows, lt++, i++);
+                } else if( k > pivot ){
+                    swap(rows, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+
+            sort(rows, lo, lt - 1, depth);
+            sort(rows, gt + 1, hi, depth);
+
+            // the run sharing the pivot byte continues at the next byte, unless the names ended there
+            if( pivot < 0 ) return;
+            lo = lt;
+            hi = gt;
+            depth++;
+        }
+
+        for( int i = lo + 1; i <= hi; i++ ){
+            final int row = rows[i];
+            int j = i - 1;
+            while( j >= lo && compareFrom(rows[j], row, depth) > 0 ){
+                rows[j + 1] = rows[j];
+                j--;
+            }
+            rows[j + 1] = row;
+        }
+    }
+
+    private int compareFrom( final int a, final int b, int depth ){
+        while( true ){
+            final int ka = key(a, depth);
+            final int kb = key(b, depth);
+            if( ka != kb || ka < 0 ) return ka - kb;
+            depth++;
+        }
+    }
+
+    private static void swap( final int[] array, final int a, final int b ){
+        final int tmp = array[a];
+        array[a] = array[b];
+        array[b] = tmp;
+    }
+}
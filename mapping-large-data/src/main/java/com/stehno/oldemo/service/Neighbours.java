@@ -0,0 +1,117 @@
+package com.stehno.oldemo.service;
+
+import java.util.Arrays;
+
+/**
+ * Collects the rows found by a distance query with their distances in meters, keeping only the nearest ones when a
+ * limit is given.
+ *
+ * The rows are held in a max-heap on distance, so the farthest kept row is known at all times and can be replaced in
+ * O(log k) by a nearer one; a search may stop exploring anything farther than farthest() once the collector is full.
+ * sort() then puts the rows in ascending order of distance, after which no more rows may be added.
+ */
+public final class Neighbours {
+
+    private final int limit;
+    private int[] rows;
+    private double[] distances;
+    private int size;
+
+    /**
+     * @param limit the maximum number of rows to keep, or 0 to keep all of them
+     */
+    public Neighbours( final int limit ){
+        this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+
+        final int capacity = limit > 0 ? Math.min(limit, 1024) : 64;
+        rows = new int[capacity];
+        distances = new double[capacity];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return whether or not the limit has been reached, after which a row is only added if it is nearer than farthest()
+     */
+    public boolean isFull(){
+        return size == limit;
+    }
+
+    /**
+     * @return the distance of the farthest row kept, or infinity while the collector is not full
+     */
+    public double farthest(){
+        return size == limit ? distances[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Adds a row, evicting the farthest row kept if the collector is full and the new row is nearer.
+     */
+    public void add( final int row, final double distance ){
+        if( size < limit ){
+            if( size == rows.length ){
+                final int capacity = (int)Math.min((long)rows.length << 1, limit);
+                rows = Arrays.copyOf(rows, capacity);
+                distances = Arrays.copyOf(distances, capacity);
+            }
+
+            int i = size++;
+            while( i > 0 ){
+                final int parent = (i - 1) >>> 1;
+                if( distances[parent] >= distance ) break;
+                rows[i] = rows[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            rows[i] = row;
+            distances[i] = distance;
+
+        } else if( distance < distances[0] ){
+            siftDown(0, size, row, distance);
+        }
+    }
+
+    /**
+     * Sorts the rows in ascending order of distance (heap sort, in place).
+     *
+     * @return this collector
+     */
+    public Neighbours sort(){
+        for( int end = size - 1; end > 0; end-- ){
+            final int row = rows[end];
+            final double distance = distances[end];
+            rows[end] = rows[0];
+            distances[end] = distances[0];
+            siftDown(0, end, row, distance);
+        }
+        return this;
+    }
+
+    public int row( final int i ){
+        return rows[i];
+    }
+
+    public double distance( final int i ){
+        return distances[i];
+    }
+
+    /**
+     * Places the given entry at position i of the heap of the given size, moving larger children up.
+     */
+    private void siftDown( int i, final int heapSize, final int row, final double distance ){
+        while( true ){
+            int child = 2 * i + 1;
+            if( child >= heapSize ) break;
+            if( child + 1 < heapSize && distances[child + 1] > distances[child] ) child++;
+            if( distances[child] <= distance ) break;
+
+            rows[i] = rows[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        rows[i] = row;
+        distances[i] = distance;
+    }
+}
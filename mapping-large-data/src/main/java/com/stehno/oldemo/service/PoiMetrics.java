@@ -0,0 +1,198 @@
+package com.stehno.oldemo.service;
+
+import com.google.common.cache.CacheStats;
+import com.stehno.oldemo.config.BoundedCacheManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.CacheManager;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request and engine metrics: the latency and result count of each endpoint, the bounding-box index search and scan
+ * times, the clustering, loading and compaction durations, the query queue waits and shed requests (see
+ * QueryExecutor), and the cache hit and miss counts.
+ *
+ * The distributions are Metric instances created up front, so recording one on the request path is a System.nanoTime()
+ * call and a wait-free histogram update, without allocation. They are exported over JMX (oldemo:type=PoiMetrics) and
+ * served by the /poi/metrics endpoint.
+ */
+@Service
+@ManagedResource(objectName="oldemo:type=PoiMetrics")
+public class PoiMetrics implements PoiMetricsMXBean {
+
+    /**
+     * The instrumented endpoints.
+     */
+    public enum Endpoint {
+        V1, V2, V3, V4, TILES, STREAM, NEAREST, RADIUS, NAMES, DELTA, GRID, AUTO, POLYGON, POINTS;
+
+        private final String key = name().toLowerCase();
+    }
+
+    @Autowired(required=false) private CacheManager cacheManager;
+    @Autowired(required=false) private TileService tileService;
+
+    private final Metric[] latencies = new Metric[Endpoint.values().length];
+    private final Metric[] results = new Metric[Endpoint.values().length];
+
+    private final Metric boundsIndex = Metric.timer(TimeUnit.MICROSECONDS);
+    private final Metric boundsScan = Metric.timer(TimeUnit.MICROSECONDS);
+    private final Metric boundsRows = Metric.counts();
+    private final Metric clustering = Metric.timer(TimeUnit.MILLISECONDS);
+    private final Metric loading = Metric.timer(TimeUnit.MILLISECONDS);
+    private final Metric compaction = Metric.timer(TimeUnit.MILLISECONDS);
+    private final Metric[] queueWaits = new Metric[QueryExecutor.Lane.values().length];
+    private final Metric[] shed = new Metric[QueryExecutor.Lane.values().length];
+
+    public PoiMetrics(){
+        for( int e=0; e<latencies.length; e++ ){
+            latencies[e] = Metric.timer(TimeUnit.MICROSECONDS);
+            results[e] = Metric.counts();
+        }
+        for( int l=0; l<queueWaits.length; l++ ){
+            queueWaits[l] = Metric.timer(TimeUnit.MICROSECONDS);
+            shed[l] = Metric.counts();
+        }
+    }
+
+    /**
+     * Records a handled request.
+     *
+     * @param endpoint the endpoint
+     * @param startNanos the System.nanoTime() at which handling started
+     * @param count the number of results, or a negative value if there is no count to record
+     */
+    public void request( final Endpoint endpoint, final long startNanos, final int count ){
+        latencies[endpoint.ordinal()].recordSince(startNanos);
+        if( count >= 0 ){
+            results[endpoint.ordinal()].record(count);
+        }
+    }
+
+    /**
+     * @return the time taken to search the spatial index for a bounding box (on cache misses)
+     */
+    public Metric boundsIndex(){
+        return boundsIndex;
+    }
+
+    /**
+     * @return the time taken to filter the candidate rows of a bounding box and build the results
+     */
+    public Metric boundsScan(){
+        return boundsScan;
+    }
+
+    /**
+     * @return the number of candidate rows filtered for a bounding box
+     */
+    public Metric boundsRows(){
+        return boundsRows;
+    }
+
+    /**
+     * @return the time taken by full k-means clustering runs
+     */
+    public Metric clustering(){
+        return clustering;
+    }
+
+    /**
+     * @return the time taken to load the data (including the index and the cluster pyramid)
+     */
+    public Metric loading(){
+        return loading;
+    }
+
+    /**
+     * @return the time taken by compactions (including the cluster pyramid)
+     */
+    public Metric compaction(){
+        return compaction;
+    }
+
+    /**
+     * @return the time queries of the lane wait for a thread
+     */
+    public Metric queueWait( final QueryExecutor.Lane lane ){
+        return queueWaits[lane.ordinal()];
+    }
+
+    /**
+     * @return the queries of the lane turned away because its queue was full (recorded with the queue depth)
+     */
+    public Metric shed( final QueryExecutor.Lane lane ){
+        return shed[lane.ordinal()];
+    }
+
+    @Override
+    public Map<String, MetricSnapshot> getMetrics(){
+        final Map<String, MetricSnapshot> metrics = new LinkedHashMap<>();
+        for( final Endpoint endpoint : Endpoint.values() ){
+            final MetricSnapshot latency = latencies[endpoint.ordinal()].snapshot();
+            if( latency.getCount() == 0 ) continue;
+
+            metrics.put(endpoint.key + ".latency", latency);
+
+            final MetricSnapshot count = results[endpoint.ordinal()].snapshot();
+            if( count.getCount() > 0 ){
+                metrics.put(endpoint.key + ".results", count);
+            }
+        }
+
+        metrics.put("bounds.index", boundsIndex.snapshot());
+        metrics.put("bounds.scan", boundsScan.snapshot());
+        metrics.put("bounds.rows", boundsRows.snapshot());
+        metrics.put("clustering", clustering.snapshot());
+        metrics.put("loading", loading.snapshot());
+        metrics.put("compaction", compaction.snapshot());
+        for( final QueryExecutor.Lane lane : QueryExecutor.Lane.values() ){
+            metrics.put("queue." + lane.key() + ".wait", queueWaits[lane.ordinal()].snapshot());
+            metrics.put("queue." + lane.key() + ".shed", shed[lane.ordinal()].snapshot());
+        }
+        return metrics;
+    }
+
+    @Override
+    public Map<String, CacheSnapshot> getCaches(){
+        final Map<String, CacheSnapshot> caches = new LinkedHashMap<>();
+
+        if( cacheManager instanceof BoundedCacheManager ){
+            final BoundedCacheManager boundedCacheManager = (BoundedCacheManager)cacheManager;
+            for( final String name : boundedCacheManager.getCacheNames() ){
+                final BoundedCacheManager.BoundedCache cache = boundedCacheManager.getCache(name);
+                caches.put(name, new CacheSnapshot(cache.getHitCount(), cache.getMissCount(), cache.getEvictionCount()));
+            }
+        }
+
+        if( tileService != null ){
+            final CacheStats stats = tileService.stats();
+            caches.put("tiles", new CacheSnapshot(stats.hitCount(), stats.missCount(), stats.evictionCount()));
+        }
+
+        return caches;
+    }
+
+    @Override
+    public void reset(){
+        for( int e=0; e<latencies.length; e++ ){
+            latencies[e].reset();
+            results[e].reset();
+        }
+
+        boundsIndex.reset();
+        boundsScan.reset();
+        boundsRows.reset();
+        clustering.reset();
+        loading.reset();
+        compaction.reset();
+        for( int l=0; l<queueWaits.length; l++ ){
+            queueWaits[l].reset();
+            shed[l].reset();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.stehno.oldemo.service;
+
+import java.util.Map;
+
+/**
+ * JMX view of the PoiMetrics.
+ */
+public interface PoiMetricsMXBean {
+
+    /**
+     * @return the distributions of the request latencies, result counts and engine timings, by name
+     */
+    Map<String, MetricSnapshot> getMetrics();
+
+    /**
+     * @return the hit and miss counts of the caches, by name
+     */
+    Map<String, CacheSnapshot> getCaches();
+
+    /**
+     * Clears the recorded distributions (the cache counts are kept by the caches themselves).
+     */
+    void reset();
+}
@@ -1,63 +1,152 @@
 package com.stehno.oldemo.service;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.stehno.oldemo.dto.PoiChange;
+import com.stehno.oldemo.dto.PoiDelta;
 import com.stehno.oldemo.dto.PointOfInterest;
 import org.apache.commons.lang3.SerializationUtils;
-import org.apache.commons.lang3.time.StopWatch;
-import org.apache.commons.math3.stat.clustering.Cluster;
-import org.apache.commons.math3.stat.clustering.EuclideanDoublePoint;
-import org.apache.commons.math3.stat.clustering.KMeansPlusPlusClusterer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Profile;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Provides access to points of interest stored in pre-built data file.
  *
- * This will load the data from the class path (/data.ser).
+ * This will load the data from the class path, memory-mapping the binary data file (/data.poi) if it exists and
+ * falling back to the serialized data file (/data.ser) otherwise, unless oldemo.data.file names a file to load instead.
+ * The binary file can only be mapped from the file system, so inside a packed war or jar the serialized file is loaded.
+ *
+ * Points may then be added, updated and deleted while the service is running (see LivePoints); each read works on a
+ * consistent snapshot of the data. Changes are held in memory only and are not written back to the data file.
+ *
+ * When oldemo.shard.count is greater than one, the service only holds the points of its own longitude range (shard
+ * oldemo.shard.index, see Shards) and only accepts points in that range; a coordinator node fans queries out to the
+ * shards (see ShardClient). Not used by the coordinator itself.
  */
 @Service
+@Profile("!coordinator")
 public class PoiService {
 
     private static final Logger log = LogManager.getLogger(PoiService.class);
-    private static final PoiToEuclidean POI_TO_EUCLIDEAN = new PoiToEuclidean();
-    private static final int CLUSTERING_ITERATIONS = 5;
-    private static final int CLUSTER_COUNT = 200;
-    private static final EuclideanToPoi EUCLIDEAN_TO_POI = new EuclideanToPoi();
+    private static final String BOUNDS_CACHE = "bounds";
+
+    @Autowired private CacheManager cacheManager;
+    @Autowired private ApplicationEventPublisher eventPublisher;
+    @Autowired private PoiMetrics metrics;
+    @Value("${oldemo.zoom.threshold:8}") private int zoomThreshold;
+    @Value("${oldemo.clusters.count:200}") private int clusterCount;
+    @Value("${oldemo.clusters.iterations:5}") private int clusteringIterations;
+    @Value("${oldemo.clusters.mini-batch.threshold:0}") private int miniBatchThreshold;
+    @Value("${oldemo.clusters.mini-batch.size:10000}") private int miniBatchSize;
+    @Value("${oldemo.clusters.warm:none}") private String clusterWarming;
+    @Value("${oldemo.clusters.refresh.changes:10000}") private int refreshChanges;
+    @Value("${oldemo.clusters.refresh.max-age:300}") private long refreshMaxAge;
+    @Value("${oldemo.clusters.refresh.incremental-limit:1000}") private int incrementalLimit;
+    @Value("${oldemo.parallelism:0}") private int parallelism;
+    @Value("${oldemo.ingest.compact-threshold:20000}") private int compactThreshold;
+    @Value("${oldemo.shard.index:0}") private int shardIndex;
+    @Value("${oldemo.shard.count:1}") private int shardCount;
+    @Value("${oldemo.data.file:}") private String dataFilePath;
 
     private final Random random = new Random();
     private final ClassPathResource dataFile = new ClassPathResource("/data.ser");
-    private List<PointOfInterest> points = new ArrayList<>();
+    private final ClassPathResource mappedDataFile = new ClassPathResource("/data.poi");
+    private volatile LivePoints live = empty();
+    private volatile ClusterPyramid pyramid = new ClusterPyramid(live.snapshot(), 1);
+    private final SingleFlight<Object, int[]> boundsFlight = new SingleFlight<>();
+    private final ExecutorService background = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("poi-background").setDaemon(true).build()
+    );
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final Object writeLock = new Object();
+    private ClusterRefresher clusters;
+    private ForkJoinPool pool;
 
-    @SuppressWarnings("unchecked")
     @PostConstruct
     public void init(){
-        try ( final InputStream inputStream = dataFile.getInputStream() ){
-            final StopWatch stopWatch = new StopWatch();
-            stopWatch.start();
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+
+        try {
+            final long loadStart = System.nanoTime();
+
+            // an explicit data file is used as is, by its extension; otherwise the classpath files are tried in turn
+            final Resource mapped = dataFilePath.isEmpty() ? mappedDataFile : dataFilePath.endsWith(".poi") ? new FileSystemResource(dataFilePath) : null;
+            final Resource serialized = dataFilePath.isEmpty() ? dataFile : new FileSystemResource(dataFilePath);
+
+            final PointFile pointFile = mapped != null && mapped.exists() ? map(mapped) : null;
 
-            points = (List<PointOfInterest>)SerializationUtils.deserialize(inputStream);
+            final PointStore points;
+            PointIndex loadedIndex = null;
+            if( pointFile != null ){
+                points = pointFile.getStore();
+                loadedIndex = pointFile.getIndex();
+
+            } else {
+                points = deserialize(serialized);
+            }
+
+            if( loadedIndex == null && shardCount <= 1 ){
+                loadedIndex = new PointIndex(points);
+            }
+
+            if( shardCount > 1 ){
+                live = shard(points);
+            } else {
+                live = new LivePoints(points, loadedIndex);
+            }
 
-            stopWatch.stop();
-            System.out.printf("Load-time: %d ms%n", stopWatch.getTime());
+            pyramid = new ClusterPyramid(live.snapshot(), pyramidLevels());
 
-            log.info("Loaded {} points of interest...", points.size());
+            metrics.loading().recordSince(loadStart);
+
+            final PointStore loaded = live.snapshot().getStore();
+            log.info("Loaded {} points of interest ({} KB{}) in {} ms", loaded.size(), loaded.sizeInBytes() / 1024, loaded.isMapped() ? ", mapped" : "",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart));
 
         } catch (IOException ioe ){
             log.fatal("Unable to load database: {}", ioe.getMessage(), ioe);
         }
+
+        clusters = new ClusterRefresher(
+            live,
+            new KMeansClusterer(pool, clusterCount, clusteringIterations, miniBatchThreshold, miniBatchSize, random),
+            background, refreshChanges, refreshMaxAge, incrementalLimit, metrics.clustering()
+        );
+
+        warmClusters();
+    }
+
+    @PreDestroy
+    public void destroy(){
+        background.shutdownNow();
+        pool.shutdownNow();
     }
 
     /**
@@ -65,11 +154,22 @@ public class PoiService {
      * @return
      */
     public PointOfInterest[] fetchAll(){
-        return points.toArray(new PointOfInterest[points.size()]);
+        final PointSnapshot snapshot = live.snapshot();
+        final List<PointOfInterest> results = new ArrayList<>(snapshot.size());
+        for( int row=0; row<snapshot.rows(); row++ ){
+            if( snapshot.isLive(row) ){
+                results.add(snapshot.populate(new PointOfInterest(), row));
+            }
+        }
+        return results.toArray(new PointOfInterest[results.size()]);
     }
 
     /**
-     * Retrieves all items contained withing the location bounds.
+     * Retrieves all items contained withing the location bounds, using the spatial index built at load time.
+     *
+     * The bounds are snapped outwards to a grid whose cell size is a power of two near a quarter of the viewport size,
+     * and the matching rows of the snapped box are cached, so nearby viewports at a similar zoom share a cache entry.
+     * The cached rows are then filtered down to the requested bounds and the current (live) points.
      *
      * @param left
      * @param bottom
@@ -78,62 +178,479 @@ public class PoiService {
      * @return
      */
     public PointOfInterest[] fetchByBoundingBox( final double left, final double bottom, final double right, final double top ){
-        final List<PointOfInterest> results = new LinkedList<>();
+        final PointSnapshot snapshot = live.snapshot();
+        final double cell = gridCell(Math.max(right - left, top - bottom) / 4);
+        final double snappedLeft = Math.floor(left / cell) * cell;
+        final double snappedBottom = Math.floor(bottom / cell) * cell;
+        final double snappedRight = Math.ceil(right / cell) * cell;
+        final double snappedTop = Math.ceil(top / cell) * cell;
 
-        for( final PointOfInterest poi: points ){
-            if( poi.getLatitude() < top && poi.getLatitude() > bottom && poi.getLongitude() < right && poi.getLongitude() > left ){
-                results.add(poi);
-            }
+        final Cache cache = cacheManager.getCache(BOUNDS_CACHE);
+        final Object key = Arrays.<Object>asList(snapshot.generation(), snappedLeft, snappedBottom, snappedRight, snappedTop);
+
+        final Cache.ValueWrapper cached = cache.get(key);
+        final int[] rows;
+        if( cached != null ){
+            rows = (int[])cached.get();
+        } else {
+            final PointIndex searchIndex = snapshot.getIndex();
+            rows = boundsFlight.execute(key, new Callable<int[]>() {
+                @Override
+                public int[] call(){
+                    final long searchStart = System.nanoTime();
+                    final int[] found = searchIndex.search(snappedLeft, snappedBottom, snappedRight, snappedTop);
+                    metrics.boundsIndex().recordSince(searchStart);
+
+                    cache.put(key, found);
+                    return found;
+                }
+            });
         }
 
-        return results.toArray(new PointOfInterest[results.size()]);
+        final long scanStart = System.nanoTime();
+        final PointOfInterest[] results = snapshot.toPointsOfInterest(snapshot.filter(rows, left, bottom, right, top));
+        metrics.boundsScan().recordSince(scanStart);
+        metrics.boundsRows().record(rows.length + snapshot.addedSize());
+
+        return results;
+    }
+
+    /**
+     * Retrieves the items inside the polygon (or multipolygon), using the spatial index to find the points inside its
+     * bounding box and testing those against the polygon in parallel (see PointSnapshot.searchPolygon).
+     *
+     * @param polygon the area
+     * @return the points inside the area
+     */
+    public PointOfInterest[] fetchWithinPolygon( final Polygon polygon ){
+        final PointSnapshot snapshot = live.snapshot();
+        return snapshot.toPointsOfInterest(snapshot.searchPolygon(polygon, pool));
+    }
+
+    /**
+     * Counts the items inside each of the given polygons (or multipolygons) in a single parallel pass over the points
+     * inside their overall bounding box (see PointSnapshot.countPolygons).
+     *
+     * @param polygons the areas
+     * @return the number of points inside each area, in order
+     */
+    public int[] countWithinPolygons( final List<Polygon> polygons ){
+        if( polygons.isEmpty() ) return new int[0];
+        return live.snapshot().countPolygons(new PolygonIndex(polygons), pool);
+    }
+
+    /**
+     * Aggregates the items contained within the location bounds on a grid of equal cells, using the point counts and
+     * coordinate sums of the spatial index nodes (see PointSnapshot.aggregate) rather than a pass over the points.
+     *
+     * @param left
+     * @param bottom
+     * @param right
+     * @param top
+     * @param columns the number of cells along the longitude range
+     * @param rows the number of cells along the latitude range
+     * @return a cluster at the centroid of each non-empty cell, with the number of points in the cell as its count
+     */
+    public PointOfInterest[] fetchGrid( final double left, final double bottom, final double right, final double top, final int columns, final int rows ){
+        return live.snapshot().aggregate(new DensityGrid(left, bottom, right, top, columns, rows)).toPointsOfInterest();
+    }
+
+    /**
+     * Retrieves the items contained within the location bounds if there are no more than the given budget of them, or
+     * their aggregated grid (see fetchGrid) otherwise. The grid is computed first, which also counts the items.
+     *
+     * @param left
+     * @param bottom
+     * @param right
+     * @param top
+     * @param columns the number of cells along the longitude range
+     * @param rows the number of cells along the latitude range
+     * @param budget the maximum number of points to return
+     * @return the points, or the grid cell clusters (which have a count)
+     */
+    public PointOfInterest[] fetchWithinBudget( final double left, final double bottom, final double right, final double top, final int columns, final int rows, final int budget ){
+        final DensityGrid grid = live.snapshot().aggregate(new DensityGrid(left, bottom, right, top, columns, rows));
+        return grid.total() <= budget ? fetchByBoundingBox(left, bottom, right, top) : grid.toPointsOfInterest();
+    }
+
+    /**
+     * Retrieves the change in the items within a map view as it moves from one bounding box to another, so a client
+     * that already holds the points of the previous view only fetches those of the newly uncovered strips. Points are
+     * identified by their (stable) ids. Both sides are taken from the same snapshot of the data.
+     *
+     * @param previous the previous bounds ( left, bottom, right, top)
+     * @param current the current bounds ( left, bottom, right, top)
+     * @param departed whether or not to include the ids of the points that left the view
+     * @return the points inside the current bounds but not the previous ones, and optionally the ids of the points
+     * inside the previous bounds but not the current ones
+     */
+    public PoiDelta fetchDelta( final double[] previous, final double[] current, final boolean departed ){
+        final PointSnapshot snapshot = live.snapshot();
+        final PointOfInterest[] entered = snapshot.toPointsOfInterest(snapshot.searchDifference(current, previous));
+        if( !departed ) return new PoiDelta(entered, null);
+
+        final int[] rows = snapshot.searchDifference(previous, current);
+        final int[] ids = new int[rows.length];
+        for( int i=0; i<rows.length; i++ ){
+            ids[i] = snapshot.id(rows[i]);
+        }
+        return new PoiDelta(entered, ids);
+    }
+
+    /**
+     * Streams the items in the data file, in row order, to the given sink. Cursors remain valid until the written
+     * points are next compacted.
+     *
+     * @param cursor the row to start at (0 for the first page)
+     * @param limit the maximum number of items to stream (0 for no limit)
+     * @param sink the sink receiving the items
+     * @return the cursor of the next page, or -1 if there are no more items
+     * @throws IOException if the sink fails
+     */
+    public int streamAll( final int cursor, final int limit, final PointSink sink ) throws IOException {
+        final PointSnapshot snapshot = live.snapshot();
+        final PointOfInterest poi = new PointOfInterest();
+
+        int streamed = 0;
+        for( int row = Math.max(cursor, 0); row < snapshot.rows(); row++ ){
+            if( !snapshot.isLive(row) ) continue;
+            if( limit > 0 && streamed == limit ) return row;
+
+            sink.accept(snapshot.populate(poi, row));
+            streamed++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Streams the items contained within the location bounds to the given sink as they are found in the spatial
+     * index, so no result array is built.
+     *
+     * @param left
+     * @param bottom
+     * @param right
+     * @param top
+     * @param cursor the index position to resume from (0 for the first page)
+     * @param limit the maximum number of items to stream (0 for no limit)
+     * @param sink the sink receiving the items
+     * @return the cursor of the next page, or -1 if there are no more items
+     * @throws IOException if the sink fails
+     */
+    public int streamByBoundingBox( final double left, final double bottom, final double right, final double top, final int cursor, final int limit, final PointSink sink ) throws IOException {
+        final PointSnapshot snapshot = live.snapshot();
+        final PointOfInterest poi = new PointOfInterest();
+        final int[] next = { -1 };
+
+        try {
+            snapshot.search(left, bottom, right, top, Math.max(cursor, 0), new PointIndex.Visitor() {
+                private int streamed;
+
+                @Override
+                public boolean visit( final int position, final int row ){
+                    if( limit > 0 && streamed == limit ){
+                        next[0] = position;
+                        return false;
+                    }
+
+                    try {
+                        sink.accept(snapshot.populate(poi, row));
+                    } catch( IOException ioe ){
+                        throw new SinkException(ioe);
+                    }
+
+                    streamed++;
+                    return true;
+                }
+            });
+
+        } catch( SinkException se ){
+            throw se.getCause();
+        }
+
+        return next[0];
+    }
+
+    /**
+     * Retrieves the points of interest nearest to the given location by great-circle distance, found by a best-first
+     * search of the spatial index rather than a scan of all points.
+     *
+     * @param lon the longitude of the location
+     * @param lat the latitude of the location
+     * @param count the number of points to retrieve
+     * @param maxDistance the maximum distance of the points in meters, or infinity for no limit
+     * @return the nearest points, nearest first
+     */
+    public PointOfInterest[] fetchNearest( final double lon, final double lat, final int count, final double maxDistance ){
+        return nearest(live.snapshot(), lon, lat, count, maxDistance);
+    }
+
+    /**
+     * Retrieves the points of interest within the given great-circle distance of a location, using the spatial index.
+     *
+     * @param lon the longitude of the location
+     * @param lat the latitude of the location
+     * @param radius the distance in meters
+     * @param limit the maximum number of points, the nearest ones being kept (0 for no limit)
+     * @return the points within the distance, nearest first
+     */
+    public PointOfInterest[] fetchWithinRadius( final double lon, final double lat, final double radius, final int limit ){
+        return nearest(live.snapshot(), lon, lat, limit, radius);
+    }
+
+    /**
+     * Retrieves the points of interest whose names start with the given prefix, ignoring the case of ASCII letters,
+     * using the name index built at load time (see NameIndex).
+     *
+     * @param prefix the prefix of the names
+     * @param limit the maximum number of points (0 for no limit)
+     * @return the matching points, in name order
+     */
+    public PointOfInterest[] fetchByName( final String prefix, final int limit ){
+        return fetchByName(prefix, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, limit);
+    }
+
+    /**
+     * Retrieves the points of interest within the location bounds whose names start with the given prefix, ignoring
+     * the case of ASCII letters.
+     *
+     * @param prefix the prefix of the names
+     * @param left
+     * @param bottom
+     * @param right
+     * @param top
+     * @param limit the maximum number of points (0 for no limit)
+     * @return the matching points, in name order
+     */
+    public PointOfInterest[] fetchByName( final String prefix, final double left, final double bottom, final double right, final double top, final int limit ){
+        final PointSnapshot snapshot = live.snapshot();
+        return snapshot.toPointsOfInterest(snapshot.searchNames(prefix, left, bottom, right, top, limit));
     }
 
     /**
      * Calculates the clusters for all points in the data file and caches the results after the first call.
-     * Uses K-Means clustering algorithm to calculate clusters.
+     * Uses K-Means clustering algorithm to calculate clusters, run in parallel over the point columns.
+     *
+     * Concurrent calls made before the result is available share a single clustering run. As points change, the
+     * clusters are updated and refreshed in the background (see ClusterRefresher).
      * @return
      */
-    @Cacheable("clusters")
     public PointOfInterest[] fetchClusters(){
-        final StopWatch stopWatch = new StopWatch();
-        stopWatch.start();
+        return clusters.get();
+    }
 
-        final KMeansPlusPlusClusterer<EuclideanDoublePoint> clusterer = new KMeansPlusPlusClusterer<>(random);
+    /**
+     * Retrieves the pre-computed clusters for the given zoom level that are contained within the location bounds.
+     * The cluster pyramid is built when the data is loaded (and rebuilt by each compaction), so this is a lookup rather
+     * than a clustering run; the points written since are folded into the clusters in view (see ClusterPyramid).
+     *
+     * @param left
+     * @param bottom
+     * @param right
+     * @param top
+     * @param zoom the zoom level, clamped to the levels of the pyramid
+     * @return
+     */
+    public PointOfInterest[] fetchClusters( final double left, final double bottom, final double right, final double top, final int zoom ){
+        return pyramid.clusters(live.snapshot(), zoom, left, bottom, right, top);
+    }
 
-        final List<Cluster<EuclideanDoublePoint>> clusters = clusterer.cluster(
-            Lists.transform(points, POI_TO_EUCLIDEAN),
-            CLUSTER_COUNT,
-            CLUSTERING_ITERATIONS
-        );
+    /**
+     * @return the version of the live data, incremented by each applied batch of writes
+     */
+    public int version(){
+        return live.snapshot().version();
+    }
+
+    /**
+     * @return the compaction generation the cluster pyramid was built for, incremented when it is rebuilt
+     */
+    public int clusterGeneration(){
+        return pyramid.generation();
+    }
+
+    /**
+     * Retrieves the pre-computed clusters of the given map tile, including the points written since they were computed.
+     *
+     * @param zoom the zoom level, which must be below the clustering zoom threshold
+     * @param x the tile column
+     * @param y the tile row
+     * @return
+     */
+    public PointOfInterest[] fetchTileClusters( final int zoom, final int x, final int y ){
+        return pyramid.tile(live.snapshot(), zoom, x, y);
+    }
+
+    /**
+     * Applies a batch of changes to the points of interest. The changes become visible to readers together, and once
+     * enough changes have accumulated they are compacted into the base data in the background.
+     *
+     * @param changes the changes to apply, in order
+     * @return the id of the point affected by each change, or -1 where an updated or deleted point did not exist
+     * @throws IllegalArgumentException if a change is incomplete or has invalid coordinates
+     */
+    public int[] apply( final List<PoiChange> changes ){
+        if( shardCount > 1 ){
+            for( final PoiChange change : changes ){
+                if( change.getPoint() != null && change.getType() != PoiChange.Type.DELETE && Shards.of(change.getPoint().getLongitude(), shardCount) != shardIndex ){
+                    throw new IllegalArgumentException("Longitude " + change.getPoint().getLongitude() + " is not in shard " + shardIndex);
+                }
+            }
+        }
 
-        final Collection<PointOfInterest> poiClusters = Lists.transform(clusters, EUCLIDEAN_TO_POI);
+        final LivePoints.Applied applied;
+        synchronized( writeLock ){
+            // the cluster refresher expects the batches in order
+            applied = live.apply(changes);
+            clusters.changed(applied);
+        }
 
-        stopWatch.stop();
+        eventPublisher.publishEvent(new PointsChangedEvent(this, applied.getVersion(), applied.getAdded(), applied.getRemoved(), false));
 
-        System.out.printf("Fetch-time: %d ms%n", stopWatch.getTime());
+        if( live.pending() >= compactThreshold && compacting.compareAndSet(false, true) ){
+            background.execute(new Runnable() {
+                @Override
+                public void run(){
+                    try {
+                        compact();
+                    } catch( RuntimeException re ){
+                        log.error("Unable to compact points of interest: {}", re.getMessage(), re);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        }
 
-        return poiClusters.toArray(new PointOfInterest[poiClusters.size()]);
+        return applied.getIds();
     }
 
-    private static class PoiToEuclidean implements Function<PointOfInterest, EuclideanDoublePoint> {
-        @Override
-        public EuclideanDoublePoint apply(PointOfInterest poi) {
-            return new EuclideanDoublePoint(new double[]{ poi.getLongitude(), poi.getLatitude() });
+    /**
+     * Merges the changes made so far into the base data, rebuilding its spatial index and the cluster pyramid.
+     */
+    public void compact(){
+        final long start = System.nanoTime();
+
+        final PointSnapshot snapshot = live.compact();
+        pyramid = new ClusterPyramid(snapshot, pyramidLevels());
+
+        metrics.compaction().recordSince(start);
+        log.info("Compacted {} points of interest in {} ms", snapshot.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        eventPublisher.publishEvent(new PointsChangedEvent(this, snapshot.version(), new Coordinates(), new Coordinates(), true));
+    }
+
+    /**
+     * @return the zoom levels of the cluster pyramid; a zoom threshold of 0 (never clustering) still keeps the world level
+     */
+    private int pyramidLevels(){
+        return Math.max(zoomThreshold, 1);
+    }
+
+    /**
+     * Fills the cluster cache according to the oldemo.clusters.warm setting: "startup" clusters before the service is
+     * ready, "background" clusters on a separate thread (requests arriving meanwhile share its run) and "none" leaves
+     * it to the first request.
+     */
+    private void warmClusters(){
+        if( "startup".equalsIgnoreCase(clusterWarming) ){
+            fetchClusters();
+
+        } else if( "background".equalsIgnoreCase(clusterWarming) ){
+            final Thread warmer = new Thread(new Runnable() {
+                @Override
+                public void run(){
+                    try {
+                        fetchClusters();
+                    } catch( RuntimeException re ){
+                        log.warn("Unable to warm clusters: {}", re.getMessage(), re);
+                    }
+                }
+            }, "cluster-warmer");
+            warmer.setDaemon(true);
+            warmer.start();
         }
     }
 
-    private static class EuclideanToPoi implements Function<Cluster<EuclideanDoublePoint>, PointOfInterest> {
-        @Override
-        public PointOfInterest apply(Cluster<EuclideanDoublePoint> cluster) {
-            final int count = cluster.getPoints().size();
+    private static PointOfInterest[] nearest( final PointSnapshot snapshot, final double lon, final double lat, final int limit, final double maxDistance ){
+        final Neighbours neighbours = snapshot.nearest(lon, lat, limit, maxDistance);
+
+        final PointOfInterest[] results = new PointOfInterest[neighbours.size()];
+        for( int i=0; i<results.length; i++ ){
+            results[i] = snapshot.populate(new PointOfInterest(), neighbours.row(i));
+        }
+        return results;
+    }
+
+    /**
+     * @return the smallest power of two (in degrees) not less than the given size
+     */
+    private static double gridCell( final double size ){
+        if( !(size > 0) ) return Math.ulp(1.0);
+
+        final double cell = Math.scalb(1.0, Math.getExponent(size));
+        return cell < size ? cell * 2 : cell;
+    }
+
+    /**
+     * Keeps the points in the longitude range of this shard, which keep their original row numbers as ids. Added
+     * points are numbered from the total count on, interleaved between the shards.
+     */
+    private LivePoints shard( final PointStore points ){
+        final IntList rows = new IntList();
+        for( int row=0; row<points.size(); row++ ){
+            if( Shards.of(points.longitude(row), shardCount) == shardIndex ){
+                rows.add(row);
+            }
+        }
+
+        final int[] ids = rows.toArray();
+        final PointStore store = points.select(ids);
+        final LivePoints shard = new LivePoints(store, new PointIndex(store), ids, points.size() + shardIndex, shardCount);
+
+        log.info("Holding shard {} of {}", shardIndex, shardCount);
+
+        return shard;
+    }
+
+    private static LivePoints empty(){
+        final PointStore store = PointStore.of(Collections.<PointOfInterest>emptyList());
+        return new LivePoints(store, new PointIndex(store));
+    }
+
+    @SuppressWarnings("unchecked")
+    /**
+     * @return the mapped data file, or null if the resource is not a file in the file system (e.g. in a packed war)
+     */
+    private static PointFile map( final Resource resource ) throws IOException {
+        final File file;
+        try {
+            file = resource.getFile();
+        } catch( FileNotFoundException fnfe ){
+            log.warn("Unable to map {}, loading the serialized data instead: {}", resource.getDescription(), fnfe.getMessage());
+            return null;
+        }
+        return PointFile.open(file);
+    }
+
+    private PointStore deserialize( final Resource resource ) throws IOException {
+        try ( final InputStream inputStream = resource.getInputStream() ){
+            return PointStore.of((List<PointOfInterest>)SerializationUtils.deserialize(inputStream));
+        }
+    }
+
+    /**
+     * Carries a sink failure out of an index search.
+     */
+    private static class SinkException extends RuntimeException {
 
-            final PointOfInterest poi = new PointOfInterest();
-            poi.setName(String.format("Cluster of %d", count != 0 ? count : 1));
-            poi.setLongitude(cluster.getCenter().getPoint()[0]);
-            poi.setLatitude(cluster.getCenter().getPoint()[1]);
+        SinkException( final IOException cause ){
+            super(cause);
+        }
 
-            return poi;
+        @Override
+        public IOException getCause(){
+            return (IOException)super.getCause();
         }
     }
 }
@@ -0,0 +1,363 @@
+package com.stehno.oldemo.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the binary point data file format (.poi), which is designed to be memory-mapped rather than
+ * deserialized.
+ *
+ * All values are little-endian. The file starts with a 64 byte header:
+ *
+ * <pre>
+ *  0  byte[4]  magic "POIF"
+ *  4  int      format version (currently 1)
+ *  8  int      point count (n)
+ * 12  int      flags (bit 0: an R-tree index section is present)
+ * 16  long     total size of the encoded names in bytes
+ * 24  int      index node size
+ * 28  ...      reserved (zero)
+ * </pre>
+ *
+ * followed by fixed-width columns, each starting on an 8 byte boundary:
+ *
+ * <pre>
+ * double[n]    longitudes
+ * double[n]    latitudes
+ * int[n+1]     name offsets into the name bytes
+ * byte[]       UTF-8 encoded names
+ * int[n]       index: rows in leaf order        (optional)
+ * double[4*m]  index: node boxes, leaves first  (optional)
+ * </pre>
+ *
+ * Each column is mapped on its own, so a column may not exceed 2GB (roughly 268 million points).
+ */
+public class PointFile {
+
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+    static final int FLAG_INDEX = 1;
+
+    private static final byte[] MAGIC = "POIF".getBytes(Charset.forName("US-ASCII"));
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final PointStore store;
+    private final PointIndex index;
+
+    private PointFile( final PointStore store, final PointIndex index ){
+        this.store = store;
+        this.index = index;
+    }
+
+    public PointStore getStore(){
+        return store;
+    }
+
+    /**
+     * @return the index stored in the file, or null if the file was written without one
+     */
+    public PointIndex getIndex(){
+        return index;
+    }
+
+    /**
+     * Memory-maps the given data file. Only the header is read eagerly; the OS pages the columns in as they are used.
+     *
+     * @param file the file to be opened
+     * @return the opened file
+     * @throws IOException if the file cannot be read or is not a supported point data file
+     */
+    public static PointFile open( final File file ) throws IOException {
+        try ( final RandomAccessFile raf = new RandomAccessFile(file, "r"); final FileChannel channel = raf.getChannel() ){
+            if( channel.size() < HEADER_SIZE ){
+                throw new IOException("Not a point data file: " + file);
+            }
+
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            final byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if( !Arrays.equals(MAGIC, magic) ){
+                throw new IOException("Not a point data file: " + file);
+            }
+
+            final int version = header.getInt(4);
+            if( version != VERSION ){
+                throw new IOException("Unsupported point data file version (" + version + "): " + file);
+            }
+
+            final int count = header.getInt(8);
+            final int flags = header.getInt(12);
+            final long nameBytes = header.getLong(16);
+            final int nodeSize = header.getInt(24);
+
+            if( (flags & FLAG_INDEX) != 0 && nodeSize != PointIndex.NODE_SIZE ){
+                throw new IOException("Unsupported index node size (" + nodeSize + "): " + file);
+            }
+
+            final Layout layout = new Layout(count, nameBytes, (flags & FLAG_INDEX) != 0 ? nodes(count, nodeSize) : 0);
+            if( channel.size() < layout.end ){
+                throw new IOException("Truncated point data file: " + file);
+            }
+
+            final PointStore store = new PointStore(
+                map(channel, layout.longitudes, 8L * count).asDoubleBuffer(),
+                map(channel, layout.latitudes, 8L * count).asDoubleBuffer(),
+                map(channel, layout.nameOffsets, 4L * (count + 1)).asIntBuffer(),
+                map(channel, layout.names, nameBytes)
+            );
+
+            PointIndex index = null;
+            if( (flags & FLAG_INDEX) != 0 ){
+                index = new PointIndex(
+                    store,
+                    map(channel, layout.order, 4L * count).asIntBuffer(),
+                    map(channel, layout.boxes, 32L * layout.nodes).asDoubleBuffer()
+                );
+            }
+
+            return new PointFile(store, index);
+        }
+    }
+
+    /**
+     * Writes the given store, and optionally its index, to a data file.
+     *
+     * @param file the file to be written (it will be replaced if it exists)
+     * @param store the points to be written
+     * @param index the index to be written with the points, may be null
+     * @throws IOException if there is a problem writing the file
+     */
+    public static void write( final File file, final PointStore store, final PointIndex index ) throws IOException {
+        final int count = store.size();
+        final ByteBuffer names = store.names();
+        final Layout layout = new Layout(count, names.limit(), index != null ? index.boxes().limit() / 4 : 0);
+
+        try ( final RandomAccessFile raf = new RandomAccessFile(file, "rw"); final FileChannel channel = raf.getChannel() ){
+            channel.truncate(0);
+
+            writeFully(channel, header(count, index != null ? FLAG_INDEX : 0, names.limit()), 0);
+
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            writeDoubles(channel, chunk, store.longitudes(), layout.longitudes);
+            writeDoubles(channel, chunk, store.latitudes(), layout.latitudes);
+            writeInts(channel, chunk, store.nameOffsets(), layout.nameOffsets);
+            writeFully(channel, names, layout.names);
+
+            if( index != null ){
+                writeInts(channel, chunk, index.order(), layout.order);
+                writeDoubles(channel, chunk, index.boxes(), layout.boxes);
+            }
+        }
+    }
+
+    /**
+     * Creates a data file to be written in blocks of rows, so that the points never have to be held in memory all at
+     * once. The file is written without an index; one may be added afterwards with writeIndex(File).
+     *
+     * @param file the file to be written (it will be replaced if it exists)
+     * @param count the number of points the file will hold
+     * @param nameBytes the total size of the encoded names, which must be known up front to lay out the columns
+     * @return the writer, which must be closed once all the rows have been written
+     * @throws IOException if there is a problem creating the file
+     */
+    public static Writer create( final File file, final int count, final long nameBytes ) throws IOException {
+        if( nameBytes > Integer.MAX_VALUE ){
+            throw new IllegalArgumentException("The names exceed the 2GB name offset limit (" + nameBytes + " bytes)");
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            writeFully(channel, header(count, 0, nameBytes), 0);
+            return new Writer(raf, count, nameBytes);
+
+        } catch( final IOException | RuntimeException e ){
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the index of an existing data file and writes it into the file, replacing any index it already has. The
+     * points are memory-mapped while the index is built, so only the index itself is held on the heap.
+     *
+     * @param file the data file to be indexed
+     * @throws IOException if there is a problem reading or writing the file
+     */
+    public static void writeIndex( final File file ) throws IOException {
+        final PointStore store = open(file).getStore();
+        final PointIndex index = new PointIndex(store);
+        final int count = store.size();
+        final long nameBytes = store.names().limit();
+        final Layout layout = new Layout(count, nameBytes, index.boxes().limit() / 4);
+
+        try ( final RandomAccessFile raf = new RandomAccessFile(file, "rw"); final FileChannel channel = raf.getChannel() ){
+            channel.truncate(layout.order);
+
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            writeInts(channel, chunk, index.order(), layout.order);
+            writeDoubles(channel, chunk, index.boxes(), layout.boxes);
+
+            // the flag goes in last, so an interrupted write leaves a readable file without an index
+            writeFully(channel, header(count, FLAG_INDEX, nameBytes), 0);
+        }
+    }
+
+    /**
+     * Writes the rows of a file created by create(File, int, long). Blocks of rows may be written in any order and from
+     * any number of threads, as each block goes to its own positions in the file.
+     */
+    public static class Writer implements Closeable {
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int count;
+        private final long nameBytes;
+        private final Layout layout;
+
+        private Writer( final RandomAccessFile raf, final int count, final long nameBytes ){
+            this.raf = raf;
+            this.channel = raf.getChannel();
+            this.count = count;
+            this.nameBytes = nameBytes;
+            this.layout = new Layout(count, nameBytes, 0);
+        }
+
+        /**
+         * Writes a block of rows. The buffers hold little-endian values, from their position to their limit, and are
+         * consumed by the write.
+         *
+         * @param firstRow the row of the first point in the block
+         * @param longitudes the longitudes of the block (doubles)
+         * @param latitudes the latitudes of the block (doubles)
+         * @param nameOffsets the offsets of the names of the block into the names of the whole file (ints)
+         * @param nameOffset the offset of the first name of the block
+         * @param names the encoded names of the block
+         * @throws IOException if there is a problem writing the file
+         */
+        public void write( final int firstRow, final ByteBuffer longitudes, final ByteBuffer latitudes, final ByteBuffer nameOffsets,
+                           final long nameOffset, final ByteBuffer names ) throws IOException {
+            final int rows = longitudes.remaining() / 8;
+            if( firstRow < 0 || firstRow + rows > count || latitudes.remaining() != 8 * rows || nameOffsets.remaining() != 4 * rows ){
+                throw new IllegalArgumentException("Block of " + rows + " rows at " + firstRow + " does not fit the file");
+            }
+            if( nameOffset < 0 || nameOffset + names.remaining() > nameBytes ){
+                throw new IllegalArgumentException("Block names at " + nameOffset + " exceed the name bytes of the file");
+            }
+
+            writeFully(channel, longitudes, layout.longitudes + 8L * firstRow);
+            writeFully(channel, latitudes, layout.latitudes + 8L * firstRow);
+            writeFully(channel, nameOffsets, layout.nameOffsets + 4L * firstRow);
+            writeFully(channel, names, layout.names + nameOffset);
+        }
+
+        /**
+         * Writes the closing name offset and closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                final ByteBuffer end = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                end.putInt(0, (int)nameBytes);
+                writeFully(channel, end, layout.nameOffsets + 4L * count);
+                channel.truncate(layout.end);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static ByteBuffer header( final int count, final int flags, final long nameBytes ){
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(count);
+        header.putInt(flags);
+        header.putLong(nameBytes);
+        header.putInt(PointIndex.NODE_SIZE);
+        header.clear();
+        return header;
+    }
+
+    private static int nodes( final int count, final int nodeSize ){
+        int total = 0;
+        int nodes = count;
+        do {
+            nodes = Math.max(1, (nodes + nodeSize - 1) / nodeSize);
+            total += nodes;
+        } while( nodes > 1 );
+        return total;
+    }
+
+    private static ByteBuffer map( final FileChannel channel, final long position, final long size ) throws IOException {
+        if( size > Integer.MAX_VALUE ){
+            throw new IOException("Point data column exceeds the 2GB mapping limit");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeDoubles( final FileChannel channel, final ByteBuffer chunk, final DoubleBuffer values, long position ) throws IOException {
+        while( values.hasRemaining() ){
+            chunk.clear();
+            while( values.hasRemaining() && chunk.remaining() >= 8 ){
+                chunk.putDouble(values.get());
+            }
+            chunk.flip();
+            position = writeFully(channel, chunk, position);
+        }
+    }
+
+    private static void writeInts( final FileChannel channel, final ByteBuffer chunk, final IntBuffer values, long position ) throws IOException {
+        while( values.hasRemaining() ){
+            chunk.clear();
+            while( values.hasRemaining() && chunk.remaining() >= 4 ){
+                chunk.putInt(values.get());
+            }
+            chunk.flip();
+            position = writeFully(channel, chunk, position);
+        }
+    }
+
+    private static long writeFully( final FileChannel channel, final ByteBuffer buffer, long position ) throws IOException {
+        while( buffer.hasRemaining() ){
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * File offsets of the column sections.
+     */
+    private static class Layout {
+        final long longitudes, latitudes, nameOffsets, names, order, boxes, end;
+        final int nodes;
+
+        Layout( final int count, final long nameBytes, final int nodes ){
+            this.nodes = nodes;
+            longitudes = HEADER_SIZE;
+            latitudes = longitudes + 8L * count;
+            nameOffsets = latitudes + 8L * count;
+            names = nameOffsets + 4L * (count + 1);
+            order = align(names + nameBytes);
+            boxes = align(order + 4L * count);
+            end = nodes > 0 ? boxes + 32L * nodes : names + nameBytes;
+        }
+
+        private static long align( final long position ){
+            return (position + 7) & ~7L;
+        }
+    }
+}
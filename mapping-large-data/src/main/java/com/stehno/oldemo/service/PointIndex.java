@@ -0,0 +1,556 @@
+package com.stehno.oldemo.service;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Static R-tree over a set of points, bulk-loaded with Sort-Tile-Recursive (STR) packing.
+ *
+ * The tree is stored as flat arrays: a permutation of the point rows in leaf order and one bounding box per node,
+ * laid out level by level (leaves first, root last). Leaf node n covers the rows at positions [n*NODE_SIZE,
+ * (n+1)*NODE_SIZE) of the permutation and each inner node covers NODE_SIZE consecutive nodes of the level below it,
+ * so no child pointers are needed.
+ *
+ * Bounding box queries only descend into nodes that overlap the query, so their cost grows with the size of the
+ * result rather than the size of the data set. Nearest-point queries explore the nodes best-first by distance.
+ *
+ * The permutation and boxes are held in buffers so that an index persisted in a PointFile can be used directly from
+ * the memory-mapped file.
+ */
+public class PointIndex {
+
+    public static final int NODE_SIZE = 16;
+
+    private final PointStore store;
+    private final IntBuffer order;
+    private final DoubleBuffer boxes;
+    private final int[] levelOffsets;
+    private volatile double[] nodeSums;
+
+    /**
+     * Builds the index over the points of the given store, using longitude as x and latitude as y.
+     *
+     * @param store the points to be indexed
+     */
+    public PointIndex( final PointStore store ){
+        this.store = store;
+
+        final int count = store.size();
+
+        final int[] rows = new int[count];
+        for( int i=0; i<count; i++ ){
+            rows[i] = i;
+        }
+
+        packLeaves(store, rows);
+        order = IntBuffer.wrap(rows);
+
+        levelOffsets = levelOffsets(count);
+        boxes = DoubleBuffer.wrap(new double[levelOffsets[levelOffsets.length - 1] * 4]);
+        buildBoxes();
+    }
+
+    /**
+     * Wraps a previously built index, such as one read from a PointFile.
+     */
+    PointIndex( final PointStore store, final IntBuffer order, final DoubleBuffer boxes ){
+        this.store = store;
+        this.order = order;
+        this.boxes = boxes;
+        this.levelOffsets = levelOffsets(store.size());
+
+        if( order.limit() != store.size() || boxes.limit() != levelOffsets[levelOffsets.length - 1] * 4 ){
+            throw new IllegalArgumentException("Index does not match the size of the point store");
+        }
+    }
+
+    /**
+     * @return the number of points in the index
+     */
+    public int size(){
+        return order.limit();
+    }
+
+    IntBuffer order(){
+        return order.duplicate();
+    }
+
+    DoubleBuffer boxes(){
+        return boxes.duplicate();
+    }
+
+    /**
+     * Finds the rows of all points strictly inside the given bounds.
+     *
+     * @param left the minimum x (exclusive)
+     * @param bottom the minimum y (exclusive)
+     * @param right the maximum x (exclusive)
+     * @param top the maximum y (exclusive)
+     * @return the matching rows, in index order
+     */
+    public int[] search( final double left, final double bottom, final double right, final double top ){
+        final IntList results = new IntList();
+        search(left, bottom, right, top, 0, new Visitor() {
+            @Override
+            public boolean visit( final int position, final int row ){
+                results.add(row);
+                return true;
+            }
+        });
+        return results.toArray();
+    }
+
+    /**
+     * Visits the points strictly inside the given bounds in index order, starting at the given index position. Index
+     * positions are stable for a given index, so the position after the last visited point may be used to resume the
+     * search later.
+     *
+     * @param left the minimum x (exclusive)
+     * @param bottom the minimum y (exclusive)
+     * @param right the maximum x (exclusive)
+     * @param top the maximum y (exclusive)
+     * @param from the first index position to be considered
+     * @param visitor the visitor called for each matching point
+     * @return true if the search completed, false if it was stopped by the visitor
+     */
+    public boolean search( final double left, final double bottom, final double right, final double top, final int from, final Visitor visitor ){
+        final int count = order.limit();
+        if( count == 0 || from >= count ) return true;
+
+        final int[] stack = new int[levelOffsets.length * NODE_SIZE];
+        int depth = 0;
+        stack[depth++] = levelOffsets[levelOffsets.length - 1] - 1;
+
+        while( depth > 0 ){
+            final int node = stack[--depth];
+            final int b = node * 4;
+
+            if( boxes.get(b) >= right || boxes.get(b+2) <= left || boxes.get(b+1) >= top || boxes.get(b+3) <= bottom ){
+                continue;
+            }
+
+            if( node < levelOffsets[1] ){
+                final int end = Math.min((node + 1) * NODE_SIZE, count);
+                for( int p = Math.max(node * NODE_SIZE, from); p < end; p++ ){
+                    final int row = order.get(p);
+                    final double x = store.longitude(row);
+                    final double y = store.latitude(row);
+                    if( y < top && y > bottom && x < right && x > left && !visitor.visit(p, row) ){
+                        return false;
+                    }
+                }
+
+            } else {
+                final int level = levelOf(node);
+                final int first = levelOffsets[level - 1] + (node - levelOffsets[level]) * NODE_SIZE;
+                final int last = Math.min(first + NODE_SIZE, levelOffsets[level]) - 1;
+
+                // push in reverse so that children are visited in ascending order, skipping those entirely before from
+                for( int child = last; child >= first && lastPosition(level - 1, child) >= from; child-- ){
+                    stack[depth++] = child;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the points nearest to the given location by great-circle distance, adding them to the collector. The
+     * search is best-first: nodes are explored in order of the distance to their boxes (see GreatCircle), and it stops
+     * once the nearest unexplored box is farther than the maximum distance or, if the collector is full, than the
+     * farthest point it holds. Its cost therefore depends on the number of points wanted rather than the size of the
+     * data set.
+     *
+     * @param lon the longitude of the location
+     * @param lat the latitude of the location
+     * @param maxDistance the maximum distance of the points in meters (inclusive), or infinity
+     * @param filter the filter of the rows which may be found
+     * @param neighbours the collector receiving the points, which bounds their number
+     */
+    public void nearest( final double lon, final double lat, final double maxDistance, final Filter filter, final Neighbours neighbours ){
+        final int count = order.limit();
+        if( count == 0 ) return;
+
+        final NodeQueue queue = new NodeQueue();
+        final int root = levelOffsets[levelOffsets.length - 1] - 1;
+        queue.add(root, boxDistance(root, lon, lat));
+
+        while( !queue.isEmpty() ){
+            final double bound = queue.peekDistance();
+            if( bound > maxDistance || bound >= neighbours.farthest() ) break;
+
+            final int node = queue.poll();
+            if( node < levelOffsets[1] ){
+                final int end = Math.min((node + 1) * NODE_SIZE, count);
+                for( int p = node * NODE_SIZE; p < end; p++ ){
+                    final int row = order.get(p);
+                    final double distance = GreatCircle.distance(lon, lat, store.longitude(row), store.latitude(row));
+                    if( distance <= maxDistance && distance < neighbours.farthest() && filter.accept(row) ){
+                        neighbours.add(row, distance);
+                    }
+                }
+
+            } else {
+                final int level = levelOf(node);
+                final int first = levelOffsets[level - 1] + (node - levelOffsets[level]) * NODE_SIZE;
+                final int end = Math.min(first + NODE_SIZE, levelOffsets[level]);
+                for( int child = first; child < end; child++ ){
+                    final double distance = boxDistance(child, lon, lat);
+                    if( distance <= maxDistance && distance < neighbours.farthest() ){
+                        queue.add(child, distance);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the points strictly inside the bounds of the grid into its cells (see DensityGrid). A node whose box lies
+     * inside a single cell is added as a whole from its point count and coordinate sums, so only the nodes crossing
+     * cell lines are descended into and the cost depends on the number of cells rather than of points. The sums are
+     * computed over the whole index on first use.
+     *
+     * @param grid the grid receiving the points
+     */
+    public void aggregate( final DensityGrid grid ){
+        final int count = order.limit();
+        if( count == 0 ) return;
+
+        final double[] sums = sums();
+
+        final int[] stack = new int[levelOffsets.length * NODE_SIZE];
+        int depth = 0;
+        stack[depth++] = levelOffsets[levelOffsets.length - 1] - 1;
+
+        while( depth > 0 ){
+            final int node = stack[--depth];
+            final int b = node * 4;
+            final double minX = boxes.get(b), minY = boxes.get(b+1), maxX = boxes.get(b+2), maxY = boxes.get(b+3);
+
+            if( minX >= grid.right() || maxX <= grid.left() || minY >= grid.top() || maxY <= grid.bottom() ){
+                continue;
+            }
+
+            final int level = node < levelOffsets[1] ? 0 : levelOf(node);
+            if( grid.contains(minX, minY) && grid.contains(maxX, maxY) ){
+                final int column = grid.column(minX), row = grid.row(minY);
+                if( column == grid.column(maxX) && row == grid.row(maxY) ){
+                    final int points = lastPosition(level, node) - firstPosition(level, node) + 1;
+                    grid.add(grid.cell(minX, minY), points, sums[node * 2], sums[node * 2 + 1]);
+                    continue;
+                }
+            }
+
+            if( level == 0 ){
+                final int end = Math.min((node + 1) * NODE_SIZE, count);
+                for( int p = node * NODE_SIZE; p < end; p++ ){
+                    final int row = order.get(p);
+                    grid.add(store.longitude(row), store.latitude(row));
+                }
+
+            } else {
+                final int first = levelOffsets[level - 1] + (node - levelOffsets[level]) * NODE_SIZE;
+                final int end = Math.min(first + NODE_SIZE, levelOffsets[level]);
+                for( int child = first; child < end; child++ ){
+                    stack[depth++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * Selects the rows a nearest-point search may return.
+     */
+    public interface Filter {
+
+        boolean accept( int row );
+    }
+
+    /**
+     * Receives the points found by a search.
+     */
+    public interface Visitor {
+
+        /**
+         * @param position the index position of the point
+         * @param row the store row of the point
+         * @return true to continue the search, false to stop it
+         */
+        boolean visit( int position, int row );
+    }
+
+    private double boxDistance( final int node, final double lon, final double lat ){
+        final int b = node * 4;
+        return GreatCircle.distanceToBox(lon, lat, boxes.get(b), boxes.get(b+1), boxes.get(b+2), boxes.get(b+3));
+    }
+
+    /**
+     * The sums of the longitudes and latitudes of the points under each node (two per node), built once.
+     */
+    private double[] sums(){
+        double[] sums = nodeSums;
+        if( sums == null ){
+            synchronized( this ){
+                sums = nodeSums;
+                if( sums == null ){
+                    sums = buildSums();
+                    nodeSums = sums;
+                }
+            }
+        }
+        return sums;
+    }
+
+    private double[] buildSums(){
+        final double[] sums = new double[levelOffsets[levelOffsets.length - 1] * 2];
+
+        final int count = order.limit();
+        for( int p=0; p<count; p++ ){
+            final int row = order.get(p);
+            final int leaf = p / NODE_SIZE;
+            sums[leaf * 2] += store.longitude(row);
+            sums[leaf * 2 + 1] += store.latitude(row);
+        }
+
+        for( int level=1; level<levelOffsets.length - 1; level++ ){
+            for( int node = levelOffsets[level]; node < levelOffsets[level + 1]; node++ ){
+                final int first = levelOffsets[level - 1] + (node - levelOffsets[level]) * NODE_SIZE;
+                final int end = Math.min(first + NODE_SIZE, levelOffsets[level]);
+                for( int child = first; child < end; child++ ){
+                    sums[node * 2] += sums[child * 2];
+                    sums[node * 2 + 1] += sums[child * 2 + 1];
+                }
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * The first index position covered by the given node of the given level.
+     */
+    private int firstPosition( final int level, final int node ){
+        long span = 1;
+        for( int i=0; i<=level; i++ ){
+            span *= NODE_SIZE;
+        }
+        return (int)((node - levelOffsets[level]) * span);
+    }
+
+    /**
+     * The last index position covered by the given node of the given level.
+     */
+    private int lastPosition( final int level, final int node ){
+        long span = NODE_SIZE;
+        for( int i=0; i<level; i++ ){
+            span *= NODE_SIZE;
+        }
+        return (int)Math.min((node - levelOffsets[level] + 1) * span, order.limit()) - 1;
+    }
+
+    private int levelOf( final int node ){
+        int level = 1;
+        while( node >= levelOffsets[level + 1] ){
+            level++;
+        }
+        return level;
+    }
+
+    private static int nodesAbove( final int count ){
+        return Math.max(1, (count + NODE_SIZE - 1) / NODE_SIZE);
+    }
+
+    /**
+     * Computes the index of the first node of each level, leaves first; the last entry is the total node count.
+     */
+    private static int[] levelOffsets( final int count ){
+        int levels = 1;
+        for( int n = nodesAbove(count); n > 1; n = nodesAbove(n) ){
+            levels++;
+        }
+
+        final int[] offsets = new int[levels + 1];
+        int nodes = nodesAbove(count);
+        for( int level=0; level<levels; level++ ){
+            offsets[level + 1] = offsets[level] + nodes;
+            nodes = nodesAbove(nodes);
+        }
+        return offsets;
+    }
+
+    /**
+     * Sorts the permutation by x, cuts it into vertical slices of roughly sqrt(leaves) leaves each and sorts each
+     * slice by y, so that every run of NODE_SIZE consecutive rows forms a compact leaf.
+     */
+    private static void packLeaves( final PointStore store, final int[] order ){
+        final int count = order.length;
+        final int leaves = nodesAbove(count);
+        final int slices = (int)Math.ceil(Math.sqrt(leaves));
+        final int sliceSize = slices * NODE_SIZE;
+
+        final double[] keys = new double[count];
+        for( int row=0; row<count; row++ ){
+            keys[row] = store.longitude(row);
+        }
+        sort(order, keys, 0, count - 1);
+
+        for( int row=0; row<count; row++ ){
+            keys[row] = store.latitude(row);
+        }
+        for( int start = 0; start < count; start += sliceSize ){
+            sort(order, keys, start, Math.min(start + sliceSize, count) - 1);
+        }
+    }
+
+    private void buildBoxes(){
+        final int count = order.limit();
+        final int leaves = levelOffsets[1];
+        for( int node=0; node<leaves; node++ ){
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+            final int end = Math.min((node + 1) * NODE_SIZE, count);
+            for( int p = node * NODE_SIZE; p < end; p++ ){
+                final double x = store.longitude(order.get(p));
+                final double y = store.latitude(order.get(p));
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+
+            setBox(node, minX, minY, maxX, maxY);
+        }
+
+        for( int level=1; level<levelOffsets.length - 1; level++ ){
+            for( int node = levelOffsets[level]; node < levelOffsets[level + 1]; node++ ){
+                final int first = levelOffsets[level - 1] + (node - levelOffsets[level]) * NODE_SIZE;
+                final int end = Math.min(first + NODE_SIZE, levelOffsets[level]);
+
+                double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                for( int child = first; child < end; child++ ){
+                    minX = Math.min(minX, boxes.get(child * 4));
+                    minY = Math.min(minY, boxes.get(child * 4 + 1));
+                    maxX = Math.max(maxX, boxes.get(child * 4 + 2));
+                    maxY = Math.max(maxY, boxes.get(child * 4 + 3));
+                }
+
+                setBox(node, minX, minY, maxX, maxY);
+            }
+        }
+    }
+
+    private void setBox( final int node, final double minX, final double minY, final double maxX, final double maxY ){
+        boxes.put(node * 4, minX);
+        boxes.put(node * 4 + 1, minY);
+        boxes.put(node * 4 + 2, maxX);
+        boxes.put(node * 4 + 3, maxY);
+    }
+
+    /**
+     * Three-way quicksort of the rows in order[lo..hi] by their key value. The generated data sets contain a lot of
+     * duplicate coordinates, which a two-way partition would degrade on.
+     */
+    private static void sort( final int[] order, final double[] keys, int lo, int hi ){
+        while( hi - lo > 16 ){
+            final double pivot = keys[order[lo + ThreadLocalRandom.current().nextInt(hi - lo + 1)]];
+
+            int lt = lo, gt = hi, i = lo;
+            while( i <= gt ){
+                final double key = keys[order[i]];
+                if( key < pivot ){
+                    swap(order, lt++, i++);
+                } else if( key > pivot ){
+                    swap(order, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+
+            // recurse into the smaller side, loop on the larger one
+            if( lt - lo < hi - gt ){
+                sort(order, keys, lo, lt - 1);
+                lo = gt + 1;
+            } else {
+                sort(order, keys, gt + 1, hi);
+                hi = lt - 1;
+            }
+        }
+
+        for( int i = lo + 1; i <= hi; i++ ){
+            final int row = order[i];
+            final double key = keys[row];
+            int j = i - 1;
+            while( j >= lo && keys[order[j]] > key ){
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = row;
+        }
+    }
+
+    private static void swap( final int[] array, final int a, final int b ){
+        final int tmp = array[a];
+        array[a] = array[b];
+        array[b] = tmp;
+    }
+
+    /**
+     * A min-heap of nodes keyed on their distance, for the best-first search.
+     */
+    private static class NodeQueue {
+        private int[] nodes = new int[64];
+        private double[] distances = new double[64];
+        private int size;
+
+        boolean isEmpty(){
+            return size == 0;
+        }
+
+        double peekDistance(){
+            return distances[0];
+        }
+
+        void add( final int node, final double distance ){
+            if( size == nodes.length ){
+                nodes = Arrays.copyOf(nodes, size << 1);
+                distances = Arrays.copyOf(distances, size << 1);
+            }
+
+            int i = size++;
+            while( i > 0 ){
+                final int parent = (i - 1) >>> 1;
+                if( distances[parent] <= distance ) break;
+                nodes[i] = nodes[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        int poll(){
+            final int polled = nodes[0];
+            final int node = nodes[--size];
+            final double distance = distances[size];
+
+            int i = 0;
+            while( true ){
+                int child = 2 * i + 1;
+                if( child >= size ) break;
+                if( child + 1 < size && distances[child + 1] < distances[child] ) child++;
+                if( distances[child] >= distance ) break;
+
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+            return polled;
+        }
+    }
+}
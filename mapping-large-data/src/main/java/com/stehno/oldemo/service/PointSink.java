@@ -0,0 +1,20 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+
+import java.io.IOException;
+
+/**
+ * Receives points of interest one at a time as they are streamed out of the service.
+ */
+public interface PointSink {
+
+    /**
+     * Accepts the next point of interest. The instance is reused for every point of a stream, so it must be consumed
+     * before returning rather than retained.
+     *
+     * @param poi the point of interest
+     * @throws IOException if the point cannot be written
+     */
+    void accept( PointOfInterest poi ) throws IOException;
+}
@@ -0,0 +1,620 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A consistent, read-only view of the live points of interest at one version (see LivePoints).
+ *
+ * A snapshot is made up of the base store and its spatial index, as loaded or last compacted, plus the points written
+ * since then, which are appended to an overlay. Rows 0 to baseSize()-1 are base rows and the following rows are the
+ * overlay slots. A deleted (or replaced) point is not removed; its row is stamped with the version that deleted it,
+ * in arrays shared by the snapshots of the same base, and deleted base rows are also listed. A snapshot ignores stamps
+ * later than its own version, so it stays consistent while newer writes are applied and readers never need to lock.
+ */
+public class PointSnapshot {
+
+    /**
+     * The number of base rows outside of the bounds a name search skips before turning to the spatial index.
+     */
+    static final int SCAN_LIMIT = 16384;
+
+    /**
+     * The number of rows below which the parallel point-in-polygon tests are not split any further.
+     */
+    private static final int SPLIT_THRESHOLD = 8192;
+
+    private final int version;
+    private final int generation;
+    private final PointStore store;
+    private final PointIndex index;
+    private final NameIndex names;
+    private final int[] ids;
+    private final int[] deleted;
+    private final int[] deletedRows;
+    private final int deletedCount;
+    private final Overlay overlay;
+    private final int added;
+    private final int size;
+
+    PointSnapshot( final int version, final int generation, final PointStore store, final PointIndex index, final NameIndex names,
+                   final int[] ids, final int[] deleted, final int[] deletedRows, final int deletedCount, final Overlay overlay, final int added,
+                   final int size ){
+        this.version = version;
+        this.generation = generation;
+        this.store = store;
+        this.index = index;
+        this.names = names;
+        this.ids = ids;
+        this.deleted = deleted;
+        this.deletedRows = deletedRows;
+        this.deletedCount = deletedCount;
+        this.overlay = overlay;
+        this.added = added;
+        this.size = size;
+    }
+
+    /**
+     * @return the version of the data, incremented by each applied batch of writes
+     */
+    public int version(){
+        return version;
+    }
+
+    /**
+     * @return the compaction generation of the base store, incremented each time the overlay is merged into it
+     */
+    public int generation(){
+        return generation;
+    }
+
+    /**
+     * @return the number of live points
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return the number of rows, including the deleted ones
+     */
+    public int rows(){
+        return store.size() + added;
+    }
+
+    /**
+     * @return the number of rows in the base store
+     */
+    public int baseSize(){
+        return store.size();
+    }
+
+    /**
+     * @return the number of overlay rows, including the deleted ones
+     */
+    public int addedSize(){
+        return added;
+    }
+
+    /**
+     * @return the base store; note that it also holds the deleted base rows
+     */
+    public PointStore getStore(){
+        return store;
+    }
+
+    /**
+     * @return the spatial index of the base store
+     */
+    public PointIndex getIndex(){
+        return index;
+    }
+
+    /**
+     * @return the name index of the base store
+     */
+    public NameIndex getNames(){
+        return names;
+    }
+
+    public boolean isLive( final int row ){
+        final int stamp;
+        if( row < store.size() ){
+            stamp = deleted != null ? deleted[row] : 0;
+        } else {
+            stamp = overlay.deleted[row - store.size()];
+        }
+        return stamp == 0 || stamp > version;
+    }
+
+    public int id( final int row ){
+        if( row < store.size() ) return ids != null ? ids[row] : row;
+        return overlay.ids[row - store.size()];
+    }
+
+    public double longitude( final int row ){
+        return row < store.size() ? store.longitude(row) : overlay.longitudes[row - store.size()];
+    }
+
+    public double latitude( final int row ){
+        return row < store.size() ? store.latitude(row) : overlay.latitudes[row - store.size()];
+    }
+
+    public String name( final int row ){
+        return row < store.size() ? store.name(row) : overlay.names[row - store.size()];
+    }
+
+    /**
+     * Populates the given PointOfInterest from the row.
+     *
+     * @return the given PointOfInterest
+     */
+    public PointOfInterest populate( final PointOfInterest poi, final int row ){
+        poi.setId(id(row));
+        poi.setName(name(row));
+        poi.setLongitude(longitude(row));
+        poi.setLatitude(latitude(row));
+        return poi;
+    }
+
+    /**
+     * Creates PointOfInterest objects for the given rows.
+     *
+     * @param rows the rows to be converted
+     * @return an array of new PointOfInterest objects, in the order of the rows
+     */
+    public PointOfInterest[] toPointsOfInterest( final int[] rows ){
+        final PointOfInterest[] results = new PointOfInterest[rows.length];
+        for( int i=0; i<rows.length; i++ ){
+            results[i] = populate(new PointOfInterest(), rows[i]);
+        }
+        return results;
+    }
+
+    /**
+     * Finds the live rows strictly inside the bounds.
+     *
+     * @return the matching rows, base rows in index order followed by overlay rows
+     */
+    public int[] search( final double left, final double bottom, final double right, final double top ){
+        return filter(index.search(left, bottom, right, top), left, bottom, right, top);
+    }
+
+    /**
+     * Reduces a set of candidate base rows (for example the result of a cached index search over a larger box) to the
+     * live ones strictly inside the bounds, and adds the matching overlay rows.
+     */
+    public int[] filter( final int[] baseRows, final double left, final double bottom, final double right, final double top ){
+        final IntList matches = new IntList(baseRows.length + 16);
+        for( final int row : baseRows ){
+            if( isLive(row) && inside(store.longitude(row), store.latitude(row), left, bottom, right, top) ){
+                matches.add(row);
+            }
+        }
+
+        final int base = store.size();
+        for( int slot=0; slot<added; slot++ ){
+            if( isLive(base + slot) && inside(overlay.longitudes[slot], overlay.latitudes[slot], left, bottom, right, top) ){
+                matches.add(base + slot);
+            }
+        }
+        return matches.toArray();
+    }
+
+    /**
+     * Finds the live rows strictly inside one bounding box but not strictly inside another, such as the points entering
+     * the view when a map is panned from one box to the other. Only the strips making up the difference (see
+     * Regions.difference) are searched, so the cost follows the size of the difference rather than of the box.
+     *
+     * @param bounds the box whose rows are wanted ( left, bottom, right, top)
+     * @param minus the box whose rows are not wanted
+     * @return the matching rows, base rows in index order by strip followed by overlay rows
+     */
+    public int[] searchDifference( final double[] bounds, final double[] minus ){
+        final IntList matches = new IntList();
+        for( final double[] strip : Regions.difference(bounds, minus) ){
+            for( final int row : index.search(strip[0], strip[1], strip[2], strip[3]) ){
+                final double lon = store.longitude(row), lat = store.latitude(row);
+                if( isLive(row) && Regions.inside(bounds, lon, lat) && !Regions.inside(minus, lon, lat) ){
+                    matches.add(row);
+                }
+            }
+        }
+
+        final int base = store.size();
+        for( int slot=0; slot<added; slot++ ){
+            final double lon = overlay.longitudes[slot], lat = overlay.latitudes[slot];
+            if( isLive(base + slot) && Regions.inside(bounds, lon, lat) && !Regions.inside(minus, lon, lat) ){
+                matches.add(base + slot);
+            }
+        }
+        return matches.toArray();
+    }
+
+    /**
+     * Visits the live rows strictly inside the bounds in position order, starting at the given position. Positions
+     * are the spatial index positions of the base rows followed by the overlay rows (baseSize() + slot).
+     *
+     * @return true if all matching rows were visited, false if the visitor stopped the search
+     */
+    public boolean search( final double left, final double bottom, final double right, final double top, final int from, final PointIndex.Visitor visitor ){
+        final int base = store.size();
+
+        if( from < base ){
+            final boolean completed = index.search(left, bottom, right, top, from, new PointIndex.Visitor() {
+                @Override
+                public boolean visit( final int position, final int row ){
+                    return !isLive(row) || visitor.visit(position, row);
+                }
+            });
+            if( !completed ) return false;
+        }
+
+        for( int slot = Math.max(from - base, 0); slot < added; slot++ ){
+            final int row = base + slot;
+            if( isLive(row) && inside(overlay.longitudes[slot], overlay.latitudes[slot], left, bottom, right, top) ){
+                if( !visitor.visit(row, row) ) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the live rows nearest to the given location by great-circle distance: the base rows through the spatial
+     * index (see PointIndex.nearest) and the overlay rows by a scan.
+     *
+     * @param lon the longitude of the location
+     * @param lat the latitude of the location
+     * @param limit the maximum number of rows, or 0 for no limit
+     * @param maxDistance the maximum distance of the rows in meters (inclusive), or infinity
+     * @return the rows and their distances, in ascending order of distance
+     */
+    public Neighbours nearest( final double lon, final double lat, final int limit, final double maxDistance ){
+        final Neighbours neighbours = new Neighbours(limit);
+
+        index.nearest(lon, lat, maxDistance, new PointIndex.Filter() {
+            @Override
+            public boolean accept( final int row ){
+                return isLive(row);
+            }
+        }, neighbours);
+
+        final int base = store.size();
+        for( int slot=0; slot<added; slot++ ){
+            if( !isLive(base + slot) ) continue;
+
+            final double distance = GreatCircle.distance(lon, lat, overlay.longitudes[slot], overlay.latitudes[slot]);
+            if( distance <= maxDistance ){
+                neighbours.add(base + slot, distance);
+            }
+        }
+
+        return neighbours.sort();
+    }
+
+    /**
+     * Finds the live rows inside the polygon: the base rows inside its bounding box are taken from the spatial index
+     * and tested against the polygon in parallel, then the overlay rows are scanned.
+     *
+     * @param polygon the area
+     * @param pool the pool running the point-in-polygon tests
+     * @return the matching rows, base rows in index order followed by overlay rows
+     */
+    public int[] searchPolygon( final Polygon polygon, final ForkJoinPool pool ){
+        final int[] candidates = searchBox(polygon.left(), polygon.bottom(), polygon.right(), polygon.top());
+        final boolean[] inside = new boolean[candidates.length];
+        pool.invoke(new ContainsTask(this, polygon, candidates, inside, 0, candidates.length));
+
+        final IntList matches = new IntList();
+        for( int i=0; i<candidates.length; i++ ){
+            if( inside[i] ) matches.add(candidates[i]);
+        }
+
+        final int base = store.size();
+        for( int slot=0; slot<added; slot++ ){
+            if( isLive(base + slot) && polygon.contains(overlay.longitudes[slot], overlay.latitudes[slot]) ){
+                matches.add(base + slot);
+            }
+        }
+        return matches.toArray();
+    }
+
+    /**
+     * Counts the live points inside each of the polygons in a single pass: the base rows inside the bounding box of all
+     * of them are taken from the spatial index and counted in parallel, then the overlay rows are scanned.
+     *
+     * @param polygons the areas
+     * @param pool the pool running the point-in-polygon tests
+     * @return the number of points inside each polygon, in order
+     */
+    public int[] countPolygons( final PolygonIndex polygons, final ForkJoinPool pool ){
+        final int[] candidates = searchBox(polygons.left(), polygons.bottom(), polygons.right(), polygons.top());
+        final int[] counts = pool.invoke(new CountTask(this, polygons, candidates, 0, candidates.length));
+
+        final int base = store.size();
+        for( int slot=0; slot<added; slot++ ){
+            if( isLive(base + slot) ){
+                polygons.count(overlay.longitudes[slot], overlay.latitudes[slot], counts);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The base rows inside or on the edges of the box, live or not.
+     */
+    private int[] searchBox( final double left, final double bottom, final double right, final double top ){
+        return index.search(
+            Math.nextAfter(left, Double.NEGATIVE_INFINITY), Math.nextAfter(bottom, Double.NEGATIVE_INFINITY), Math.nextUp(right), Math.nextUp(top)
+        );
+    }
+
+    /**
+     * Counts the live points strictly inside the bounds of the grid into its cells: the base rows from the aggregates
+     * of the spatial index (see PointIndex.aggregate), less the deleted base rows, plus the overlay rows.
+     *
+     * @param grid the grid receiving the points
+     * @return the given grid
+     */
+    public DensityGrid aggregate( final DensityGrid grid ){
+        index.aggregate(grid);
+
+        for( int i=0; i<deletedCount; i++ ){
+            final int row = deletedRows[i];
+            final double lon = store.longitude(row), lat = store.latitude(row);
+            final int cell = grid.cell(lon, lat);
+            if( cell >= 0 && !isLive(row) ){
+                grid.add(cell, -1, -lon, -lat);
+            }
+        }
+
+        final int base = store.size();
+        for( int slot=0; slot<added; slot++ ){
+            if( isLive(base + slot) ){
+                grid.add(overlay.longitudes[slot], overlay.latitudes[slot]);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * @return the number of listed deleted base rows (see deletedBaseRow)
+     */
+    int deletedBaseCount(){
+        return deletedCount;
+    }
+
+    /**
+     * @return a listed deleted base row, which may still be live in this snapshot if it was deleted by a later version
+     */
+    int deletedBaseRow( final int index ){
+        return deletedRows[index];
+    }
+
+    /**
+     * Finds the live rows whose names start with the given prefix (ignoring the case of ASCII letters), in name order,
+     * optionally only those strictly inside a bounding box.
+     *
+     * Base rows are read from the name index in order, skipping those outside the bounds. If that skips more than
+     * SCAN_LIMIT rows (a common prefix in a small box), the rows inside the box are taken from the spatial index
+     * instead, filtered by name and sorted. Matching overlay rows are merged in by name.
+     *
+     * @param prefix the prefix of the names
+     * @param left the minimum longitude (exclusive), or negative infinity
+     * @param bottom the minimum latitude (exclusive), or negative infinity
+     * @param right the maximum longitude (exclusive), or positive infinity
+     * @param top the maximum latitude (exclusive), or positive infinity
+     * @param limit the maximum number of rows, or 0 for no limit
+     * @return the matching rows, in name order
+     */
+    public int[] searchNames( final String prefix, final double left, final double bottom, final double right, final double top, final int limit ){
+        final byte[] key = NameIndex.fold(prefix);
+        final int max = limit > 0 ? limit : Integer.MAX_VALUE;
+
+        int[] matches = null;
+
+        final IntList found = new IntList(Math.min(max, 1024));
+        int skipped = 0;
+        for( int p = names.first(key), end = names.end(key); p < end && found.size() < max; p++ ){
+            final int row = names.row(p);
+            if( inside(store.longitude(row), store.latitude(row), left, bottom, right, top) ){
+                if( isLive(row) ) found.add(row);
+
+            } else if( ++skipped > SCAN_LIMIT ){
+                matches = searchNamesInBounds(key, left, bottom, right, top, max);
+                break;
+            }
+        }
+        if( matches == null ){
+            matches = found.toArray();
+        }
+
+        final IntList overlayMatches = new IntList();
+        final int base = store.size();
+        for( int slot=0; slot<added; slot++ ){
+            if( isLive(base + slot) && inside(overlay.longitudes[slot], overlay.latitudes[slot], left, bottom, right, top)
+                && NameIndex.startsWith(NameIndex.fold(overlay.names[slot]), key) ){
+                overlayMatches.add(base + slot);
+            }
+        }
+
+        return overlayMatches.size() > 0 ? mergeByName(matches, overlayMatches.toArray(), max) : matches;
+    }
+
+    private int[] searchNamesInBounds( final byte[] key, final double left, final double bottom, final double right, final double top, final int max ){
+        final IntList candidates = new IntList();
+        for( final int row : index.search(left, bottom, right, top) ){
+            if( isLive(row) && names.startsWith(row, key) ){
+                candidates.add(row);
+            }
+        }
+
+        final int[] rows = candidates.toArray();
+        names.sort(rows);
+        return rows.length > max ? Arrays.copyOf(rows, max) : rows;
+    }
+
+    /**
+     * Merges rows in name order with unordered overlay rows, keeping the first max rows.
+     */
+    private int[] mergeByName( final int[] rows, final int[] overlayRows, final int max ){
+        final byte[][] overlayNames = new byte[overlayRows.length][];
+        final Integer[] sorted = new Integer[overlayRows.length];
+        for( int i=0; i<overlayRows.length; i++ ){
+            overlayNames[i] = NameIndex.fold(name(overlayRows[i]));
+            sorted[i] = i;
+        }
+
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare( final Integer a, final Integer b ){
+                return NameIndex.compare(overlayNames[a], overlayNames[b]);
+            }
+        });
+
+        final int[] merged = new int[(int)Math.min((long)rows.length + overlayRows.length, max)];
+        int r = 0, o = 0;
+        for( int i=0; i<merged.length; i++ ){
+            if( o == sorted.length || (r < rows.length && NameIndex.compare(NameIndex.fold(name(rows[r])), overlayNames[sorted[o]]) <= 0) ){
+                merged[i] = rows[r++];
+            } else {
+                merged[i] = overlayRows[sorted[o++]];
+            }
+        }
+        return merged;
+    }
+
+    Overlay overlay(){
+        return overlay;
+    }
+
+    int[] deleted(){
+        return deleted;
+    }
+
+    private static boolean inside( final double lon, final double lat, final double left, final double bottom, final double right, final double top ){
+        return lon > left && lon < right && lat > bottom && lat < top;
+    }
+
+    /**
+     * Marks the live candidate rows inside the polygon.
+     */
+    private static class ContainsTask extends RecursiveAction {
+
+        private final PointSnapshot snapshot;
+        private final Polygon polygon;
+        private final int[] rows;
+        private final boolean[] inside;
+        private final int from, to;
+
+        ContainsTask( final PointSnapshot snapshot, final Polygon polygon, final int[] rows, final boolean[] inside, final int from, final int to ){
+            this.snapshot = snapshot;
+            this.polygon = polygon;
+            this.rows = rows;
+            this.inside = inside;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if( to - from > SPLIT_THRESHOLD ){
+                final int middle = (from + to) >>> 1;
+                invokeAll(
+                    new ContainsTask(snapshot, polygon, rows, inside, from, middle),
+                    new ContainsTask(snapshot, polygon, rows, inside, middle, to)
+                );
+                return;
+            }
+
+            for( int i = from; i < to; i++ ){
+                final int row = rows[i];
+                inside[i] = snapshot.isLive(row) && polygon.contains(snapshot.store.longitude(row), snapshot.store.latitude(row));
+            }
+        }
+    }
+
+    /**
+     * Counts the live candidate rows into the polygons containing them.
+     */
+    private static class CountTask extends RecursiveTask<int[]> {
+
+        private final PointSnapshot snapshot;
+        private final PolygonIndex polygons;
+        private final int[] rows;
+        private final int from, to;
+
+        CountTask( final PointSnapshot snapshot, final PolygonIndex polygons, final int[] rows, final int from, final int to ){
+            this.snapshot = snapshot;
+            this.polygons = polygons;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute(){
+            if( to - from > SPLIT_THRESHOLD ){
+                final int middle = (from + to) >>> 1;
+                final CountTask left = new CountTask(snapshot, polygons, rows, from, middle);
+                left.fork();
+                final int[] counts = new CountTask(snapshot, polygons, rows, middle, to).compute();
+                final int[] leftCounts = left.join();
+                for( int p=0; p<counts.length; p++ ){
+                    counts[p] += leftCounts[p];
+                }
+                return counts;
+            }
+
+            final int[] counts = new int[polygons.size()];
+            for( int i = from; i < to; i++ ){
+                final int row = rows[i];
+                if( snapshot.isLive(row) ){
+                    polygons.count(snapshot.store.longitude(row), snapshot.store.latitude(row), counts);
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * The columns of the points written since the last compaction. Slots are only ever appended (by the single writer)
+     * and a full overlay is replaced by a larger copy, so existing snapshots keep reading a stable prefix.
+     */
+    static class Overlay {
+        final int[] ids;
+        final double[] longitudes;
+        final double[] latitudes;
+        final String[] names;
+        final int[] deleted;
+
+        Overlay( final int capacity ){
+            ids = new int[capacity];
+            longitudes = new double[capacity];
+            latitudes = new double[capacity];
+            names = new String[capacity];
+            deleted = new int[capacity];
+        }
+
+        private Overlay( final Overlay other, final int capacity ){
+            ids = Arrays.copyOf(other.ids, capacity);
+            longitudes = Arrays.copyOf(other.longitudes, capacity);
+            latitudes = Arrays.copyOf(other.latitudes, capacity);
+            names = Arrays.copyOf(other.names, capacity);
+            deleted = Arrays.copyOf(other.deleted, capacity);
+        }
+
+        int capacity(){
+            return ids.length;
+        }
+
+        Overlay grow(){
+            return new Overlay(this, Math.max(capacity() << 1, 64));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.stehno.oldemo.service;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * Column-oriented (struct-of-arrays) storage for points of interest.
+ *
+ * Coordinates are held in primitive double columns and all of the names are packed, UTF-8 encoded, into a single byte
+ * column addressed by an offsets column. Compared to a list of PointOfInterest objects this removes the object headers,
+ * references and String/char[] instances per point; PointOfInterest objects are only created for the rows that are
+ * actually returned to a caller.
+ *
+ * The columns are buffers so that a store may either wrap heap arrays (see of(Collection)) or sit directly on a
+ * memory-mapped PointFile, in which case the data lives in the OS page cache rather than on the heap.
+ */
+public class PointStore {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DoubleBuffer longitudes;
+    private final DoubleBuffer latitudes;
+    private final IntBuffer nameOffsets;
+    private final ByteBuffer names;
+
+    PointStore( final DoubleBuffer longitudes, final DoubleBuffer latitudes, final IntBuffer nameOffsets, final ByteBuffer names ){
+        this.longitudes = longitudes;
+        this.latitudes = latitudes;
+        this.nameOffsets = nameOffsets;
+        this.names = names;
+    }
+
+    /**
+     * Copies the given points into a new heap-backed columnar store. Row numbers follow the iteration order of the
+     * collection.
+     *
+     * @param points the points to be stored
+     * @return the populated store
+     */
+    public static PointStore of( final Collection<PointOfInterest> points ){
+        final int count = points.size();
+        final double[] longitudes = new double[count];
+        final double[] latitudes = new double[count];
+        final int[] nameOffsets = new int[count + 1];
+
+        final byte[][] encoded = new byte[count][];
+        long nameBytes = 0;
+
+        int row = 0;
+        for( final PointOfInterest poi : points ){
+            longitudes[row] = poi.getLongitude();
+            latitudes[row] = poi.getLatitude();
+            encoded[row] = poi.getName() != null ? poi.getName().getBytes(UTF8) : new byte[0];
+            nameBytes += encoded[row].length;
+            row++;
+        }
+
+        if( nameBytes > Integer.MAX_VALUE ){
+            throw new IllegalArgumentException("Point names exceed the 2GB name storage limit");
+        }
+
+        final byte[] names = new byte[(int)nameBytes];
+        int offset = 0;
+        for( int i=0; i<count; i++ ){
+            nameOffsets[i] = offset;
+            System.arraycopy(encoded[i], 0, names, offset, encoded[i].length);
+            offset += encoded[i].length;
+            encoded[i] = null;
+        }
+        nameOffsets[count] = offset;
+
+        return new PointStore(
+            DoubleBuffer.wrap(longitudes), DoubleBuffer.wrap(latitudes), IntBuffer.wrap(nameOffsets), ByteBuffer.wrap(names)
+        );
+    }
+
+    /**
+     * Wraps the given columns in a heap-backed store, without copying them.
+     *
+     * @param longitudes the longitude of each row
+     * @param latitudes the latitude of each row
+     * @param nameOffsets the offset of the name of each row in the names column, followed by the end of the last name
+     * @param names the packed UTF-8 encoded names
+     * @return the store
+     */
+    public static PointStore of( final double[] longitudes, final double[] latitudes, final int[] nameOffsets, final byte[] names ){
+        if( latitudes.length != longitudes.length || nameOffsets.length != longitudes.length + 1 ){
+            throw new IllegalArgumentException("The columns must have one entry per row (plus one name offset)");
+        }
+
+        return new PointStore(
+            DoubleBuffer.wrap(longitudes), DoubleBuffer.wrap(latitudes), IntBuffer.wrap(nameOffsets), ByteBuffer.wrap(names)
+        );
+    }
+
+    /**
+     * Copies the given rows into a new heap-backed store, without decoding the names.
+     *
+     * @param rows the rows to be copied, in their new order
+     * @return the new store
+     */
+    public PointStore select( final int[] rows ){
+        long nameBytes = 0;
+        for( final int row : rows ){
+            nameBytes += nameLength(row);
+        }
+
+        final double[] selectedLongitudes = new double[rows.length];
+        final double[] selectedLatitudes = new double[rows.length];
+        final int[] selectedOffsets = new int[rows.length + 1];
+        final byte[] selectedNames = new byte[(int)nameBytes];
+
+        int offset = 0;
+        for( int i=0; i<rows.length; i++ ){
+            selectedLongitudes[i] = longitude(rows[i]);
+            selectedLatitudes[i] = latitude(rows[i]);
+            selectedOffsets[i] = offset;
+            offset += copyName(rows[i], selectedNames, offset);
+        }
+        selectedOffsets[rows.length] = offset;
+
+        return new PointStore(
+            DoubleBuffer.wrap(selectedLongitudes), DoubleBuffer.wrap(selectedLatitudes), IntBuffer.wrap(selectedOffsets), ByteBuffer.wrap(selectedNames)
+        );
+    }
+
+    /**
+     * @return the number of points in the store
+     */
+    public int size(){
+        return longitudes.limit();
+    }
+
+    public double longitude( final int row ){
+        return longitudes.get(row);
+    }
+
+    public double latitude( final int row ){
+        return latitudes.get(row);
+    }
+
+    public String name( final int row ){
+        final int start = nameOffsets.get(row);
+        final int length = nameOffsets.get(row + 1) - start;
+
+        if( names.hasArray() ){
+            return new String(names.array(), names.arrayOffset() + start, length, UTF8);
+        }
+
+        final byte[] bytes = new byte[length];
+        final ByteBuffer view = names.duplicate();
+        view.position(start);
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @return the length of the UTF-8 encoded name of the row, in bytes
+     */
+    int nameLength( final int row ){
+        return nameOffsets.get(row + 1) - nameOffsets.get(row);
+    }
+
+    /**
+     * Copies the UTF-8 encoded name of the row into the array, without decoding it.
+     *
+     * @return the number of bytes copied
+     */
+    int copyName( final int row, final byte[] target, final int offset ){
+        final int start = nameOffsets.get(row);
+        final int length = nameOffsets.get(row + 1) - start;
+
+        final ByteBuffer view = names.duplicate();
+        view.position(start);
+        view.get(target, offset, length);
+        return length;
+    }
+
+    /**
+     * @return whether or not the columns are memory-mapped rather than held on the heap
+     */
+    public boolean isMapped(){
+        return longitudes.isDirect();
+    }
+
+    DoubleBuffer longitudes(){
+        return longitudes.duplicate();
+    }
+
+    DoubleBuffer latitudes(){
+        return latitudes.duplicate();
+    }
+
+    IntBuffer nameOffsets(){
+        return nameOffsets.duplicate();
+    }
+
+    ByteBuffer names(){
+        return names.duplicate();
+    }
+
+    /**
+     * Creates a new PointOfInterest for the given row.
+     *
+     * @param row the row
+     * @return a new PointOfInterest populated from the row
+     */
+    public PointOfInterest toPointOfInterest( final int row ){
+        final PointOfInterest poi = new PointOfInterest();
+        poi.setName(name(row));
+        poi.setLongitude(longitude(row));
+        poi.setLatitude(latitude(row));
+        return poi;
+    }
+
+    /**
+     * Creates PointOfInterest objects for the given rows.
+     *
+     * @param rows the rows to be converted
+     * @return an array of new PointOfInterest objects, in the order of the rows
+     */
+    public PointOfInterest[] toPointsOfInterest( final int[] rows ){
+        final PointOfInterest[] results = new PointOfInterest[rows.length];
+        for( int i=0; i<rows.length; i++ ){
+            results[i] = toPointOfInterest(rows[i]);
+        }
+        return results;
+    }
+
+    /**
+     * Approximate size of the stored data: 16 bytes per point for the coordinates, 4 bytes per point for the name
+     * offset, plus the encoded name bytes. For a heap-backed store this is its heap footprint, for a mapped store it
+     * is the size of the mapped columns.
+     *
+     * @return the approximate size of the stored data in bytes
+     */
+    public long sizeInBytes(){
+        return 16L * longitudes.limit() + 4L * nameOffsets.limit() + names.limit();
+    }
+}
@@ -0,0 +1,46 @@
+package com.stehno.oldemo.service;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when the points of interest change, with the old and new locations of the affected points so that
+ * anything derived from the data (such as rendered tiles) can be invalidated. A compaction changes no points but
+ * replaces the base data and the cluster pyramid built from it.
+ */
+public class PointsChangedEvent extends ApplicationEvent {
+
+    private final int version;
+    private final Coordinates added;
+    private final Coordinates removed;
+    private final boolean compacted;
+
+    public PointsChangedEvent( final Object source, final int version, final Coordinates added, final Coordinates removed, final boolean compacted ){
+        super(source);
+        this.version = version;
+        this.added = added;
+        this.removed = removed;
+        this.compacted = compacted;
+    }
+
+    public int getVersion(){
+        return version;
+    }
+
+    /**
+     * @return the locations of the added points and the new locations of the updated points
+     */
+    public Coordinates getAdded(){
+        return added;
+    }
+
+    /**
+     * @return the locations of the deleted points and the old locations of the updated points
+     */
+    public Coordinates getRemoved(){
+        return removed;
+    }
+
+    public boolean isCompacted(){
+        return compacted;
+    }
+}
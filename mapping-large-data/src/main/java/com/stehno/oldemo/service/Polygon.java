@@ -0,0 +1,235 @@
+package com.stehno.oldemo.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A polygon or multipolygon area, read from GeoJSON, prepared for fast point-in-polygon tests.
+ *
+ * Containment is decided by the even-odd rule over the edges of all of the rings (casting a ray eastwards from the
+ * point), which for valid GeoJSON, whose holes lie inside their shells and whose parts do not overlap, is the same as
+ * being inside a shell and outside its holes. Points exactly on an edge may fall on either side. Coordinates are
+ * treated as planar longitude and latitude, so areas crossing the antimeridian should be split, as GeoJSON asks.
+ *
+ * The edges are indexed by latitude in equal bands between the bottom and top of the polygon, each listing the edges
+ * overlapping it, so a test only looks at the edges of the point's band rather than all of them; for a polygon with
+ * thousands of vertices that is a few edges per test.
+ */
+public final class Polygon {
+
+    /**
+     * The average number of edges per band aimed for by the edge index.
+     */
+    private static final int EDGES_PER_BAND = 4;
+    private static final int MAX_BANDS = 4096;
+
+    private final double left, bottom, right, top;
+    private final double[] edges;
+    private final int bands;
+    private final double bandScale;
+    private final int[] bandStarts;
+    private final int[] bandEdges;
+
+    /**
+     * @param rings the rings of the area, each a closed sequence of longitude, latitude pairs
+     */
+    public Polygon( final List<double[]> rings ){
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for( final double[] ring : rings ){
+            count += ring.length / 2 - 1;
+            for( int i=0; i<ring.length; i+=2 ){
+                minX = Math.min(minX, ring[i]);
+                maxX = Math.max(maxX, ring[i]);
+                minY = Math.min(minY, ring[i+1]);
+                maxY = Math.max(maxY, ring[i+1]);
+            }
+        }
+
+        if( count < 3 ){
+            throw new IllegalArgumentException("A polygon needs at least three edges");
+        }
+
+        left = minX;
+        bottom = minY;
+        right = maxX;
+        top = maxY;
+
+        // edges as x1, y1, x2, y2
+        edges = new double[count * 4];
+        int e = 0;
+        for( final double[] ring : rings ){
+            for( int i=0; i + 3 < ring.length; i+=2 ){
+                edges[e++] = ring[i];
+                edges[e++] = ring[i+1];
+                edges[e++] = ring[i+2];
+                edges[e++] = ring[i+3];
+            }
+        }
+
+        bands = Math.max(1, Math.min(count / EDGES_PER_BAND, MAX_BANDS));
+        bandScale = top > bottom ? bands / (top - bottom) : 0;
+
+        bandStarts = new int[bands + 1];
+        for( int edge=0; edge<count; edge++ ){
+            for( int band = band(minY(edge)), last = band(maxY(edge)); band <= last; band++ ){
+                bandStarts[band + 1]++;
+            }
+        }
+        for( int band=0; band<bands; band++ ){
+            bandStarts[band + 1] += bandStarts[band];
+        }
+
+        bandEdges = new int[bandStarts[bands]];
+        final int[] next = bandStarts.clone();
+        for( int edge=0; edge<count; edge++ ){
+            for( int band = band(minY(edge)), last = band(maxY(edge)); band <= last; band++ ){
+                bandEdges[next[band]++] = edge;
+            }
+        }
+    }
+
+    /**
+     * Reads a GeoJSON Polygon or MultiPolygon geometry, or a Feature holding one.
+     *
+     * @param geoJson the parsed GeoJSON object
+     * @return the polygon
+     * @throws IllegalArgumentException if the object is not a valid polygon or multipolygon
+     */
+    public static Polygon fromGeoJson( final JsonNode geoJson ){
+        final String type = geoJson.path("type").asText();
+        if( "Feature".equals(type) ){
+            return fromGeoJson(geoJson.path("geometry"));
+        }
+
+        final List<double[]> rings = new ArrayList<>();
+        if( "Polygon".equals(type) ){
+            addRings(rings, geoJson.path("coordinates"));
+
+        } else if( "MultiPolygon".equals(type) ){
+            final JsonNode polygons = geoJson.path("coordinates");
+            if( !polygons.isArray() || polygons.size() == 0 ){
+                throw new IllegalArgumentException("A MultiPolygon needs an array of polygons");
+            }
+            for( final JsonNode polygon : polygons ){
+                addRings(rings, polygon);
+            }
+
+        } else {
+            throw new IllegalArgumentException("Expected a Polygon, MultiPolygon or Feature, not '" + type + "'");
+        }
+
+        return new Polygon(rings);
+    }
+
+    /**
+     * Reads the polygons of a GeoJSON FeatureCollection or GeometryCollection, or of a JSON array of polygon objects.
+     *
+     * @param geoJson the parsed GeoJSON object or array
+     * @return the polygons, in order
+     * @throws IllegalArgumentException if one of them is not a valid polygon or multipolygon
+     */
+    public static List<Polygon> listFromGeoJson( final JsonNode geoJson ){
+        final JsonNode members;
+        if( geoJson.isArray() ){
+            members = geoJson;
+        } else if( "FeatureCollection".equals(geoJson.path("type").asText()) ){
+            members = geoJson.path("features");
+        } else if( "GeometryCollection".equals(geoJson.path("type").asText()) ){
+            members = geoJson.path("geometries");
+        } else {
+            throw new IllegalArgumentException("Expected a FeatureCollection, GeometryCollection or array of polygons");
+        }
+
+        final List<Polygon> polygons = new ArrayList<>(members.size());
+        for( final JsonNode member : members ){
+            polygons.add(fromGeoJson(member));
+        }
+        return polygons;
+    }
+
+    public double left(){
+        return left;
+    }
+
+    public double bottom(){
+        return bottom;
+    }
+
+    public double right(){
+        return right;
+    }
+
+    public double top(){
+        return top;
+    }
+
+    /**
+     * @return the number of edges
+     */
+    public int edges(){
+        return edges.length / 4;
+    }
+
+    /**
+     * @return whether or not the point is inside the area
+     */
+    public boolean contains( final double lon, final double lat ){
+        if( lon < left || lon > right || lat < bottom || lat > top ) return false;
+
+        boolean inside = false;
+        final int band = band(lat);
+        for( int i = bandStarts[band], end = bandStarts[band + 1]; i < end; i++ ){
+            final int e = bandEdges[i] * 4;
+            final double x1 = edges[e], y1 = edges[e+1], x2 = edges[e+2], y2 = edges[e+3];
+
+            // the edge spans the latitude (half-open, so a shared vertex counts once) and crosses east of the point
+            if( (y1 > lat) != (y2 > lat) && lon < x1 + (lat - y1) * (x2 - x1) / (y2 - y1) ){
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private int band( final double lat ){
+        return Math.max(0, Math.min((int)((lat - bottom) * bandScale), bands - 1));
+    }
+
+    private double minY( final int edge ){
+        return Math.min(edges[edge * 4 + 1], edges[edge * 4 + 3]);
+    }
+
+    private double maxY( final int edge ){
+        return Math.max(edges[edge * 4 + 1], edges[edge * 4 + 3]);
+    }
+
+    private static void addRings( final List<double[]> rings, final JsonNode polygon ){
+        if( !polygon.isArray() || polygon.size() == 0 ){
+            throw new IllegalArgumentException("A polygon needs an array of linear rings");
+        }
+
+        for( final JsonNode ring : polygon ){
+            if( !ring.isArray() || ring.size() < 4 ){
+                throw new IllegalArgumentException("A linear ring needs at least four positions");
+            }
+
+            final double[] coordinates = new double[ring.size() * 2];
+            for( int i=0; i<ring.size(); i++ ){
+                final JsonNode position = ring.get(i);
+                if( !position.isArray() || position.size() < 2 || !position.get(0).isNumber() || !position.get(1).isNumber() ){
+                    throw new IllegalArgumentException("A position needs a longitude and a latitude");
+                }
+                coordinates[i * 2] = position.get(0).asDouble();
+                coordinates[i * 2 + 1] = position.get(1).asDouble();
+            }
+
+            if( coordinates[0] != coordinates[coordinates.length - 2] || coordinates[1] != coordinates[coordinates.length - 1] ){
+                throw new IllegalArgumentException("A linear ring must end at its first position");
+            }
+            rings.add(coordinates);
+        }
+    }
+}
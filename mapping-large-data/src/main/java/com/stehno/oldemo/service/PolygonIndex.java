@@ -0,0 +1,124 @@
+package com.stehno.oldemo.service;
+
+import java.util.List;
+
+/**
+ * Index over a set of polygons for counting the points inside each of them in one pass over the points: a grid of
+ * buckets over the bounding box of all of the polygons, each listing the polygons whose bounding boxes overlap it, so
+ * a point is only tested against the few polygons near it.
+ */
+public final class PolygonIndex {
+
+    private static final int MAX_BUCKETS_PER_AXIS = 256;
+
+    private final Polygon[] polygons;
+    private final double left, bottom, right, top;
+    private final int columns, rows;
+    private final double columnScale, rowScale;
+    private final int[] bucketStarts;
+    private final int[] bucketPolygons;
+
+    /**
+     * @param polygons the polygons, which must not be empty
+     */
+    public PolygonIndex( final List<Polygon> polygons ){
+        if( polygons.isEmpty() ){
+            throw new IllegalArgumentException("At least one polygon is required");
+        }
+
+        this.polygons = polygons.toArray(new Polygon[polygons.size()]);
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for( final Polygon polygon : this.polygons ){
+            minX = Math.min(minX, polygon.left());
+            minY = Math.min(minY, polygon.bottom());
+            maxX = Math.max(maxX, polygon.right());
+            maxY = Math.max(maxY, polygon.top());
+        }
+        left = minX;
+        bottom = minY;
+        right = maxX;
+        top = maxY;
+
+        // about as many buckets as polygons (times four), so a bucket overlaps a few polygons
+        final int perAxis = Math.max(1, Math.min((int)Math.ceil(Math.sqrt(this.polygons.length * 4.0)), MAX_BUCKETS_PER_AXIS));
+        columns = right > left ? perAxis : 1;
+        rows = top > bottom ? perAxis : 1;
+        columnScale = right > left ? columns / (right - left) : 0;
+        rowScale = top > bottom ? rows / (top - bottom) : 0;
+
+        bucketStarts = new int[columns * rows + 1];
+        for( final Polygon polygon : this.polygons ){
+            for( int row = row(polygon.bottom()); row <= row(polygon.top()); row++ ){
+                for( int column = column(polygon.left()); column <= column(polygon.right()); column++ ){
+                    bucketStarts[row * columns + column + 1]++;
+                }
+            }
+        }
+        for( int bucket=0; bucket<columns * rows; bucket++ ){
+            bucketStarts[bucket + 1] += bucketStarts[bucket];
+        }
+
+        bucketPolygons = new int[bucketStarts[columns * rows]];
+        final int[] next = bucketStarts.clone();
+        for( int p=0; p<this.polygons.length; p++ ){
+            final Polygon polygon = this.polygons[p];
+            for( int row = row(polygon.bottom()); row <= row(polygon.top()); row++ ){
+                for( int column = column(polygon.left()); column <= column(polygon.right()); column++ ){
+                    bucketPolygons[next[row * columns + column]++] = p;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of polygons
+     */
+    public int size(){
+        return polygons.length;
+    }
+
+    public double left(){
+        return left;
+    }
+
+    public double bottom(){
+        return bottom;
+    }
+
+    public double right(){
+        return right;
+    }
+
+    public double top(){
+        return top;
+    }
+
+    /**
+     * Counts the point into every polygon containing it.
+     *
+     * @param lon the longitude of the point
+     * @param lat the latitude of the point
+     * @param counts the counts, one per polygon in order
+     */
+    public void count( final double lon, final double lat, final int[] counts ){
+        if( lon < left || lon > right || lat < bottom || lat > top ) return;
+
+        final int bucket = row(lat) * columns + column(lon);
+        for( int i = bucketStarts[bucket], end = bucketStarts[bucket + 1]; i < end; i++ ){
+            final int p = bucketPolygons[i];
+            if( polygons[p].contains(lon, lat) ){
+                counts[p]++;
+            }
+        }
+    }
+
+    private int column( final double lon ){
+        return Math.max(0, Math.min((int)((lon - left) * columnScale), columns - 1));
+    }
+
+    private int row( final double lat ){
+        return Math.max(0, Math.min((int)((lat - bottom) * rowScale), rows - 1));
+    }
+}
@@ -0,0 +1,106 @@
+package com.stehno.oldemo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs queries off the container threads, in one of two lanes with their own bounded thread pools, so that a burst of
+ * slow queries (full fetches, cold clustering, polygons) cannot hold up the cheap bounding-box ones.
+ *
+ * Each lane has a fixed number of threads and a queue of fixed depth; a query arriving at a full queue is rejected,
+ * which the caller answers with a 503 (Service Unavailable) rather than letting the latency of every request grow.
+ */
+@Service
+@Profile("!coordinator")
+public class QueryExecutor {
+
+    private static final Logger log = LogManager.getLogger(QueryExecutor.class);
+
+    /**
+     * The classes of queries, each run by its own pool.
+     */
+    public enum Lane {
+        CHEAP, EXPENSIVE;
+
+        private final String key = name().toLowerCase();
+
+        /**
+         * @return the lower-case name of the lane, as used in the metrics
+         */
+        public String key(){
+            return key;
+        }
+    }
+
+    @Autowired private PoiMetrics metrics;
+
+    @Value("${oldemo.async.cheap.threads:0}") private int cheapThreads;
+    @Value("${oldemo.async.cheap.queue:256}") private int cheapQueue;
+    @Value("${oldemo.async.expensive.threads:2}") private int expensiveThreads;
+    @Value("${oldemo.async.expensive.queue:8}") private int expensiveQueue;
+
+    private final ThreadPoolExecutor[] executors = new ThreadPoolExecutor[Lane.values().length];
+
+    @PostConstruct
+    public void init(){
+        executors[Lane.CHEAP.ordinal()] = executor(Lane.CHEAP, cheapThreads > 0 ? cheapThreads : Runtime.getRuntime().availableProcessors() * 2, cheapQueue);
+        executors[Lane.EXPENSIVE.ordinal()] = executor(Lane.EXPENSIVE, Math.max(expensiveThreads, 1), expensiveQueue);
+    }
+
+    @PreDestroy
+    public void destroy(){
+        for( final ThreadPoolExecutor executor : executors ){
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Queues the query in the given lane.
+     *
+     * @param lane the lane of the query
+     * @param query the query, which must handle its own failures
+     * @throws RejectedExecutionException if the queue of the lane is full
+     */
+    public void execute( final Lane lane, final Runnable query ){
+        final ThreadPoolExecutor executor = executors[lane.ordinal()];
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run(){
+                    metrics.queueWait(lane).recordSince(queued);
+                    query.run();
+                }
+            });
+
+        } catch( RejectedExecutionException ree ){
+            metrics.shed(lane).record(executor.getQueue().size());
+            throw ree;
+        }
+    }
+
+    private static ThreadPoolExecutor executor( final Lane lane, final int threads, final int depth ){
+        log.info("Running {} queries on {} threads, queueing up to {}", lane.key(), threads, depth);
+
+        final BlockingQueue<Runnable> queue = depth > 0 ? new ArrayBlockingQueue<Runnable>(depth) : new SynchronousQueue<Runnable>();
+        return new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+            new ThreadFactoryBuilder().setNameFormat("poi-" + lane.key() + "-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+}
@@ -0,0 +1,60 @@
+package com.stehno.oldemo.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounding box ( left, bottom, right, top) helpers for delta fetches: a box holds the points strictly inside it, as
+ * with the bounding-box queries, and the difference of two boxes is covered by up to four strips.
+ */
+public final class Regions {
+
+    private Regions(){}
+
+    /**
+     * @return whether or not the point is strictly inside the box
+     */
+    public static boolean inside( final double[] box, final double lon, final double lat ){
+        return lon > box[0] && lon < box[2] && lat > box[1] && lat < box[3];
+    }
+
+    /**
+     * Covers the points inside one box but not inside another with disjoint query boxes: the whole box if the two do
+     * not overlap, and otherwise the strips to the west and east of the overlap (full height) and to its south and
+     * north (overlap width), leaving out the empty ones.
+     *
+     * The strips are widened by one ulp at the edges of the overlap, so that points lying exactly on those edges (which
+     * are inside the first box but not strictly inside the second) are covered; each point is covered once. A search
+     * of the strips may still return points inside the second box at those edges, so the results should be checked with
+     * inside().
+     *
+     * @param box the box whose points are wanted
+     * @param minus the box whose points are not wanted
+     * @return the query boxes
+     */
+    public static List<double[]> difference( final double[] box, final double[] minus ){
+        final double left = Math.max(box[0], minus[0]);
+        final double bottom = Math.max(box[1], minus[1]);
+        final double right = Math.min(box[2], minus[2]);
+        final double top = Math.min(box[3], minus[3]);
+
+        final List<double[]> strips = new ArrayList<>(4);
+        if( !(left < right && bottom < top) ){
+            strips.add(box.clone());
+            return strips;
+        }
+
+        addStrip(strips, box[0], box[1], Math.nextUp(left), box[3]);
+        addStrip(strips, Math.nextAfter(right, Double.NEGATIVE_INFINITY), box[1], box[2], box[3]);
+        addStrip(strips, left, box[1], right, Math.nextUp(bottom));
+        addStrip(strips, left, Math.nextAfter(top, Double.NEGATIVE_INFINITY), right, box[3]);
+        return strips;
+    }
+
+    private static void addStrip( final List<double[]> strips, final double left, final double bottom, final double right, final double top ){
+        // a strip only holds points if there is room strictly between its edges
+        if( Math.nextUp(left) < right && Math.nextUp(bottom) < top ){
+            strips.add(new double[]{ left, bottom, right, top });
+        }
+    }
+}
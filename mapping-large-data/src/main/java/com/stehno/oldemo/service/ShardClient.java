@@ -0,0 +1,379 @@
+package com.stehno.oldemo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.stehno.oldemo.config.PoiBinaryMessageConverter;
+import com.stehno.oldemo.dto.PointOfInterest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Array;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fans queries out to the shard nodes of a partitioned deployment (coordinator profile only).
+ *
+ * The shards are listed, in shard order, by their base URLs in oldemo.coordinator.shards; each is a regular node
+ * started with the matching oldemo.shard.index and oldemo.shard.count. A query is sent in parallel to the shards whose
+ * longitude range overlaps it, using the binary POI format, and the results are gathered until the
+ * oldemo.coordinator.timeout deadline. Shards which fail or miss the deadline are reported rather than failing the
+ * whole query, so the caller can return a partial result.
+ */
+@Service
+@Profile("coordinator")
+public class ShardClient {
+
+    private static final Logger log = LogManager.getLogger(ShardClient.class);
+
+    @Value("${oldemo.coordinator.shards:}") private String shardUrls;
+    @Value("${oldemo.coordinator.timeout:2000}") private int timeout;
+
+    private List<String> shards;
+    private RestTemplate restTemplate;
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init(){
+        shards = new ArrayList<>();
+        for( final String url : shardUrls.split(",") ){
+            if( !url.trim().isEmpty() ){
+                shards.add(url.trim().replaceAll("/+$", ""));
+            }
+        }
+
+        if( shards.isEmpty() ){
+            throw new IllegalStateException("No shards configured: set oldemo.coordinator.shards to the shard base URLs");
+        }
+
+        final SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(timeout);
+        requestFactory.setReadTimeout(timeout);
+
+        restTemplate = new RestTemplate(requestFactory);
+        restTemplate.setMessageConverters(Arrays.<HttpMessageConverter<?>>asList(
+            new PoiBinaryMessageConverter(), new StringHttpMessageConverter(), new MappingJackson2HttpMessageConverter()
+        ));
+
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("shard-client-%d").setDaemon(true).build());
+
+        log.info("Coordinating {} shards: {}", shards.size(), shards);
+    }
+
+    @PreDestroy
+    public void destroy(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int size(){
+        return shards.size();
+    }
+
+    /**
+     * Sends the query to every shard whose longitude range overlaps the given one.
+     *
+     * @param left the western bound of the query
+     * @param right the eastern bound of the query
+     * @param path the path (and encoded query string) of the query below /poi on each shard, e.g. /v2/fetch/{bounds}
+     * @return the gathered results
+     */
+    public Gathered gather( final double left, final double right, final String path ){
+        final List<Integer> targets = new ArrayList<>();
+        final List<URI> urls = new ArrayList<>();
+        target(left, right, path, targets, urls);
+        return gather(targets, urls, HttpMethod.GET, null, path);
+    }
+
+    /**
+     * Posts the request body to every shard whose longitude range overlaps the given one.
+     *
+     * @param left the western bound of the query
+     * @param right the eastern bound of the query
+     * @param path the path of the query below /poi on each shard, e.g. /polygon/fetch
+     * @param body the JSON request body
+     * @return the gathered results
+     */
+    public Gathered post( final double left, final double right, final String path, final String body ){
+        final List<Integer> targets = new ArrayList<>();
+        final List<URI> urls = new ArrayList<>();
+        target(left, right, path, targets, urls);
+        return gather(targets, urls, HttpMethod.POST, body, path);
+    }
+
+    /**
+     * Fetches the points inside each of the given bounding boxes (/v2/fetch/{bounds}) from the shards overlapping it,
+     * all in parallel, as one gathered query.
+     *
+     * @param boxes the ( left, bottom, right, top) boxes
+     * @return the gathered results, one per box and shard
+     */
+    public Gathered gatherWithin( final List<double[]> boxes ){
+        final List<Integer> targets = new ArrayList<>();
+        final List<URI> urls = new ArrayList<>();
+        for( final double[] box : boxes ){
+            target(box[0], box[2], "/v2/fetch/" + box[0] + "," + box[1] + "," + box[2] + "," + box[3], targets, urls);
+        }
+        return gather(targets, urls, HttpMethod.GET, null, "/v2/fetch (" + boxes.size() + " boxes)");
+    }
+
+    /**
+     * Posts the request body to every shard whose longitude range overlaps the given one and adds up the counts they
+     * return (a JSON array of numbers each).
+     *
+     * @param left the western bound of the query
+     * @param right the eastern bound of the query
+     * @param path the path of the query below /poi on each shard, e.g. /polygon/counts
+     * @param body the JSON request body
+     * @return the summed counts
+     */
+    public Summed sum( final double left, final double right, final String path, final String body ){
+        final List<Integer> targets = new ArrayList<>();
+        final List<URI> urls = new ArrayList<>();
+        target(left, right, path, targets, urls);
+
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+        headers.setContentType(MediaType.APPLICATION_JSON);
+
+        final Summed summed = new Summed(targets.size());
+        for( final int[] counts : exchange(targets, urls, HttpMethod.POST, new HttpEntity<>(body, headers), int[].class, path, summed.missing) ){
+            if( summed.counts == null ){
+                summed.counts = counts.clone();
+            } else {
+                for( int i=0; i<Math.min(counts.length, summed.counts.length); i++ ){
+                    summed.counts[i] += counts[i];
+                }
+            }
+        }
+        return summed;
+    }
+
+    private void target( final double left, final double right, final String path, final List<Integer> targets, final List<URI> urls ){
+        for( int shard=0; shard<shards.size(); shard++ ){
+            if( Shards.overlaps(shard, shards.size(), left, right) ){
+                targets.add(shard);
+                urls.add(URI.create(shards.get(shard) + "/poi" + path));
+            }
+        }
+    }
+
+    private Gathered gather( final List<Integer> targets, final List<URI> urls, final HttpMethod method, final String body, final String description ){
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(PoiBinaryMessageConverter.MEDIA_TYPE));
+        headers.setContentType(MediaType.APPLICATION_JSON);
+
+        final Gathered gathered = new Gathered(new HashSet<>(targets).size());
+        for( final PointOfInterest[] result : exchange(targets, urls, method, new HttpEntity<>(body, headers), PointOfInterest[].class, description, gathered.missing) ){
+            gathered.results.add(result);
+        }
+        return gathered;
+    }
+
+    /**
+     * Sends the requests in parallel and collects the responses which arrive before the deadline.
+     *
+     * @param missing receives the shards which failed or timed out
+     * @return the responses received, with an empty array for an empty response
+     */
+    private <T> List<T> exchange( final List<Integer> targets, final List<URI> urls, final HttpMethod method, final HttpEntity<String> request,
+                                  final Class<T> type, final String description, final List<Integer> missing ){
+        final List<Future<T>> futures = new ArrayList<>();
+        for( final URI url : urls ){
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call(){
+                    return restTemplate.exchange(url, method, request, type).getBody();
+                }
+            }));
+        }
+
+        final List<T> results = new ArrayList<>();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for( int i=0; i<futures.size(); i++ ){
+            final Future<T> future = futures.get(i);
+            final int shard = targets.get(i);
+            try {
+                final T result = future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                results.add(result != null ? result : type.cast(Array.newInstance(type.getComponentType(), 0)));
+
+            } catch( TimeoutException te ){
+                future.cancel(true);
+                log.warn("Shard {} timed out for {}", shard, description);
+                if( !missing.contains(shard) ) missing.add(shard);
+
+            } catch( ExecutionException ee ){
+                log.warn("Shard {} failed for {}: {}", shard, description, ee.getCause().getMessage());
+                if( !missing.contains(shard) ) missing.add(shard);
+
+            } catch( InterruptedException ie ){
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                if( !missing.contains(shard) ) missing.add(shard);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The counts added up over the shards which responded in time, and the shards which did not.
+     */
+    public static class Summed {
+
+        private final int queried;
+        private final List<Integer> missing = new ArrayList<>();
+        private int[] counts;
+
+        Summed( final int queried ){
+            this.queried = queried;
+        }
+
+        /**
+         * @return the number of shards the query was sent to
+         */
+        public int getQueried(){
+            return queried;
+        }
+
+        /**
+         * @return the summed counts, or null if no shard responded
+         */
+        public int[] getCounts(){
+            return counts;
+        }
+
+        /**
+         * @return the shards which failed or timed out
+         */
+        public List<Integer> getMissing(){
+            return missing;
+        }
+    }
+
+    /**
+     * The results of the shards which responded in time, and the shards which did not.
+     */
+    public static class Gathered {
+
+        private final int queried;
+        private final List<PointOfInterest[]> results = new ArrayList<>();
+        private final List<Integer> missing = new ArrayList<>();
+
+        Gathered( final int queried ){
+            this.queried = queried;
+        }
+
+        /**
+         * @return the number of shards the query was sent to
+         */
+        public int getQueried(){
+            return queried;
+        }
+
+        public List<PointOfInterest[]> getResults(){
+            return results;
+        }
+
+        /**
+         * @return the shards which failed or timed out
+         */
+        public List<Integer> getMissing(){
+            return missing;
+        }
+
+        /**
+         * @return all of the gathered points in one array
+         */
+        public PointOfInterest[] concatenated(){
+            int count = 0;
+            for( final PointOfInterest[] result : results ){
+                count += result.length;
+            }
+
+            final PointOfInterest[] all = new PointOfInterest[count];
+            int offset = 0;
+            for( final PointOfInterest[] result : results ){
+                System.arraycopy(result, 0, all, offset, result.length);
+                offset += result.length;
+            }
+            return all;
+        }
+
+        /**
+         * @param limit the maximum number of points, or 0 for no limit
+         * @return the gathered points in name order (see NameIndex)
+         */
+        public PointOfInterest[] byName( final int limit ){
+            final PointOfInterest[] all = concatenated();
+
+            final byte[][] names = new byte[all.length][];
+            final Integer[] sorted = new Integer[all.length];
+            for( int i=0; i<all.length; i++ ){
+                names[i] = NameIndex.fold(all[i].getName() != null ? all[i].getName() : "");
+                sorted[i] = i;
+            }
+
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare( final Integer a, final Integer b ){
+                    return NameIndex.compare(names[a], names[b]);
+                }
+            });
+
+            final PointOfInterest[] byName = new PointOfInterest[limit > 0 ? Math.min(limit, all.length) : all.length];
+            for( int i=0; i<byName.length; i++ ){
+                byName[i] = all[sorted[i]];
+            }
+            return byName;
+        }
+
+        /**
+         * @param lon the longitude of the location
+         * @param lat the latitude of the location
+         * @param limit the maximum number of points, or 0 for no limit
+         * @return the gathered points nearest to the location, nearest first
+         */
+        public PointOfInterest[] nearest( final double lon, final double lat, final int limit ){
+            final PointOfInterest[] all = concatenated();
+
+            final Neighbours neighbours = new Neighbours(limit);
+            for( int i=0; i<all.length; i++ ){
+                neighbours.add(i, GreatCircle.distance(lon, lat, all[i].getLongitude(), all[i].getLatitude()));
+            }
+            neighbours.sort();
+
+            final PointOfInterest[] nearest = new PointOfInterest[neighbours.size()];
+            for( int i=0; i<nearest.length; i++ ){
+                nearest[i] = all[neighbours.row(i)];
+            }
+            return nearest;
+        }
+    }
+}
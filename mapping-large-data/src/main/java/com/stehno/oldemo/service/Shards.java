@@ -0,0 +1,32 @@
+package com.stehno.oldemo.service;
+
+/**
+ * Longitude-range partitioning of the points of interest: with n shards, shard i owns the points with longitudes in
+ * [-180 + 360i/n, -180 + 360(i+1)/n), the last shard also owning 180.
+ */
+public final class Shards {
+
+    private Shards(){}
+
+    public static double west( final int shard, final int count ){
+        return -180.0 + 360.0 * shard / count;
+    }
+
+    public static double east( final int shard, final int count ){
+        return shard == count - 1 ? 180.0 : -180.0 + 360.0 * (shard + 1) / count;
+    }
+
+    /**
+     * @return the shard owning the given longitude
+     */
+    public static int of( final double longitude, final int count ){
+        return Math.max(0, Math.min((int)((longitude + 180.0) / 360.0 * count), count - 1));
+    }
+
+    /**
+     * @return whether or not the shard may hold points strictly between the given longitudes
+     */
+    public static boolean overlaps( final int shard, final int count, final double left, final double right ){
+        return left < east(shard, count) && right > west(shard, count);
+    }
+}
@@ -0,0 +1,59 @@
+package com.stehno.oldemo.service;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent computations of the same key: the first caller runs the computation and any callers arriving
+ * while it is in flight wait for and share its result (or failure). Nothing is retained once the computation
+ * completes, so results should be cached separately.
+ *
+ * @param <K> the key type
+ * @param <V> the result type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the computation for the key, or joins the one already in flight.
+     *
+     * @param key the key identifying the computation
+     * @param computation the computation, only called if none is in flight for the key
+     * @return the result of the computation
+     */
+    public V execute( final K key, final Callable<V> computation ){
+        FutureTask<V> call = calls.get(key);
+        if( call == null ){
+            final FutureTask<V> created = new FutureTask<>(computation);
+            call = calls.putIfAbsent(key, created);
+            if( call == null ){
+                call = created;
+                try {
+                    created.run();
+                } finally {
+                    calls.remove(key, created);
+                }
+            }
+        }
+
+        try {
+            return Uninterruptibles.getUninterruptibly(call);
+        } catch( ExecutionException ee ){
+            throw Throwables.propagate(ee.getCause());
+        }
+    }
+
+    /**
+     * @return the number of computations currently in flight
+     */
+    public int inFlight(){
+        return calls.size();
+    }
+}
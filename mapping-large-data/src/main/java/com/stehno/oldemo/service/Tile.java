@@ -0,0 +1,26 @@
+package com.stehno.oldemo.service;
+
+/**
+ * The serialized (JSON) content of a single map tile, along with its entity tag.
+ */
+public class Tile {
+
+    private final byte[] content;
+    private final String eTag;
+
+    public Tile( final byte[] content, final String eTag ){
+        this.content = content;
+        this.eTag = eTag;
+    }
+
+    public byte[] getContent(){
+        return content;
+    }
+
+    /**
+     * @return the quoted entity tag of the content
+     */
+    public String getETag(){
+        return eTag;
+    }
+}
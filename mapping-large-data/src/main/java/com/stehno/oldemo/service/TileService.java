@@ -0,0 +1,226 @@
+package com.stehno.oldemo.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.stehno.oldemo.dto.PointOfInterest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Serves the points of interest as standard slippy-map (z/x/y) tiles.
+ *
+ * Below the clustering zoom threshold a tile holds the pre-computed clusters of its cells; at or above it, the points
+ * inside the tile. Tile bounds are half-open (west and north edges inclusive) so that every point belongs to exactly one
+ * tile. Since a tile URL never changes, the serialized tiles are kept in a cache bounded by their total size in bytes.
+ *
+ * When points change, the tiles (point and cluster) containing their old and new locations are dropped from the cache;
+ * all of the cluster tiles are also dropped when the changes are compacted, since that is when the cluster pyramid is
+ * rebuilt. A tile being rendered while it is dropped would still be cached once rendered, so each tile records the data
+ * version (and pyramid generation) it was rendered from, and a tile older than the last change to its location (or
+ * than the pyramid) is rendered again when it is fetched. The changes are recorded per stripe of tiles rather than per
+ * tile, so that they take a fixed amount of memory; a change to one tile of a stripe at most re-renders the others
+ * once.
+ */
+@Service
+@Profile("!coordinator")
+public class TileService implements ApplicationListener<PointsChangedEvent> {
+
+    private static final int MAX_ZOOM = 30;
+    private static final int STRIPE_BITS = 12;
+
+    @Autowired private PoiService poiService;
+
+    @Value("${oldemo.zoom.threshold:8}") private int zoomThreshold;
+    @Value("${oldemo.tiles.cache.max-bytes:67108864}") private long maxCacheBytes;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicIntegerArray changes = new AtomicIntegerArray(1 << STRIPE_BITS);
+    private volatile int clusterGeneration;
+    private LoadingCache<TileKey, Rendered> tiles;
+
+    @PostConstruct
+    public void init(){
+        tiles = CacheBuilder.newBuilder()
+            .maximumWeight(maxCacheBytes)
+            .weigher(new Weigher<TileKey, Rendered>() {
+                @Override
+                public int weigh( final TileKey key, final Rendered rendered ){
+                    return rendered.tile.getContent().length;
+                }
+            })
+            .recordStats()
+            .build(new CacheLoader<TileKey, Rendered>() {
+                @Override
+                public Rendered load( final TileKey key ) throws JsonProcessingException {
+                    return render(key.zoom, key.x, key.y);
+                }
+            });
+    }
+
+    /**
+     * Determines whether or not the given tile coordinates exist.
+     */
+    public static boolean isValid( final int zoom, final int x, final int y ){
+        return zoom >= 0 && zoom <= MAX_ZOOM && x >= 0 && y >= 0 && x < (1 << zoom) && y < (1 << zoom);
+    }
+
+    /**
+     * Retrieves the tile with the given coordinates, rendering it on a cache miss.
+     *
+     * @param zoom the zoom level
+     * @param x the tile column
+     * @param y the tile row
+     * @return the tile
+     */
+    public Tile fetch( final int zoom, final int x, final int y ){
+        final TileKey key = new TileKey(zoom, x, y);
+
+        Rendered rendered = tiles.getUnchecked(key);
+        if( isStale(key, rendered) ){
+            // rendered before a change to it, and cached after it was dropped
+            tiles.asMap().remove(key, rendered);
+            rendered = tiles.getUnchecked(key);
+        }
+        return rendered.tile;
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the tile cache
+     */
+    public CacheStats stats(){
+        return tiles.stats();
+    }
+
+    /**
+     * Drops all of the cached tiles, for when the underlying data changes.
+     */
+    public void invalidate(){
+        tiles.invalidateAll();
+    }
+
+    @Override
+    public void onApplicationEvent( final PointsChangedEvent event ){
+        if( event.isCompacted() ){
+            clusterGeneration = Math.max(clusterGeneration, poiService.clusterGeneration());
+            for( final Iterator<TileKey> keys = tiles.asMap().keySet().iterator(); keys.hasNext(); ){
+                if( keys.next().zoom < zoomThreshold ) keys.remove();
+            }
+        }
+
+        invalidate(event.getAdded(), event.getVersion());
+        invalidate(event.getRemoved(), event.getVersion());
+    }
+
+    /**
+     * Drops the tiles containing the given locations, at every zoom level, recording the version of the change.
+     */
+    private void invalidate( final Coordinates locations, final int version ){
+        for( int i=0; i<locations.size(); i++ ){
+            final double x = Mercator.x(locations.longitude(i));
+            final double y = Mercator.y(locations.latitude(i));
+            for( int zoom=0; zoom <= MAX_ZOOM; zoom++ ){
+                final int cells = 1 << zoom;
+                final TileKey key = new TileKey(zoom, Mercator.cell(x, cells), Mercator.cell(y, cells));
+
+                final int stripe = key.stripe();
+                int changed = changes.get(stripe);
+                while( changed < version && !changes.compareAndSet(stripe, changed, version) ){
+                    changed = changes.get(stripe);
+                }
+
+                tiles.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * @return whether or not the tile was rendered from data older than the last change to its stripe or, for a
+     * cluster tile, from an older cluster pyramid
+     */
+    private boolean isStale( final TileKey key, final Rendered rendered ){
+        return rendered.version < changes.get(key.stripe()) || (key.zoom < zoomThreshold && rendered.generation < clusterGeneration);
+    }
+
+    private Rendered render( final int zoom, final int x, final int y ) throws JsonProcessingException {
+        // read before rendering, so that the tile is at least as recent as its stamps
+        final int version = poiService.version();
+        final int generation = poiService.clusterGeneration();
+
+        final PointOfInterest[] pointsOfInterest;
+        if( zoom < zoomThreshold ){
+            pointsOfInterest = poiService.fetchTileClusters(zoom, x, y);
+
+        } else {
+            final double tiles = 1 << zoom;
+            final double left = Mercator.longitude(x / tiles);
+            final double right = Mercator.longitude((x + 1) / tiles);
+            final double top = Mercator.latitude(y / tiles);
+            final double bottom = Mercator.latitude((y + 1) / tiles);
+
+            // widen the exclusive west and north bounds by one ulp to make them inclusive
+            pointsOfInterest = poiService.fetchByBoundingBox(
+                Math.nextAfter(left, Double.NEGATIVE_INFINITY), bottom, right, Math.nextAfter(top, Double.POSITIVE_INFINITY)
+            );
+        }
+
+        final byte[] content = objectMapper.writeValueAsBytes(pointsOfInterest);
+        return new Rendered(new Tile(content, '"' + Hashing.murmur3_128().hashBytes(content).toString() + '"'), version, generation);
+    }
+
+    /**
+     * A cached tile with the data version and cluster pyramid generation it was rendered from.
+     */
+    private static class Rendered {
+        final Tile tile;
+        final int version;
+        final int generation;
+
+        Rendered( final Tile tile, final int version, final int generation ){
+            this.tile = tile;
+            this.version = version;
+            this.generation = generation;
+        }
+    }
+
+    private static class TileKey {
+        final int zoom, x, y;
+
+        TileKey( final int zoom, final int x, final int y ){
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals( final Object other ){
+            if( !(other instanceof TileKey) ) return false;
+            final TileKey key = (TileKey)other;
+            return zoom == key.zoom && x == key.x && y == key.y;
+        }
+
+        @Override
+        public int hashCode(){
+            return (zoom * 31 + x) * 31 + y;
+        }
+
+        /**
+         * @return the stripe of the tile in the recorded changes (a Fibonacci hash of the key)
+         */
+        int stripe(){
+            return (hashCode() * 0x9e3779b9) >>> (32 - STRIPE_BITS);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.stehno.oldemo.tools;
+
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.PointFile;
+import com.stehno.oldemo.service.PointIndex;
+import com.stehno.oldemo.service.PointStore;
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Converts an existing serialized data file (data.ser) into the memory-mappable binary format (data.poi), building
+ * and storing its index along the way.
+ *
+ * Usage:
+ *
+ * args[0] - file path of the existing serialized data file
+ * args[1] - file path to save the binary data file
+ */
+public class DataConverter {
+
+    @SuppressWarnings("unchecked")
+    public static void main( final String[] args ) throws IOException {
+        final File source = new File(args[0]);
+        final File target = new File(args[1]);
+
+        final PointStore store;
+        try ( final InputStream inputStream = new BufferedInputStream(new FileInputStream(source)) ){
+            store = PointStore.of((List<PointOfInterest>)SerializationUtils.deserialize(inputStream));
+        }
+
+        PointFile.write(target, store, new PointIndex(store));
+
+        System.out.printf("Converted %d points from %s to %s%n", store.size(), source, target);
+    }
+}
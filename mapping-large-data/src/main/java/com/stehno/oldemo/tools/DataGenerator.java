@@ -1,37 +1,69 @@
 package com.stehno.oldemo.tools;
 
 import com.stehno.oldemo.dto.PointOfInterest;
-import org.apache.commons.io.FileUtils;
+import com.stehno.oldemo.service.PointFile;
+import com.stehno.oldemo.service.PointStore;
+import com.google.common.base.Throwables;
 import org.apache.commons.lang3.SerializationUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Used to generate a random data set with points focused around major world landmasses.
  *
  * The generated file should be src/main/resources/data.ser before so that it will be available on the classpath at
- * runtime.
+ * runtime. If the file name ends with ".poi" the data is written in the memory-mappable binary format (with its
+ * index) instead, and should be saved as src/main/resources/data.poi.
+ *
+ * Binary files are generated in parallel, in blocks of rows written straight to their place in the file, so only the
+ * blocks being worked on and the index are held in memory; this is the way to generate data sets of 100 million points
+ * or more. Each block has its own random stream, derived from the seed and the block number, so the same seed gives
+ * the same file regardless of the number of threads. The serialized format needs the whole data set in memory.
  *
  * Usage:
  *
  * args[0] - number of items to generate
- * args[1] - file path to save data file
- * args[2] - number of region data sets to use (default is all if not specified)
+ * args[1] - file path to save data file (.ser or .poi)
+ * args[2] - number of region data sets to use (default is all if not specified, 0 spreads the points uniformly over
+ *           the whole map)
+ * args[3] - random seed, for a repeatable data set (optional)
+ * args[4] - number of threads used to generate a .poi file (default is the number of processors)
  */
 public class DataGenerator {
 
-    private static final Random random = new Random();
-    private static final String POINT_PREFIX = "Point-%d";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] POINT_PREFIX = "Point-".getBytes(ASCII);
+    private static final int MAX_NAME_LENGTH = POINT_PREFIX.length + 10;
+
+    // rows generated from each random stream; changing it changes the generated points
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    // the uniform layout stays within the latitudes the map projection can show
+    private static final LonLat[] WORLD = { new LonLat(-180.0, -85.0), new LonLat(180.0, 85.0) };
 
-    private static final List<LonLat[]> regions = new ArrayList<>();
+    private static List<LonLat[]> regions( int num ){
+        final List<LonLat[]> regions = new ArrayList<>();
 
-    private static void populateRegions( int num ){
         // min, max
         switch (num){
+            case 0:
+                regions.add(WORLD);
+                break;
             case 5:
                 regions.add(new LonLat[]{ new LonLat( -11.0, -32.0), new LonLat( 46.0,  34.0) });
             case 4:
@@ -43,45 +75,219 @@ public class DataGenerator {
             default:
                 regions.add(new LonLat[]{ new LonLat( -81.0, -54.0), new LonLat(-38.0,   5.0) });
         }
+
+        return regions;
     }
 
     public static void main( final String[] args ) throws IOException {
         final int count = Integer.valueOf(args[0]);
         final File file = new File(args[1]);
+        final int regions = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        final long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+        final int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        final long started = System.nanoTime();
+
+        if( file.getName().endsWith(".poi") ){
+            write(file, count, regions, seed, threads);
 
-        populateRegions( args.length > 2 ? Integer.parseInt(args[2]) : 5 );
+        } else {
+            final PointStore store = generate(count, regions, seed);
 
-        final ArrayList<PointOfInterest> dataPoints = new ArrayList<>(count);
+            final ArrayList<PointOfInterest> dataPoints = new ArrayList<>(count);
+            for( int row=0; row<count; row++ ){
+                dataPoints.add(store.toPointOfInterest(row));
+            }
 
-        for( int i=0; i<count; i++){
-            final LonLat randPoint = rand();
-            final PointOfInterest point = new PointOfInterest();
-            point.setName(String.format(POINT_PREFIX, i));
-            point.setLongitude( randPoint.lon );
-            point.setLatitude( randPoint.lat );
-            dataPoints.add(point);
+            SerializationUtils.serialize(dataPoints, new BufferedOutputStream(new FileOutputStream(file)));
         }
 
-        final byte[] data = SerializationUtils.serialize(dataPoints);
+        System.out.printf("Generated %d points in %s (%d ms)%n", count, file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /**
+     * Generates the points straight into the columns of a store, named Point-0 to Point-(count-1). The same arguments
+     * always generate the same points, which are also the points written by write() with those arguments.
+     *
+     * @param count the number of points
+     * @param regions the number of region data sets to use, or 0 to spread the points uniformly over the whole map
+     * @param seed the random seed
+     * @return the generated points
+     */
+    public static PointStore generate( final int count, final int regions, final long seed ){
+        final List<LonLat[]> areas = regions( regions );
+
+        final double[] longitudes = new double[count];
+        final double[] latitudes = new double[count];
+        final int[] nameOffsets = new int[count + 1];
+        final byte[] names = new byte[nameBytes(count)];
 
-        FileUtils.writeByteArrayToFile(file, data);
+        for( int firstRow=0; firstRow<count; firstRow+=BLOCK_SIZE ){
+            final int rows = Math.min(BLOCK_SIZE, count - firstRow);
+            generateBlock(seed, areas, firstRow, rows, longitudes, latitudes, firstRow);
+        }
+
+        int offset = 0;
+        for( int i=0; i<count; i++ ){
+            nameOffsets[i] = offset;
+            offset = appendName( names, offset, i );
+        }
+        nameOffsets[count] = offset;
+
+        return PointStore.of(longitudes, latitudes, nameOffsets, names);
     }
 
-    private static LonLat randWithin( final LonLat min, final LonLat max ){
-        return new LonLat(
-            randBetween( min.lon, max.lon ),
-            randBetween( min.lat, max.lat )
-        );
+    /**
+     * Generates the points in parallel and writes them, with their index, to a binary data file, without holding the
+     * whole data set in memory. The same arguments always generate the same points, whatever the number of threads.
+     *
+     * @param file the file to be written (it will be replaced if it exists)
+     * @param count the number of points
+     * @param regions the number of region data sets to use, or 0 to spread the points uniformly over the whole map
+     * @param seed the random seed
+     * @param threads the number of threads generating the points
+     * @throws IOException if there is a problem writing the file
+     */
+    public static void write( final File file, final int count, final int regions, final long seed, final int threads ) throws IOException {
+        final List<LonLat[]> areas = regions( regions );
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ThreadLocal<Block> blocks = new ThreadLocal<Block>(){
+            @Override
+            protected Block initialValue(){
+                return new Block();
+            }
+        };
+
+        try ( final PointFile.Writer writer = PointFile.create(file, count, nameBytes(count)) ){
+            final List<Future<Void>> futures = new ArrayList<>();
+            for( int row=0; row<count; row+=BLOCK_SIZE ){
+                final int firstRow = row;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        blocks.get().write(writer, seed, areas, firstRow, Math.min(BLOCK_SIZE, count - firstRow));
+                        return null;
+                    }
+                }));
+            }
+
+            for( final Future<Void> future : futures ){
+                future.get();
+            }
+
+        } catch( final InterruptedException ie ){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while generating " + file);
+
+        } catch( final ExecutionException ee ){
+            Throwables.propagateIfPossible(ee.getCause(), IOException.class);
+            throw Throwables.propagate(ee.getCause());
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        PointFile.writeIndex(file);
     }
 
-    private static double randBetween( double min, double max ){
-        // ints acceptable since we just want the general area
-        return random.nextInt( (int)max - (int)min + 1 ) + min;
+    /**
+     * Generates the coordinates of a block of rows from the random stream of the block.
+     */
+    private static void generateBlock( final long seed, final List<LonLat[]> areas, final int firstRow, final int rows,
+                                       final double[] longitudes, final double[] latitudes, final int offset ){
+        final SplitMix64 random = SplitMix64.stream(seed, firstRow / BLOCK_SIZE);
+
+        for( int i=0; i<rows; i++ ){
+            final LonLat[] area = areas.get( random.nextInt(areas.size()) );
+            longitudes[offset + i] = randBetween( random, area[0].lon, area[1].lon );
+            latitudes[offset + i] = randBetween( random, area[0].lat, area[1].lat );
+        }
     }
 
-    private static LonLat rand(){
-        final LonLat[] region = regions.get( random.nextInt(regions.size()) );
-        return randWithin( region[0], region[1] );
+    /**
+     * Computes the size of the names of the given number of points (the offset of the name of that row), from the
+     * number of digits in each row number, without generating them.
+     */
+    private static int nameBytes( final int rows ){
+        long bytes = (long)POINT_PREFIX.length * rows;
+
+        long lower = 0;
+        long upper = 10;
+        for( int digits=1; lower < rows; digits++ ){
+            bytes += digits * (Math.min(rows, upper) - lower);
+            lower = upper;
+            upper *= 10;
+        }
+
+        if( bytes > Integer.MAX_VALUE ){
+            throw new IllegalArgumentException("The names of " + rows + " points exceed the 2GB name offset limit");
+        }
+        return (int)bytes;
+    }
+
+    private static double randBetween( final SplitMix64 random, final double min, final double max ){
+        return min + random.nextDouble() * (max - min);
+    }
+
+    /**
+     * Writes "Point-" and the number in ASCII digits.
+     */
+    private static int appendName( final byte[] names, int offset, final int number ){
+        System.arraycopy(POINT_PREFIX, 0, names, offset, POINT_PREFIX.length);
+        offset += POINT_PREFIX.length;
+
+        int digits = 1;
+        for( int n = number; n >= 10; n /= 10 ) digits++;
+
+        int n = number;
+        for( int d = digits - 1; d >= 0; d-- ){
+            names[offset + d] = (byte)('0' + n % 10);
+            n /= 10;
+        }
+        return offset + digits;
+    }
+
+    /**
+     * The buffers of a worker thread, reused for each block it generates.
+     */
+    private static class Block {
+        final double[] longitudes = new double[BLOCK_SIZE];
+        final double[] latitudes = new double[BLOCK_SIZE];
+        final byte[] names = new byte[BLOCK_SIZE * MAX_NAME_LENGTH];
+
+        final ByteBuffer longitudeBytes = ByteBuffer.allocateDirect(8 * BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer latitudeBytes = ByteBuffer.allocateDirect(8 * BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer nameOffsetBytes = ByteBuffer.allocateDirect(4 * BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer nameData = ByteBuffer.allocateDirect(BLOCK_SIZE * MAX_NAME_LENGTH);
+
+        void write( final PointFile.Writer writer, final long seed, final List<LonLat[]> areas, final int firstRow, final int rows ) throws IOException {
+            generateBlock(seed, areas, firstRow, rows, longitudes, latitudes, 0);
+
+            final int firstName = nameBytes(firstRow);
+
+            nameOffsetBytes.clear();
+            int offset = 0;
+            for( int i=0; i<rows; i++ ){
+                nameOffsetBytes.putInt(firstName + offset);
+                offset = appendName(names, offset, firstRow + i);
+            }
+            nameOffsetBytes.flip();
+
+            longitudeBytes.clear();
+            longitudeBytes.asDoubleBuffer().put(longitudes, 0, rows);
+            longitudeBytes.limit(8 * rows);
+
+            latitudeBytes.clear();
+            latitudeBytes.asDoubleBuffer().put(latitudes, 0, rows);
+            latitudeBytes.limit(8 * rows);
+
+            nameData.clear();
+            nameData.put(names, 0, offset);
+            nameData.flip();
+
+            writer.write(firstRow, longitudeBytes, latitudeBytes, nameOffsetBytes, firstName, nameData);
+        }
     }
 
     private static class LonLat {
@@ -92,4 +298,4 @@ public class DataGenerator {
             this.lat = lat;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,402 @@
+package com.stehno.oldemo.tools;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.RateLimiter;
+import com.stehno.oldemo.dto.PoiBinaryFormat;
+import com.stehno.oldemo.dto.PointOfInterest;
+import com.stehno.oldemo.service.Mercator;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays simulated map sessions against a running server, the way the map pages drive it, and reports the latency,
+ * throughput and response sizes of each endpoint version.
+ *
+ * Each user follows one page (endpoint version) for its whole session. It starts at the world view and then repeatedly
+ * makes a gesture followed by a pause (think time): zooming in towards a destination, zooming out, or a burst of a few
+ * quick pans of part of the view, so that consecutive requests have overlapping bounds. Like the moveend handlers of
+ * the pages, every view change requests the new bounds (v2, v3 and v4) or all of the visible tiles (tiles). The
+ * destinations are drawn from the server's world clusters, weighted by their counts, so sessions head for the data.
+ *
+ * Latencies are recorded per request in HdrHistograms (from sending the request to reading the last byte of the
+ * response). With a rate limit the users wait for a permit before each view change, which holds the total request rate
+ * steady as long as there are enough users to sustain it.
+ *
+ * Usage (arguments are name=value pairs, all optional):
+ *
+ * url      - base URL of the server (default http://localhost:8080/oldemo)
+ * versions - comma-separated endpoint versions to spread the users over: v2, v3, v4, tiles (default v2,v3)
+ * users    - number of concurrent users (default 16)
+ * rate     - maximum view changes per second across all users, 0 for no limit (default 0)
+ * duration - measured run time in seconds (default 60)
+ * warmup   - time in seconds run before measuring (default 10)
+ * think    - mean pause between gestures in milliseconds (default 1000)
+ * view     - size of the simulated map in pixels (default 1280x800)
+ * binary   - true to request the binary format rather than JSON, where supported (default false)
+ * report   - interval in seconds between progress reports (default 10)
+ * seed     - random seed for repeatable sessions (default 1)
+ */
+public class LoadGenerator {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final int TILE_SIZE = 256;
+    private static final int MIN_ZOOM = 2;
+    private static final int MAX_ZOOM = 16;
+
+    private final String url;
+    private final int viewWidth;
+    private final int viewHeight;
+    private final long thinkMillis;
+    private final boolean binary;
+    private final RateLimiter rateLimiter;
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final List<PointOfInterest> destinations = new ArrayList<>();
+    private long destinationWeight;
+    private volatile long deadline;
+
+    LoadGenerator( final Map<String, String> settings ){
+        this.url = settings.get("url").replaceAll("/+$", "");
+        final String[] view = settings.get("view").split("x");
+        this.viewWidth = Integer.parseInt(view[0]);
+        this.viewHeight = Integer.parseInt(view[1]);
+        this.thinkMillis = Long.parseLong(settings.get("think"));
+        this.binary = Boolean.parseBoolean(settings.get("binary"));
+
+        final double rate = Double.parseDouble(settings.get("rate"));
+        this.rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+
+        for( final String version : settings.get("versions").split(",") ){
+            if( !version.matches("v2|v3|v4|tiles") ){
+                throw new IllegalArgumentException("Unknown version: " + version);
+            }
+            stats.put(version, new Stats());
+        }
+    }
+
+    public static void main( final String[] args ) throws Exception {
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("url", "http://localhost:8080/oldemo");
+        settings.put("versions", "v2,v3");
+        settings.put("users", "16");
+        settings.put("rate", "0");
+        settings.put("duration", "60");
+        settings.put("warmup", "10");
+        settings.put("think", "1000");
+        settings.put("view", "1280x800");
+        settings.put("binary", "false");
+        settings.put("report", "10");
+        settings.put("seed", "1");
+
+        for( final String arg : args ){
+            final int split = arg.indexOf('=');
+            if( split < 0 || !settings.containsKey(arg.substring(0, split)) ){
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            settings.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        // keep a connection alive per user, rather than the default of five
+        System.setProperty("http.maxConnections", settings.get("users"));
+
+        new LoadGenerator(settings).run(
+            Integer.parseInt(settings.get("users")), Long.parseLong(settings.get("warmup")), Long.parseLong(settings.get("duration")),
+            Long.parseLong(settings.get("report")), Long.parseLong(settings.get("seed"))
+        );
+    }
+
+    void run( final int users, final long warmupSeconds, final long durationSeconds, final long reportSeconds, final long seed ) throws Exception {
+        loadDestinations();
+
+        System.out.printf("Running %d users against %s (%s) for %d s after %d s of warm-up...%n", users, url, stats.keySet(), durationSeconds, warmupSeconds);
+
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        final List<String> versions = new ArrayList<>(stats.keySet());
+        final ExecutorService executor = Executors.newFixedThreadPool(users);
+        for( int u=0; u<users; u++ ){
+            final Session session = new Session(versions.get(u % versions.size()), new Random(seed + u));
+            executor.execute(session);
+        }
+        executor.shutdown();
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        for( final Stats endpoint : stats.values() ){
+            endpoint.reset();
+        }
+
+        final long start = System.nanoTime();
+        long reported = start;
+        while( !executor.awaitTermination(Math.min(reportSeconds, durationSeconds) * 1000, TimeUnit.MILLISECONDS) ){
+            final long now = System.nanoTime();
+            System.out.printf("-- %d s%n", TimeUnit.NANOSECONDS.toSeconds(now - start));
+            for( final Map.Entry<String, Stats> entry : stats.entrySet() ){
+                final Histogram interval = entry.getValue().interval();
+                System.out.printf("%-6s %8d req %10.1f req/s  p50 %8.2f ms  p99 %8.2f ms%n",
+                    entry.getKey(), interval.getTotalCount(), interval.getTotalCount() / seconds(now - reported),
+                    millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)));
+            }
+            reported = now;
+        }
+        final double elapsed = seconds(System.nanoTime() - start);
+
+        for( final Stats endpoint : stats.values() ){
+            endpoint.interval();
+        }
+
+        System.out.printf("%n%-6s %9s %7s %10s %9s %9s %9s %9s %10s %10s %9s%n",
+            "", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "mean KB", "p99 KB", "MB/s");
+        for( final Map.Entry<String, Stats> entry : stats.entrySet() ){
+            final Stats endpoint = entry.getValue();
+            final Histogram latency = endpoint.latencies;
+            final Histogram size = endpoint.sizes;
+            System.out.printf("%-6s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f %10.1f %10.1f %9.2f%n",
+                entry.getKey(), latency.getTotalCount(), endpoint.errors.get(), latency.getTotalCount() / elapsed,
+                millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+                millis(latency.getMaxValue()), size.getMean() / 1024, size.getValueAtPercentile(99) / 1024.0,
+                endpoint.bytes.get() / elapsed / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Uses the clusters of the world view (v4) as destinations; without them the sessions head for random places.
+     */
+    private void loadDestinations(){
+        try {
+            final HttpURLConnection connection = open(url + "/poi/v4/fetch/-180,-85,180,85/" + MIN_ZOOM, false);
+            try ( final InputStream in = connection.getInputStream() ){
+                for( final PointOfInterest cluster : objectMapper.readValue(in, PointOfInterest[].class) ){
+                    destinations.add(cluster);
+                    destinationWeight += weight(cluster);
+                }
+            }
+        } catch( IOException ioe ){
+            System.out.printf("Unable to load destinations (%s), using random ones%n", ioe.getMessage());
+        }
+    }
+
+    private static int weight( final PointOfInterest cluster ){
+        return cluster.getCount() != null ? cluster.getCount() : 1;
+    }
+
+    private HttpURLConnection open( final String location, final boolean binaryAccepted ) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)new URL(location).openConnection();
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept", binaryAccepted ? PoiBinaryFormat.MEDIA_TYPE : "application/json");
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(60000);
+        return connection;
+    }
+
+    /**
+     * Requests the given path, recording its latency and response size.
+     */
+    private void request( final Stats endpoint, final String path, final boolean binaryAccepted ){
+        final byte[] buffer = new byte[8192];
+        final long start = System.nanoTime();
+        try {
+            final HttpURLConnection connection = open(url + path, binaryAccepted);
+            final int status = connection.getResponseCode();
+
+            long size = 0;
+            try ( final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream() ){
+                if( in != null ){
+                    for( int read; (read = in.read(buffer)) >= 0; ){
+                        size += read;
+                    }
+                }
+            }
+
+            if( status == HttpURLConnection.HTTP_OK ){
+                endpoint.record(System.nanoTime() - start, size);
+            } else {
+                endpoint.errors.incrementAndGet();
+            }
+
+        } catch( IOException ioe ){
+            endpoint.errors.incrementAndGet();
+        }
+    }
+
+    private static double millis( final long micros ){
+        return micros / 1000.0;
+    }
+
+    private static double seconds( final long nanos ){
+        return Math.max(nanos, 1) / 1e9;
+    }
+
+    /**
+     * One simulated user, moving a map view over the mercator unit square.
+     */
+    private class Session implements Runnable {
+
+        private final String version;
+        private final Stats endpoint;
+        private final Random random;
+        private int zoom = MIN_ZOOM;
+        private double x = 0.5, y = 0.5;
+        private double targetX, targetY;
+
+        Session( final String version, final Random random ){
+            this.version = version;
+            this.endpoint = stats.get(version);
+            this.random = random;
+        }
+
+        @Override
+        public void run(){
+            chooseDestination();
+            viewChanged();
+
+            try {
+                while( System.nanoTime() < deadline ){
+                    final double gesture = random.nextDouble();
+                    if( gesture < 0.35 && zoom < MAX_ZOOM ){
+                        // zoom in, half way to the destination
+                        x += (targetX - x) / 2;
+                        y += (targetY - y) / 2;
+                        zoom++;
+                        viewChanged();
+
+                    } else if( gesture < 0.5 && zoom > MIN_ZOOM ){
+                        zoom--;
+                        if( zoom <= MIN_ZOOM + 1 ) chooseDestination();
+                        viewChanged();
+
+                    } else {
+                        // a burst of pans in one direction, each moving part of the view
+                        final double angle = random.nextDouble() * 2 * Math.PI;
+                        final int pans = 1 + random.nextInt(6);
+                        for( int p=0; p<pans && System.nanoTime() < deadline; p++ ){
+                            final double distance = 0.1 + random.nextDouble() * 0.3;
+                            x = wrap(x + Math.cos(angle) * distance * viewWidth / worldPixels());
+                            y = clamp(y + Math.sin(angle) * distance * viewHeight / worldPixels());
+                            viewChanged();
+                            Thread.sleep(100 + random.nextInt(200));
+                        }
+                    }
+
+                    Thread.sleep((long)(-Math.log(1 - random.nextDouble()) * thinkMillis));
+                }
+            } catch( InterruptedException ie ){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void chooseDestination(){
+            if( destinations.isEmpty() ){
+                targetX = random.nextDouble();
+                targetY = 0.2 + random.nextDouble() * 0.6;
+                return;
+            }
+
+            long pick = (long)(random.nextDouble() * destinationWeight);
+            for( final PointOfInterest destination : destinations ){
+                pick -= weight(destination);
+                if( pick < 0 ){
+                    targetX = Mercator.x(destination.getLongitude());
+                    targetY = Mercator.y(destination.getLatitude());
+                    return;
+                }
+            }
+        }
+
+        private double worldPixels(){
+            return TILE_SIZE * (double)(1 << zoom);
+        }
+
+        /**
+         * Sends the requests the page makes when the view has moved.
+         */
+        private void viewChanged(){
+            if( rateLimiter != null ){
+                rateLimiter.acquire();
+            }
+
+            final double halfWidth = viewWidth / worldPixels() / 2;
+            final double halfHeight = viewHeight / worldPixels() / 2;
+            final double left = Math.max(x - halfWidth, 0), right = Math.min(x + halfWidth, 1);
+            final double top = Math.max(y - halfHeight, 0), bottom = Math.min(y + halfHeight, 1);
+
+            if( "tiles".equals(version) ){
+                final int count = 1 << zoom;
+                for( int tileX = Mercator.cell(left, count); tileX <= Mercator.cell(right, count); tileX++ ){
+                    for( int tileY = Mercator.cell(top, count); tileY <= Mercator.cell(bottom, count); tileY++ ){
+                        request(endpoint, "/poi/tiles/" + zoom + "/" + tileX + "/" + tileY, false);
+                    }
+                }
+                return;
+            }
+
+            final String bounds = String.format(Locale.ROOT, "%.6f,%.6f,%.6f,%.6f",
+                Mercator.longitude(left), Mercator.latitude(bottom), Mercator.longitude(right), Mercator.latitude(top));
+
+            if( "v2".equals(version) ){
+                request(endpoint, "/poi/v2/fetch/" + bounds, binary);
+            } else {
+                request(endpoint, "/poi/" + version + "/fetch/" + bounds + "/" + zoom, binary);
+            }
+        }
+
+        private double wrap( final double unit ){
+            return unit - Math.floor(unit);
+        }
+
+        private double clamp( final double unit ){
+            return Math.max(0.05, Math.min(0.95, unit));
+        }
+    }
+
+    /**
+     * The latencies (in microseconds) and sizes of the responses of one endpoint version. Requests are recorded into
+     * Recorders, which do not block the users; the intervals read from them are accumulated here.
+     */
+    private static class Stats {
+
+        private final Recorder latencyRecorder = new Recorder(3);
+        private final Recorder sizeRecorder = new Recorder(3);
+        private final Histogram latencies = new Histogram(3);
+        private final Histogram sizes = new Histogram(3);
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        void record( final long nanos, final long size ){
+            latencyRecorder.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+            sizeRecorder.recordValue(size);
+            bytes.addAndGet(size);
+        }
+
+        /**
+         * @return the latencies recorded since the last interval, which are added to the totals
+         */
+        Histogram interval(){
+            final Histogram interval = latencyRecorder.getIntervalHistogram();
+            latencies.add(interval);
+            sizes.add(sizeRecorder.getIntervalHistogram());
+            return interval;
+        }
+
+        void reset(){
+            interval();
+            latencies.reset();
+            sizes.reset();
+            bytes.set(0);
+            errors.set(0);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.stehno.oldemo.tools;
+
+/**
+ * A small, fast pseudo-random generator (the SplitMix64 algorithm), used by the DataGenerator so that every block of
+ * points has its own random stream.
+ *
+ * The streams are derived from the seed and the block number alone, so a data set comes out the same no matter how
+ * many threads generate it or in which order the blocks are generated. Not thread-safe; each worker uses its own.
+ */
+final class SplitMix64 {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    SplitMix64( final long seed ){
+        this.state = seed;
+    }
+
+    /**
+     * Creates the generator of the stream with the given index directly, without generating the ones before it.
+     *
+     * @param seed the seed of the root generator
+     * @param index the index of the stream
+     * @return the stream derived from the seed and the index
+     */
+    static SplitMix64 stream( final long seed, final long index ){
+        return new SplitMix64(mix64(seed + (index + 1) * GOLDEN_GAMMA));
+    }
+
+    long nextLong(){
+        return mix64(state += GOLDEN_GAMMA);
+    }
+
+    /**
+     * @return a value uniformly distributed in [0, 1)
+     */
+    double nextDouble(){
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * @param bound the upper bound (exclusive), which must be positive
+     * @return a value in [0, bound)
+     */
+    int nextInt( final int bound ){
+        return (int)(((nextLong() >>> 33) * bound) >>> 31);
+    }
+
+    private static long mix64( long z ){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Decoder for the compact binary points of interest format (application/vnd.oldemo.poi) - see PoiBinaryFormat for the
+ * layout. Decoded items have the same properties as the JSON objects.
+ */
+var PoiBinary = (function(){
+  var MEDIA_TYPE = 'application/vnd.oldemo.poi';
+  var SCALE = 1e6;
+
+  function utf8( bytes ){
+    if( window.TextDecoder ){
+      return new TextDecoder('utf-8').decode(bytes);
+    }
+
+    var text = '';
+    for( var i = 0; i < bytes.length; i++ ){
+      text += String.fromCharCode(bytes[i]);
+    }
+    return decodeURIComponent(escape(text));
+  }
+
+  function decode( buffer ){
+    var bytes = new Uint8Array(buffer);
+    var pos = 0;
+
+    // multiplication rather than bit shifts, since the values may exceed 32 bits
+    var varint = function(){
+      var value = 0, scale = 1, b;
+      do {
+        b = bytes[pos++];
+        value += (b & 0x7f) * scale;
+        scale *= 128;
+      } while( b & 0x80 );
+      return value;
+    };
+
+    var svarint = function(){
+      var value = varint();
+      return value % 2 === 0 ? value / 2 : -(value + 1) / 2;
+    };
+
+    var version = bytes[pos++];
+    if( version !== 1 ) throw new Error('Unsupported binary POI format version (' + version + ')');
+
+    var flags = bytes[pos++];
+    var items = new Array(varint());
+    var i, value;
+
+    for( i = 0, value = 0; i < items.length; i++ ){
+      value += svarint();
+      items[i] = { longitude:value / SCALE };
+    }
+
+    for( i = 0, value = 0; i < items.length; i++ ){
+      value += svarint();
+      items[i].latitude = value / SCALE;
+    }
+
+    if( flags & 2 ){
+      for( i = 0, value = 0; i < items.length; i++ ){
+        value += svarint();
+        items[i].id = value;
+      }
+    }
+
+    if( flags & 1 ){
+      for( i = 0; i < items.length; i++ ){
+        items[i].count = varint();
+      }
+    }
+
+    for( i = 0; i < items.length; i++ ){
+      var length = varint();
+      items[i].name = utf8(bytes.subarray(pos, pos + length));
+      pos += length;
+    }
+
+    return items;
+  }
+
+  function fetch( url, callback ){
+    var xhr = new XMLHttpRequest();
+    xhr.open('GET', url);
+    xhr.responseType = 'arraybuffer';
+    xhr.setRequestHeader('Accept', MEDIA_TYPE);
+    xhr.setRequestHeader('Content-Type', 'application/json');
+    xhr.onload = function(){
+      if( xhr.status === 200 ){
+        callback(decode(xhr.response));
+      }
+    };
+    xhr.send();
+  }
+
+  return { MEDIA_TYPE:MEDIA_TYPE, decode:decode, fetch:fetch };
+})();
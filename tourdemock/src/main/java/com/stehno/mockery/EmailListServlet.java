@@ -1,9 +1,12 @@
 package com.stehno.mockery;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.List;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -11,10 +14,24 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.stehno.mockery.service.EmailListService;
+import com.stehno.mockery.service.EmailSink;
+import com.stehno.mockery.service.StreamingEmailListService;
 
+/**
+ * Writes the email addresses of the list named by the listName parameter, one
+ * per line.
+ *
+ * If the EmailListService is a StreamingEmailListService the list is streamed
+ * through a buffered writer as it is read, so memory use does not depend on the
+ * size of the list, and a page of it may be requested with the offset and limit
+ * parameters. When the servlet is registered with async support the streaming
+ * runs asynchronously (Servlet 3.0), off the request thread.
+ */
 public class EmailListServlet extends HttpServlet {
 
 	private static final long serialVersionUID = -9041780030848464349L;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	private EmailListService emailListService;
 
 	public void init() throws ServletException {
@@ -27,6 +44,11 @@ public class EmailListServlet extends HttpServlet {
 	protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
 		final String listName = request.getParameter("listName");
 
+		if(emailListService instanceof StreamingEmailListService){
+			doStream((StreamingEmailListService)emailListService, listName, request, response);
+			return;
+		}
+
 		final List<String> list = emailListService.getListByName(listName);
 
 		PrintWriter writer = null;
@@ -41,4 +63,94 @@ public class EmailListServlet extends HttpServlet {
 			if(writer != null) writer.close();
 		}
 	}
+
+	private void doStream(final StreamingEmailListService service, final String listName, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		final int offset, limit;
+		try {
+			offset = intParameter(request, "offset", 0);
+			limit = intParameter(request, "limit", -1);
+		} catch(NumberFormatException nfe){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid offset or limit");
+			return;
+		}
+
+		if(offset < 0){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid offset or limit");
+			return;
+		}
+
+		response.setContentType("text/plain;charset=UTF-8");
+		response.setBufferSize(BUFFER_SIZE);
+
+		if(!request.isAsyncSupported()){
+			stream(service, listName, offset, limit, response);
+			return;
+		}
+
+		final AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0); // the stream ends with the list, however long it is
+		asyncContext.start(new Runnable() {
+			public void run(){
+				try {
+					stream(service, listName, offset, limit, response);
+
+				} catch(IOException ioe){
+					log("Unable to stream list '" + listName + "'", ioe);
+					if(!response.isCommitted()){
+						try {
+							response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						} catch(IOException ignored){
+							// the client is gone
+						}
+					}
+
+				} finally {
+					asyncContext.complete();
+				}
+			}
+		});
+	}
+
+	private static void stream(final StreamingEmailListService service, final String listName, final int offset, final int limit, final HttpServletResponse response) throws IOException {
+		final LineSink sink = new LineSink(response);
+		try {
+			service.streamListByName(listName, offset, limit, sink);
+
+		} finally {
+			sink.close();
+		}
+	}
+
+	private static int intParameter(final HttpServletRequest request, final String name, final int defaultValue){
+		final String value = request.getParameter(name);
+		return value == null || value.length() == 0 ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * Writes each address on its own line. The output stream is only opened with
+	 * the first address, so that a failure before it (e.g. a missing list) leaves
+	 * the response uncommitted and can still be answered with an error status.
+	 */
+	private static class LineSink implements EmailSink {
+
+		private final HttpServletResponse response;
+		private BufferedWriter writer;
+
+		LineSink(final HttpServletResponse response){
+			this.response = response;
+		}
+
+		public void accept(final String email) throws IOException {
+			if(writer == null){
+				// written straight to the output stream, so that write failures (e.g. a closed connection) stop the streaming
+				writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"), BUFFER_SIZE);
+			}
+			writer.write(email);
+			writer.newLine();
+		}
+
+		void close() throws IOException {
+			if(writer != null) writer.close();
+		}
+	}
 }
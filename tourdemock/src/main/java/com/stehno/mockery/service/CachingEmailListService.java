@@ -0,0 +1,171 @@
+package com.stehno.mockery.service;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caching decorator for an EmailListService backend: each list is read from the
+ * backend once and kept as a PackedEmailList, so that many large lists fit in
+ * the heap, until it is invalidated or evicted.
+ *
+ * The cache is bounded by the total (approximate) size of its lists in bytes;
+ * once it is exceeded the least recently used lists are evicted. A list larger
+ * than the whole cache is served from the backend without being cached. Lists
+ * which do not exist (the backend throws an IOException) are not cached.
+ *
+ * The lists are also streamed (see StreamingEmailListService) straight from the
+ * packed form, and read from a streaming backend without being materialized.
+ */
+public class CachingEmailListService implements StreamingEmailListService {
+
+	private final EmailListService backend;
+	private final long maxBytes;
+	private final Map<String, PackedEmailList> lists = new LinkedHashMap<String, PackedEmailList>(16, 0.75f, true);
+	private long bytes;
+	private long invalidations;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param backend the service the lists are read from
+	 * @param maxBytes the maximum total size of the cached lists, in bytes
+	 */
+	public CachingEmailListService(final EmailListService backend, final long maxBytes){
+		this.backend = backend;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Retrieves the list of email addresses with the specified name, from the
+	 * cache if it is there. The returned list is a read-only view of the cached
+	 * list. If no list exists with that name an IOException is thrown.
+	 */
+	public List<String> getListByName(final String listName) throws IOException {
+		return load(listName).asList();
+	}
+
+	public int streamListByName(final String listName, final int offset, final int limit, final EmailSink sink) throws IOException {
+		return load(listName).stream(offset, limit, sink);
+	}
+
+	/**
+	 * Removes the list with the specified name from the cache, so that it is read
+	 * from the backend again on its next use.
+	 *
+	 * @param listName
+	 */
+	public synchronized void invalidate(final String listName){
+		final PackedEmailList list = lists.remove(listName);
+		if(list != null) bytes -= list.sizeInBytes();
+		invalidations++;
+	}
+
+	/**
+	 * Removes all of the lists from the cache.
+	 */
+	public synchronized void invalidateAll(){
+		lists.clear();
+		bytes = 0;
+		invalidations++;
+	}
+
+	/**
+	 * @return the number of requests served from the cache
+	 */
+	public long getHitCount(){
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of requests which read the list from the backend
+	 */
+	public long getMissCount(){
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of lists evicted to stay within the size bound
+	 */
+	public long getEvictionCount(){
+		return evictions.get();
+	}
+
+	/**
+	 * @return the fraction of the requests served from the cache
+	 */
+	public double getHitRate(){
+		final long requests = hits.get() + misses.get();
+		return requests == 0 ? 0 : (double)hits.get() / requests;
+	}
+
+	/**
+	 * @return the number of cached lists
+	 */
+	public synchronized int getListCount(){
+		return lists.size();
+	}
+
+	/**
+	 * @return the approximate total size of the cached lists, in bytes
+	 */
+	public synchronized long getSizeInBytes(){
+		return bytes;
+	}
+
+	private PackedEmailList load(final String listName) throws IOException {
+		final long generation;
+		synchronized(this){
+			final PackedEmailList cached = lists.get(listName);
+			if(cached != null){
+				hits.incrementAndGet();
+				return cached;
+			}
+			generation = invalidations;
+		}
+
+		// read outside of the lock, so that other lists are served meanwhile
+		misses.incrementAndGet();
+		final PackedEmailList list = read(listName);
+
+		synchronized(this){
+			// a list read before an invalidation may be stale, so it is not cached
+			final long size = list.sizeInBytes();
+			if(size <= maxBytes && generation == invalidations){
+				final PackedEmailList previous = lists.put(listName, list);
+				bytes += size - (previous != null ? previous.sizeInBytes() : 0);
+				evict();
+			}
+		}
+		return list;
+	}
+
+	private PackedEmailList read(final String listName) throws IOException {
+		final PackedEmailList.Builder builder = new PackedEmailList.Builder();
+
+		if(backend instanceof StreamingEmailListService){
+			((StreamingEmailListService)backend).streamListByName(listName, 0, -1, builder);
+
+		} else {
+			for(final String email : backend.getListByName(listName)){
+				builder.accept(email);
+			}
+		}
+
+		return builder.build();
+	}
+
+	private void evict(){
+		final Iterator<PackedEmailList> eldest = lists.values().iterator();
+		while(bytes > maxBytes && eldest.hasNext()){
+			bytes -= eldest.next().sizeInBytes();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.stehno.mockery.service;
+
+import java.io.IOException;
+
+/**
+ * Receives the email addresses of a list one at a time, as they are read, so
+ * that the list never has to be held in memory as a whole.
+ */
+public interface EmailSink {
+
+	/**
+	 * Accepts the next email address of the list.
+	 * 
+	 * @param email
+	 * @throws IOException if the address cannot be written, which stops the
+	 *             streaming
+	 */
+	void accept(String email) throws IOException;
+}
@@ -0,0 +1,164 @@
+package com.stehno.mockery.service;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of email addresses stored compactly: the local parts are
+ * packed into one UTF-8 byte array and each distinct domain is stored once, as
+ * an interned String shared with the other lists, so an address costs the UTF-8
+ * bytes of its local part plus two ints rather than a String object (with its
+ * own header and char array) per address.
+ *
+ * Addresses are decoded back into Strings only as they are read.
+ */
+public final class PackedEmailList {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int NO_DOMAIN = -1;
+
+	private final byte[] locals;
+	private final int[] localEnds;
+	private final int[] domainIndexes;
+	private final String[] domains;
+
+	private PackedEmailList(final byte[] locals, final int[] localEnds, final int[] domainIndexes, final String[] domains){
+		this.locals = locals;
+		this.localEnds = localEnds;
+		this.domainIndexes = domainIndexes;
+		this.domains = domains;
+	}
+
+	/**
+	 * @return the number of addresses
+	 */
+	public int size(){
+		return localEnds.length;
+	}
+
+	/**
+	 * @param index
+	 * @return the address at the index
+	 */
+	public String get(final int index){
+		final int start = index == 0 ? 0 : localEnds[index - 1];
+		final String local = new String(locals, start, localEnds[index] - start, UTF8);
+
+		final int domain = domainIndexes[index];
+		return domain == NO_DOMAIN ? local : local + '@' + domains[domain];
+	}
+
+	/**
+	 * Streams the addresses from the offset on to the sink.
+	 *
+	 * @param offset the number of addresses to skip
+	 * @param limit the maximum number of addresses to stream, or a negative
+	 *            value for no limit
+	 * @param sink
+	 * @return the number of addresses streamed
+	 * @throws IOException if the sink fails
+	 */
+	public int stream(final int offset, final int limit, final EmailSink sink) throws IOException {
+		final int end = limit < 0 ? size() : (int)Math.min((long)offset + limit, size());
+
+		int count = 0;
+		for(int i = offset; i < end; i++, count++){
+			sink.accept(get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * @return a read-only view of the addresses, decoding each one as it is read
+	 */
+	public List<String> asList(){
+		return new ListView();
+	}
+
+	/**
+	 * @return the approximate heap size of the list, in bytes
+	 */
+	public long sizeInBytes(){
+		long bytes = 16L * 5 + locals.length + 4L * localEnds.length + 4L * domainIndexes.length;
+		for(final String domain : domains){
+			bytes += 40 + 2L * domain.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Collects addresses, as an EmailSink, into a PackedEmailList.
+	 */
+	public static final class Builder implements EmailSink {
+
+		private final Map<String, Integer> domainIndexes = new HashMap<String, Integer>();
+		private byte[] locals = new byte[1024];
+		private int localsLength;
+		private int[] localEnds = new int[64];
+		private int[] addressDomains = new int[64];
+		private int size;
+
+		public void accept(final String email){
+			final int at = email.lastIndexOf('@');
+
+			final byte[] local = (at < 0 ? email : email.substring(0, at)).getBytes(UTF8);
+			if(localsLength + local.length > locals.length){
+				locals = Arrays.copyOf(locals, Math.max(locals.length * 2, localsLength + local.length));
+			}
+			System.arraycopy(local, 0, locals, localsLength, local.length);
+			localsLength += local.length;
+
+			if(size == localEnds.length){
+				localEnds = Arrays.copyOf(localEnds, size * 2);
+				addressDomains = Arrays.copyOf(addressDomains, size * 2);
+			}
+			localEnds[size] = localsLength;
+			addressDomains[size] = at < 0 ? NO_DOMAIN : domainIndex(email.substring(at + 1));
+			size++;
+		}
+
+		/**
+		 * @return the packed list of the addresses accepted so far
+		 */
+		public PackedEmailList build(){
+			final String[] domains = new String[domainIndexes.size()];
+			for(final Map.Entry<String, Integer> entry : domainIndexes.entrySet()){
+				// shared with the other lists holding the same domain
+				domains[entry.getValue()] = entry.getKey().intern();
+			}
+
+			return new PackedEmailList(
+				Arrays.copyOf(locals, localsLength), Arrays.copyOf(localEnds, size), Arrays.copyOf(addressDomains, size), domains
+			);
+		}
+
+		private int domainIndex(final String domain){
+			Integer index = domainIndexes.get(domain);
+			if(index == null){
+				index = domainIndexes.size();
+				domainIndexes.put(domain, index);
+			}
+			return index;
+		}
+	}
+
+	private final class ListView extends AbstractList<String> implements RandomAccess {
+
+		@Override
+		public String get(final int index){
+			if(index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+			return PackedEmailList.this.get(index);
+		}
+
+		@Override
+		public int size(){
+			return PackedEmailList.this.size();
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.stehno.mockery.service;
+
+import java.io.IOException;
+
+/**
+ * An EmailListService which is also able to stream a list, one address at a
+ * time, rather than returning it fully materialized; a page of the list may be
+ * selected with an offset and a limit. The EmailListServlet streams the lists
+ * of services implementing this interface.
+ */
+public interface StreamingEmailListService extends EmailListService {
+
+	/**
+	 * Streams the email addresses of the list with the specified name to the
+	 * sink, in list order. If no list exists with that name an IOException is
+	 * thrown before any address is streamed.
+	 * 
+	 * @param listName
+	 * @param offset the number of addresses to skip from the start of the list
+	 * @param limit the maximum number of addresses to stream, or a negative
+	 *            value for no limit
+	 * @param sink
+	 * @return the number of addresses streamed
+	 * @throws IOException
+	 */
+	int streamListByName(String listName, int offset, int limit, EmailSink sink) throws IOException;
+}
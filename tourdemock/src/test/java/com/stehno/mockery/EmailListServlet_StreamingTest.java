@@ -0,0 +1,182 @@
+package com.stehno.mockery;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.stehno.mockery.service.EmailSink;
+import com.stehno.mockery.service.StreamingEmailListService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EmailListServlet_StreamingTest {
+
+	private static final String sep = System.getProperty("line.separator");
+	private static final String[] LIST = { "larry@stooge.com", "moe@stooge.com", "curley@stooge.com" };
+
+	private EmailListServlet servlet;
+	private ByteArrayOutputStream content;
+
+	@Mock
+	private HttpServletRequest request;
+
+	@Mock
+	private HttpServletResponse response;
+
+	@Mock
+	private StreamingEmailListService emailListService;
+
+	@Before
+	public void before() throws ServletException, IOException {
+		final ServletConfig servletConfig = mock(ServletConfig.class);
+		final ServletContext servletContext = mock(ServletContext.class);
+
+		when(servletConfig.getServletContext()).thenReturn(servletContext);
+		when(servletContext.getAttribute(StreamingEmailListService.KEY)).thenReturn(emailListService);
+
+		content = new ByteArrayOutputStream();
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(final int b){
+				content.write(b);
+			}
+		});
+
+		doAnswer(new Answer<Integer>() {
+			public Integer answer(final InvocationOnMock invocation) throws IOException {
+				final int offset = (Integer)invocation.getArguments()[1];
+				final int limit = (Integer)invocation.getArguments()[2];
+				final EmailSink sink = (EmailSink)invocation.getArguments()[3];
+
+				int count = 0;
+				for(int i = offset; i < LIST.length && (limit < 0 || count < limit); i++, count++){
+					sink.accept(LIST[i]);
+				}
+				return count;
+			}
+		}).when(emailListService).streamListByName(eq("foolist"), anyInt(), anyInt(), any(EmailSink.class));
+
+		doThrow(new IOException()).when(emailListService).streamListByName(eq("nolist"), anyInt(), anyInt(), any(EmailSink.class));
+
+		this.servlet = new EmailListServlet();
+		servlet.init(servletConfig);
+	}
+
+	@Test
+	public void doGet_streaming() throws Exception {
+		when(request.getParameter("listName")).thenReturn("foolist");
+
+		servlet.doGet(request, response);
+
+		assertEquals(LIST[0] + sep + LIST[1] + sep + LIST[2] + sep, content.toString("UTF-8"));
+	}
+
+	@Test(expected=IOException.class)
+	public void doGet_streaming_without_list() throws Exception {
+		when(request.getParameter("listName")).thenReturn("nolist");
+
+		try {
+			servlet.doGet(request, response);
+
+		} finally {
+			// nothing is committed, so the container can still send the error
+			verify(response, never()).getOutputStream();
+		}
+	}
+
+	@Test
+	public void doGet_streaming_page() throws Exception {
+		when(request.getParameter("listName")).thenReturn("foolist");
+		when(request.getParameter("offset")).thenReturn("1");
+		when(request.getParameter("limit")).thenReturn("1");
+
+		servlet.doGet(request, response);
+
+		assertEquals(LIST[1] + sep, content.toString("UTF-8"));
+	}
+
+	@Test
+	public void doGet_streaming_async() throws Exception {
+		final AsyncContext asyncContext = mock(AsyncContext.class);
+
+		when(request.getParameter("listName")).thenReturn("foolist");
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync()).thenReturn(asyncContext);
+
+		// runs the streaming on the calling thread
+		doAnswer(new Answer<Void>() {
+			public Void answer(final InvocationOnMock invocation){
+				((Runnable)invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(asyncContext).start(any(Runnable.class));
+
+		servlet.doGet(request, response);
+
+		assertEquals(LIST[0] + sep + LIST[1] + sep + LIST[2] + sep, content.toString("UTF-8"));
+		verify(asyncContext).complete();
+	}
+
+	@Test
+	public void doGet_streaming_async_without_list() throws Exception {
+		final AsyncContext asyncContext = mock(AsyncContext.class);
+
+		when(request.getParameter("listName")).thenReturn("nolist");
+		when(request.isAsyncSupported()).thenReturn(true);
+		when(request.startAsync()).thenReturn(asyncContext);
+
+		doAnswer(new Answer<Void>() {
+			public Void answer(final InvocationOnMock invocation){
+				((Runnable)invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(asyncContext).start(any(Runnable.class));
+
+		servlet.doGet(request, response);
+
+		verify(response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		verify(response, never()).getOutputStream();
+		verify(asyncContext).complete();
+	}
+
+	@Test
+	public void doGet_streaming_bad_offset() throws Exception {
+		when(request.getParameter("listName")).thenReturn("foolist");
+		when(request.getParameter("offset")).thenReturn("-1");
+
+		servlet.doGet(request, response);
+
+		verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), any(String.class));
+	}
+
+	@After
+	public void after(){
+		this.servlet = null;
+	}
+}
@@ -0,0 +1,137 @@
+package com.stehno.mockery.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares serving lists straight from an (uncached) backend with serving them
+ * through the CachingEmailListService, and the heap taken by a list held as an
+ * ArrayList of Strings with the same list packed. Run with "gradle benchmark".
+ *
+ * The backend builds a fresh list of Strings on every request, after a short
+ * pause standing in for the round trip to a database. The requests pick their
+ * list at random, through a cache big enough for all of the lists and through
+ * one holding half of them.
+ */
+public class CachingEmailListServiceBenchmark {
+
+	private static final int LISTS = 40;
+	private static final int ADDRESSES = 50000;
+	private static final int DOMAINS = 200;
+	private static final int LATENCY_MILLIS = 2;
+	private static final int REQUESTS = 2000;
+
+	public static void main(final String[] args) throws Exception {
+		final GeneratedEmailListService backend = new GeneratedEmailListService();
+		final long listBytes = pack(GeneratedEmailListService.generate("list-0")).sizeInBytes();
+		final CachingEmailListService all = new CachingEmailListService(backend, listBytes * LISTS * 2);
+		final CachingEmailListService half = new CachingEmailListService(backend, listBytes * LISTS / 2);
+
+		for(int round = 0; round < 3; round++){
+			System.out.printf("round %d: uncached %,.0f lists/s, cached (all) %,.0f lists/s, cached (half) %,.0f lists/s%n",
+				round, throughput(backend), throughput(all), throughput(half));
+		}
+		for(final CachingEmailListService cached : new CachingEmailListService[]{ all, half }){
+			System.out.printf("cache: %d lists, %,d bytes, hit rate %.2f, %d evictions%n",
+				cached.getListCount(), cached.getSizeInBytes(), cached.getHitRate(), cached.getEvictionCount());
+		}
+
+		// the first measurement includes the loading and compiling of the code
+		footprint(true);
+		footprint(false);
+		System.out.printf("heap per list of %,d addresses: ArrayList<String> %,d bytes, PackedEmailList %,d bytes%n",
+			ADDRESSES, footprint(true), footprint(false));
+	}
+
+	private static double throughput(final EmailListService service) throws IOException {
+		final Random random = new Random(42);
+		final CountingSink sink = new CountingSink();
+
+		final long start = System.nanoTime();
+		for(int r = 0; r < REQUESTS; r++){
+			final String listName = "list-" + random.nextInt(LISTS);
+			if(service instanceof StreamingEmailListService){
+				((StreamingEmailListService)service).streamListByName(listName, 0, -1, sink);
+			} else {
+				for(final String email : service.getListByName(listName)){
+					sink.accept(email);
+				}
+			}
+		}
+		return REQUESTS / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Measures the heap retained by one list, as Strings or packed.
+	 */
+	private static long footprint(final boolean strings) throws IOException {
+		final List<String> generated = GeneratedEmailListService.generate("list-0");
+		final Object[] held = new Object[32];
+
+		final long before = usedMemory();
+		for(int i = 0; i < held.length; i++){
+			if(strings){
+				final List<String> copy = new ArrayList<String>(generated.size());
+				for(final String email : generated){
+					copy.add(new String(email.toCharArray()));
+				}
+				held[i] = copy;
+			} else {
+				held[i] = pack(generated);
+			}
+		}
+		final long after = usedMemory();
+
+		if(held[held.length - 1] == null) throw new IllegalStateException();
+		return (after - before) / held.length;
+	}
+
+	private static PackedEmailList pack(final List<String> emails){
+		final PackedEmailList.Builder builder = new PackedEmailList.Builder();
+		for(final String email : emails){
+			builder.accept(email);
+		}
+		return builder.build();
+	}
+
+	private static long usedMemory(){
+		final Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++){
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static class CountingSink implements EmailSink {
+
+		private long count;
+
+		public void accept(final String email){
+			count += email.length();
+		}
+	}
+
+	private static class GeneratedEmailListService implements EmailListService {
+
+		public List<String> getListByName(final String listName) throws IOException {
+			try {
+				Thread.sleep(LATENCY_MILLIS);
+			} catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+			return generate(listName);
+		}
+
+		static List<String> generate(final String listName){
+			final Random random = new Random(listName.hashCode());
+			final List<String> list = new ArrayList<String>(ADDRESSES);
+			for(int i = 0; i < ADDRESSES; i++){
+				list.add("user." + Integer.toString(random.nextInt(1 << 24), 36) + "@mail" + random.nextInt(DOMAINS) + ".example.com");
+			}
+			return list;
+		}
+	}
+}
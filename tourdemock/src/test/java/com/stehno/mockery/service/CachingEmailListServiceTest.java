@@ -0,0 +1,129 @@
+package com.stehno.mockery.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingEmailListServiceTest {
+
+	private static final List<String> STOOGES = Arrays.asList("larry@stooge.com","moe@stooge.com","curley@stooge.com","shemp");
+	private static final List<String> OTHERS = Arrays.asList("zo\u00eb@example.org","bob@example.org","larry@stooge.com");
+
+	private CountingEmailListService backend;
+
+	@Before
+	public void before(){
+		backend = new CountingEmailListService();
+		backend.lists.put("stooges", STOOGES);
+		backend.lists.put("others", OTHERS);
+	}
+
+	@Test
+	public void cached_lists_read_once() throws Exception {
+		final CachingEmailListService service = new CachingEmailListService(backend, 1024 * 1024);
+
+		assertEquals(STOOGES, service.getListByName("stooges"));
+		assertEquals(STOOGES, service.getListByName("stooges"));
+		assertEquals(OTHERS, service.getListByName("others"));
+
+		assertEquals(2, backend.reads);
+		assertEquals(1, service.getHitCount());
+		assertEquals(2, service.getMissCount());
+		assertEquals(2, service.getListCount());
+	}
+
+	@Test
+	public void missing_list() throws Exception {
+		final CachingEmailListService service = new CachingEmailListService(backend, 1024 * 1024);
+
+		for(int i = 0; i < 2; i++){
+			try {
+				service.getListByName("nobody");
+				fail("Expected an IOException");
+			} catch(IOException expected){
+				// not cached, so the backend is asked again
+			}
+		}
+
+		assertEquals(2, backend.reads);
+		assertEquals(0, service.getListCount());
+	}
+
+	@Test
+	public void invalidate() throws Exception {
+		final CachingEmailListService service = new CachingEmailListService(backend, 1024 * 1024);
+		service.getListByName("stooges");
+		service.getListByName("others");
+
+		backend.lists.put("stooges", Arrays.asList("moe@stooge.com"));
+		service.invalidate("stooges");
+
+		assertEquals(Arrays.asList("moe@stooge.com"), service.getListByName("stooges"));
+		assertEquals(OTHERS, service.getListByName("others"));
+		assertEquals(3, backend.reads);
+	}
+
+	@Test
+	public void evicts_least_recently_used() throws Exception {
+		final long stoogesSize = packed(STOOGES).sizeInBytes();
+		final long othersSize = packed(OTHERS).sizeInBytes();
+		final CachingEmailListService service = new CachingEmailListService(backend, Math.max(stoogesSize, othersSize));
+
+		service.getListByName("stooges");
+		service.getListByName("others");
+
+		assertEquals(1, service.getEvictionCount());
+		assertEquals(1, service.getListCount());
+		assertEquals(othersSize, service.getSizeInBytes());
+
+		service.getListByName("others");
+		assertEquals(2, backend.reads);
+	}
+
+	@Test
+	public void streams_page() throws Exception {
+		final CachingEmailListService service = new CachingEmailListService(backend, 1024 * 1024);
+
+		final List<String> page = new ArrayList<String>();
+		final int count = service.streamListByName("stooges", 1, 2, new EmailSink() {
+			public void accept(final String email){
+				page.add(email);
+			}
+		});
+
+		assertEquals(2, count);
+		assertEquals(STOOGES.subList(1, 3), page);
+		assertEquals(0, service.streamListByName("stooges", 10, -1, null));
+	}
+
+	private static PackedEmailList packed(final List<String> emails){
+		final PackedEmailList.Builder builder = new PackedEmailList.Builder();
+		for(final String email : emails){
+			builder.accept(email);
+		}
+		return builder.build();
+	}
+
+	private static class CountingEmailListService implements EmailListService {
+
+		private final Map<String, List<String>> lists = new HashMap<String, List<String>>();
+		private int reads;
+
+		public List<String> getListByName(final String listName) throws IOException {
+			reads++;
+
+			final List<String> list = lists.get(listName);
+			if(list == null) throw new IOException("No list named " + listName);
+			return list;
+		}
+	}
+}